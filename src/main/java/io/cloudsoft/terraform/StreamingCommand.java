@@ -0,0 +1,289 @@
+package io.cloudsoft.terraform;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.brooklyn.util.exceptions.Exceptions;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+/**
+ * Runs a command on a thread of its own, handing its standard output to a reader through a pipe as it is written,
+ * see {@link TerraformDriver#runStreamingTask(boolean, String, String, Function)}.
+ *
+ * The pipe holds at most {@link #PIPE_SIZE} bytes, so the command waits on the reader rather than its output being
+ * collected in memory; whatever the reader leaves is read and discarded, so that the command can finish. Only the end
+ * of the standard error is kept, for the message of the exception thrown if the command fails.
+ *
+ * The pipe is not a {@link java.io.PipedInputStream}, which fails reads once the last thread to write to it has ended:
+ * executions may write from threads of their own, such as those copying the output of an SSH command, which end
+ * before the execution returns and closes the pipe.
+ */
+final class StreamingCommand {
+
+    private static final int PIPE_SIZE = 64 * 1024;
+    private static final int STDERR_KEPT = 16 * 1024;
+
+    private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setNameFormat("brooklyn-terraform-command-%d").setDaemon(true).build());
+
+    /**
+     * Runs a command, writing its standard output and error to the given streams.
+     */
+    interface Execution {
+        /** @return the exit code of the command */
+        int run(OutputStream stdout, OutputStream stderr) throws Exception;
+    }
+
+    private StreamingCommand() {
+    }
+
+    /**
+     * @return the result of the reader, once the command has succeeded; if the command fails that is thrown
+     * rather than what the reader made of its output
+     */
+    static <T> T run(String description, Execution execution, Function<InputStream, T> stdoutReader) {
+        final Pipe stdout = new Pipe(PIPE_SIZE);
+        final Tail stderr = new Tail();
+        final Future<Integer> exitCode = EXECUTOR.submit(() -> {
+            try (OutputStream out = stdout.sink) {
+                return execution.run(out, stderr);
+            }
+        });
+
+        try (InputStream in = stdout.source) {
+            T result = null;
+            RuntimeException readError = null;
+            try {
+                // readers may close what they are given, e.g. with a JSON parser; the rest of the output is still to be drained
+                result = stdoutReader.apply(new FilterInputStream(in) {
+                    @Override
+                    public void close() {
+                    }
+                });
+            } catch (RuntimeException e) {
+                Exceptions.propagateIfFatal(e);
+                readError = e;
+            }
+            ByteStreams.exhaust(in);
+
+            final int code = exitCode.get();
+            if (code != 0) {
+                IllegalStateException failure = new IllegalStateException(description + " failed, exit code " + code + ": " + stderr);
+                if (readError != null) failure.addSuppressed(readError);
+                throw failure;
+            }
+            if (readError != null) {
+                throw readError;
+            }
+            return result;
+        } catch (ExecutionException e) {
+            throw Exceptions.propagateAnnotated("Error running " + description, e.getCause());
+        } catch (Exception e) {
+            // closing the pipe makes the command fail on its next write, should it still be running
+            exitCode.cancel(true);
+            throw Exceptions.propagate(e);
+        }
+    }
+
+    /**
+     * @return an execution running the command with {@code bash -c} in a local process
+     */
+    static Execution bash(String command, Map<String, String> env) {
+        return process(Arrays.asList("bash", "-c", command), env);
+    }
+
+    /**
+     * @return an execution running the command line in a local process
+     */
+    static Execution process(List<String> commandLine, Map<String, String> env) {
+        return (stdout, stderr) -> {
+            final ProcessBuilder builder = new ProcessBuilder(commandLine);
+            if (env != null) builder.environment().putAll(env);
+            final Process process = builder.start();
+            try {
+                process.getOutputStream().close();
+                final Future<?> errors = EXECUTOR.submit(() -> copy(process.getErrorStream(), stderr));
+                copy(process.getInputStream(), stdout);
+                final int code = process.waitFor();
+                errors.get();
+                return code;
+            } finally {
+                if (process.isAlive()) process.destroyForcibly();
+            }
+        };
+    }
+
+    /**
+     * Reads all of a stream as text, for callers which want the whole output after all.
+     */
+    static String readString(InputStream in) {
+        try {
+            return new String(ByteStreams.toByteArray(in), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw Exceptions.propagate(e);
+        }
+    }
+
+    /**
+     * Reads all of a stream, keeping only the end of it as text, for output only wanted should the command fail.
+     */
+    static String readTail(InputStream in) {
+        final Tail tail = new Tail();
+        try {
+            ByteStreams.copy(in, tail);
+        } catch (IOException e) {
+            throw Exceptions.propagate(e);
+        }
+        return tail.toString();
+    }
+
+    private static Void copy(InputStream from, OutputStream to) throws IOException {
+        final byte[] buffer = new byte[8192];
+        try (InputStream in = from) {
+            for (int n; (n = in.read(buffer)) >= 0; ) {
+                to.write(buffer, 0, n);
+                // a pipe reader otherwise only notices new data when it next polls
+                to.flush();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * A bounded buffer between one writer and one reader, whichever threads they use. Writes wait while it is full,
+     * and fail once the reader is closed; reads wait while it is empty, and end once the writer is closed.
+     */
+    static final class Pipe {
+        private final byte[] buffer;
+        private int start;
+        private int length;
+        private boolean sinkClosed;
+        private boolean sourceClosed;
+
+        final OutputStream sink = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                synchronized (Pipe.this) {
+                    while (len > 0) {
+                        while (length == buffer.length && !sourceClosed) await();
+                        if (sourceClosed) throw new IOException("Pipe closed by its reader");
+                        if (sinkClosed) throw new IOException("Pipe closed");
+                        final int end = (start + length) % buffer.length;
+                        final int n = Math.min(len, Math.min(buffer.length - length, buffer.length - end));
+                        System.arraycopy(b, off, buffer, end, n);
+                        length += n;
+                        off += n;
+                        len -= n;
+                        Pipe.this.notifyAll();
+                    }
+                }
+            }
+
+            @Override
+            public void close() {
+                synchronized (Pipe.this) {
+                    sinkClosed = true;
+                    Pipe.this.notifyAll();
+                }
+            }
+        };
+
+        final InputStream source = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                final byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) return 0;
+                synchronized (Pipe.this) {
+                    while (length == 0 && !sinkClosed && !sourceClosed) await();
+                    if (sourceClosed) throw new IOException("Pipe closed");
+                    if (length == 0) return -1;
+                    final int n = Math.min(len, Math.min(length, buffer.length - start));
+                    System.arraycopy(buffer, start, b, off, n);
+                    start = (start + n) % buffer.length;
+                    length -= n;
+                    Pipe.this.notifyAll();
+                    return n;
+                }
+            }
+
+            @Override
+            public int available() {
+                synchronized (Pipe.this) {
+                    return length;
+                }
+            }
+
+            @Override
+            public void close() {
+                synchronized (Pipe.this) {
+                    sourceClosed = true;
+                    Pipe.this.notifyAll();
+                }
+            }
+        };
+
+        Pipe(int size) {
+            this.buffer = new byte[size];
+        }
+
+        private void await() throws InterruptedIOException {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting on pipe");
+            }
+        }
+    }
+
+    /** Keeps the last {@link #STDERR_KEPT} bytes written. */
+    private static final class Tail extends OutputStream {
+        private final byte[] kept = new byte[STDERR_KEPT];
+        private long written;
+
+        @Override
+        public synchronized void write(int b) {
+            kept[(int) (written++ % kept.length)] = (byte) b;
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            for (int i = 0; i < len; i++) write(b[off + i]);
+        }
+
+        @Override
+        public synchronized String toString() {
+            if (written <= kept.length) {
+                return new String(kept, 0, (int) written, StandardCharsets.UTF_8).trim();
+            }
+            final int start = (int) (written % kept.length);
+            final byte[] ordered = new byte[kept.length];
+            System.arraycopy(kept, start, ordered, 0, kept.length - start);
+            System.arraycopy(kept, 0, ordered, kept.length - start, start);
+            return "..." + new String(ordered, StandardCharsets.UTF_8).trim();
+        }
+    }
+}
@@ -92,6 +92,118 @@ public interface TerraformCommons {
 
     ConfigKey<Duration> CONTAINER_TIMEOUT = ConfigKeys.newConfigKey(Duration.class, "container.timeout", "How long to wait for container-based Terraform commands (default 2 hours)", Duration.hours(2));
 
+    ConfigKey<Boolean> KUBE_WORKER_ENABLED = ConfigKeys.builder(Boolean.class)
+            .name("tf.kube.worker.enabled")
+            .description("In 'kube' mode, run Terraform commands with 'kubectl exec' in a long-lived worker container kept for the entity, "
+                    + "rather than in a new Kubernetes job for each command; jobs are still used if the worker cannot be started")
+            .defaultValue(false)
+            .build();
+
+    ConfigKey<Duration> KUBE_WORKER_IDLE_TIMEOUT = ConfigKeys.builder(Duration.class)
+            .name("tf.kube.worker.idle_timeout")
+            .description("How long the worker container waits for a command before it terminates itself; a new one is started when next needed")
+            .defaultValue(Duration.minutes(10))
+            .build();
+
+    ConfigKey<Boolean> PLUGIN_CACHE_ENABLED = ConfigKeys.builder(Boolean.class)
+            .name("tf.plugin_cache.enabled")
+            .description("Share a Terraform provider plugin cache between the deployments on the same host or volume, "
+                    + "so that 'terraform init' does not download the providers another deployment already has")
+            .defaultValue(false)
+            .build();
+
+    ConfigKey<String> PLUGIN_CACHE_DIR = ConfigKeys.builder(String.class)
+            .name("tf.plugin_cache.dir")
+            .description("Directory of the shared provider plugin cache; "
+                    + "by default 'terraform-plugin-cache' in the directory holding the workspaces of all deployments")
+            .build();
+
+    ConfigKey<Long> PLUGIN_CACHE_MAX_SIZE_MB = ConfigKeys.builder(Long.class)
+            .name("tf.plugin_cache.max_size_mb")
+            .description("Size of the shared provider plugin cache, in megabytes, above which the least recently used providers "
+                    + "not used by any deployment are evicted")
+            .defaultValue(4096L)
+            .build();
+
+    ConfigKey<Boolean> PARALLELISM_ADAPTIVE = ConfigKeys.builder(Boolean.class)
+            .name("tf.parallelism.adaptive")
+            .description("Pass a '-parallelism' to 'terraform plan' and 'apply' chosen for each run from the number of resources, "
+                    + "how long recent plans took and whether the provider throttled them, instead of Terraform's default of 10")
+            .defaultValue(false)
+            .build();
+
+    ConfigKey<Integer> PARALLELISM_MIN = ConfigKeys.builder(Integer.class)
+            .name("tf.parallelism.min")
+            .description("The smallest '-parallelism' chosen with adaptive parallelism")
+            .defaultValue(2)
+            .build();
+
+    ConfigKey<Integer> PARALLELISM_MAX = ConfigKeys.builder(Integer.class)
+            .name("tf.parallelism.max")
+            .description("The largest '-parallelism' chosen with adaptive parallelism")
+            .defaultValue(50)
+            .build();
+
+    ConfigKey<Boolean> INCREMENTAL_REFRESH_ENABLED = ConfigKeys.builder(Boolean.class)
+            .name("tf.refresh.incremental.enabled")
+            .description("Refresh only the resources which recently drifted or changed on most polls, with '-target', "
+                    + "and the whole deployment every 'tf.refresh.full.period'; polls with nothing to refresh plan without refreshing")
+            .defaultValue(false)
+            .build();
+
+    ConfigKey<Duration> TARGETED_REFRESH_PERIOD = ConfigKeys.builder(Duration.class)
+            .name("tf.refresh.targeted.period")
+            .description("With incremental refresh, how often the resources which recently drifted or changed are refreshed; "
+                    + "polls in between are skipped while there are such resources")
+            .defaultValue(Duration.seconds(30))
+            .build();
+
+    ConfigKey<Duration> FULL_REFRESH_PERIOD = ConfigKeys.builder(Duration.class)
+            .name("tf.refresh.full.period")
+            .description("With incremental refresh, how often the whole deployment is refreshed")
+            .defaultValue(Duration.minutes(15))
+            .build();
+
+    ConfigKey<Duration> TARGETED_REFRESH_HOT_FOR = ConfigKeys.builder(Duration.class)
+            .name("tf.refresh.targeted.hot_for")
+            .description("With incremental refresh, for how long after it drifted or changed a resource is refreshed with the targeted refreshes")
+            .defaultValue(Duration.minutes(15))
+            .build();
+
+    ConfigKey<Integer> TARGETED_REFRESH_MAX_RESOURCES = ConfigKeys.builder(Integer.class)
+            .name("tf.refresh.targeted.max_resources")
+            .description("With incremental refresh, the number of resources to refresh above which the whole deployment is refreshed instead")
+            .defaultValue(50)
+            .build();
+
+    ConfigKey<Boolean> TIERED_POLLING_ENABLED = ConfigKeys.builder(Boolean.class)
+            .name("tf.polling.tiered.enabled")
+            .description("On each poll, only probe the digest of the configuration and the serial of the state, and plan when either changed, "
+                    + "when asked for, or when the last plan is older than an interval which grows from 'tf.polling.period' "
+                    + "while the deployment stays in sync, up to 'tf.polling.max_staleness'")
+            .defaultValue(false)
+            .build();
+
+    ConfigKey<Duration> POLLING_MAX_STALENESS = ConfigKeys.builder(Duration.class)
+            .name("tf.polling.max_staleness")
+            .description("With tiered polling, the longest time without a plan, and so the longest drift made outside Terraform may go unnoticed")
+            .defaultValue(Duration.minutes(10))
+            .build();
+
+    ConfigKey<Boolean> SSH_SESSION_REUSE = ConfigKeys.builder(Boolean.class)
+            .name("tf.ssh.session_reuse.enabled")
+            .description("In 'ssh' mode, run the Terraform commands of polls and copy files in SSH sessions pooled for the machine, "
+                    + "reusing its authenticated connections, rather than connecting for each command")
+            .defaultValue(true)
+            .build();
+
+    ConfigKey<Integer> SSH_MAX_SESSIONS = ConfigKeys.builder(Integer.class)
+            .name("tf.ssh.max_sessions")
+            .description("In 'ssh' mode with session reuse, how many commands may run at once on a machine, and so how many connections "
+                    + "are kept to it; set by the first deployment to use the machine")
+            .defaultValue(4)
+            .build();
+
     String LOCAL_MODE = "local";
     String SSH_MODE = "ssh";
     /**
@@ -3,6 +3,9 @@ package io.cloudsoft.terraform;
 import java.time.Instant;
 import java.util.Map;
 
+import com.google.common.reflect.TypeToken;
+import io.cloudsoft.terraform.util.ParallelismController;
+
 import org.apache.brooklyn.api.catalog.Catalog;
 import org.apache.brooklyn.api.entity.ImplementedBy;
 import org.apache.brooklyn.api.sensor.AttributeSensor;
@@ -64,6 +67,30 @@ public interface TerraformConfiguration extends SoftwareProcess, TerraformCommon
             .defaultValue(true)
             .build();
 
+    ConfigKey<Boolean> TERRAFORM_STATE_FROM_SHOW = ConfigKeys.builder(Boolean.class)
+            .name("tf.state.from_show")
+            .description("Read resources from the output of 'terraform show' rather than from the state pulled with 'terraform state pull', "
+                    + "at the cost of running terraform once more on each poll. The pulled state only marks as sensitive the values "
+                    + "terraform marked (e.g. set from sensitive variables), not those sensitive by the schema of their provider, "
+                    + "which would then be published as plain values; only set this to 'false' where that is acceptable. "
+                    + "States not in format version 4 (written before terraform 0.13) are always read with 'terraform show'")
+            .defaultValue(true)
+            .build();
+
+    ConfigKey<Boolean> TERRAFORM_POLL_PIPELINED = ConfigKeys.builder(Boolean.class)
+            .name("tf.polling.pipelined")
+            .description("Run the terraform commands of each poll (plan, refresh, state pull and output) as a single script, "
+                    + "so that a poll is a single command (ssh session, process or container) rather than one per terraform command")
+            .defaultValue(false)
+            .build();
+
+    ConfigKey<Map<String,Object>> STATE_FLATTENING = ConfigKeys.builder(new TypeToken<Map<String,Object>>() {}, "tf.state.flattening")
+            .description("Rules for flattening nested attribute values of resources into sensors of their own, keyed by resource type "
+                    + "or type prefix (e.g. 'google_'), each a map with 'expand' (attribute paths to flatten, e.g. 'cluster_config.worker_config'), "
+                    + "'keepAsJson' (paths below those to keep as JSON) and 'maxDepth' (default 8). "
+                    + "By default 'cluster_config' of Google resources is flattened.")
+            .build();
+
     ConfigKey<CustomWorkflowStep> PRE_PLAN_WORKFLOW = ConfigKeys.builder(CustomWorkflowStep.class, "pre_plan.workflow")
             .description("workflow to run prior to any plan")
             .runtimeInheritance(ConfigInheritance.NONE)
@@ -106,6 +133,45 @@ public interface TerraformConfiguration extends SoftwareProcess, TerraformCommon
     AttributeSensor<String> TF_STATE = new BasicAttributeSensor(Map.class, "tf.tf_state",
             "Output from terraform state pull.");
 
+    AttributeSensor<Long> STATE_READS_SKIPPED = Sensors.newLongSensor("tf.state.reads.skipped",
+            "Number of polls which did not read the resources with terraform show, as the lineage and serial of the pulled state were unchanged.");
+
+    AttributeSensor<Long> PLUGIN_CACHE_HITS = Sensors.newLongSensor("tf.plugin_cache.hits",
+            "Number of providers 'terraform init' found in the shared plugin cache.");
+
+    AttributeSensor<Long> PLUGIN_CACHE_MISSES = Sensors.newLongSensor("tf.plugin_cache.misses",
+            "Number of providers 'terraform init' had to download to the shared plugin cache.");
+
+    AttributeSensor<Long> PLUGIN_CACHE_BYTES_SAVED = Sensors.newLongSensor("tf.plugin_cache.bytes_saved",
+            "Size of the providers found in the shared plugin cache, not downloaded again.");
+
+    AttributeSensor<Integer> PARALLELISM = Sensors.newIntegerSensor("tf.parallelism",
+            "The '-parallelism' of the last Terraform plan or apply, with adaptive parallelism.");
+
+    AttributeSensor<Long> PLAN_DURATION = Sensors.newLongSensor("tf.plan.duration",
+            "How long the 'terraform plan' of the last poll took, in milliseconds.");
+
+    AttributeSensor<Long> APPLY_DURATION = Sensors.newLongSensor("tf.apply.duration",
+            "How long the last 'terraform apply' took, in milliseconds.");
+
+    AttributeSensor<Long> THROTTLED_RUNS = Sensors.newLongSensor("tf.throttled_runs",
+            "Number of Terraform plans and applies the provider throttled.");
+
+    AttributeSensor<String> REFRESH_SCOPE = Sensors.newStringSensor("tf.refresh.scope",
+            "What the last poll refreshed, with incremental refresh: 'full', 'targeted (N resources)', 'none' (planned without refreshing) or 'skip'.");
+
+    AttributeSensor<Long> POLLING_INTERVAL = Sensors.newLongSensor("tf.polling.interval",
+            "With tiered polling, how long after the last plan the next one is made if the probe sees no change, in milliseconds.");
+
+    AttributeSensor<Long> POLLS_SKIPPED = Sensors.newLongSensor("tf.polls.skipped",
+            "Number of polls which did not plan, with tiered polling, as the probe saw no change and the last plan was recent enough.");
+
+    AttributeSensor<Long> SSH_CONNECT_TIME = Sensors.newLongSensor("tf.ssh.connect.time",
+            "Time spent getting SSH connections for the Terraform commands run in pooled sessions, connecting or reusing them, in milliseconds.");
+
+    AttributeSensor<Long> SSH_CONNECT_TIME_LAST_POLL = Sensors.newLongSensor("tf.ssh.connect.time.last_poll",
+            "Time spent getting SSH connections by the last poll, in milliseconds.");
+
     AttributeSensor<TerraformStatus> DRIFT_STATUS = Sensors.newSensor(TerraformStatus.class,"tf.drift.status",
             "Drift status of the configuration" );
 
@@ -136,6 +202,17 @@ public interface TerraformConfiguration extends SoftwareProcess, TerraformCommon
 
     TerraformDriver getDriver();
 
+    /**
+     * @return what chooses the {@code -parallelism} of plans (and the refreshes applied with them), with {@link #PARALLELISM_ADAPTIVE}
+     */
+    ParallelismController getPlanParallelism();
+
+    /**
+     * @return what chooses the {@code -parallelism} of applies, with {@link #PARALLELISM_ADAPTIVE}; kept apart from that of plans,
+     * as applies take much longer
+     */
+    ParallelismController getApplyParallelism();
+
     Boolean isApplyDriftComplianceToResources();
     void setApplyDriftComplianceToResources(Boolean doApply);
 }
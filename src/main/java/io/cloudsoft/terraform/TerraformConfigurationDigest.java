@@ -0,0 +1,70 @@
+package io.cloudsoft.terraform;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import org.apache.brooklyn.util.os.Os;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Tells whether a workspace has been initialized with the configuration about to be installed, see {@link TerraformDriver#customize()}.
+ *
+ * The digest of the configuration files, by target, is written to a file next to the workspace once {@code terraform init}
+ * has succeeded, together with a hash of the dependency lock file {@code init} wrote. The configuration is installed again
+ * unless both are the same and the workspace still has its {@code .terraform} directory.
+ */
+final class TerraformConfigurationDigest {
+
+    static final String UNCHANGED = "unchanged";
+
+    private TerraformConfigurationDigest() {
+    }
+
+    /**
+     * @param files contents by target
+     */
+    static String of(Map<String, byte[]> files) {
+        final Hasher hasher = Hashing.sha256().newHasher();
+        files.forEach((target, contents) -> hasher.putString(target, StandardCharsets.UTF_8).putInt(contents.length).putBytes(contents));
+        return hasher.hash().toString();
+    }
+
+    /**
+     * @return a digest of the {@code TF_VAR_} entries of the environment, in the order of their names, see {@link TerraformDriver#runProbeTask()}
+     */
+    static String ofVariables(Map<String, String> environment) {
+        final Hasher hasher = Hashing.sha256().newHasher();
+        new TreeMap<>(environment).forEach((name, value) -> {
+            if (name.startsWith("TF_VAR_")) {
+                hasher.putString(name, StandardCharsets.UTF_8).putByte((byte) 0).putString(String.valueOf(value), StandardCharsets.UTF_8).putByte((byte) 0);
+            }
+        });
+        return hasher.hash().toString();
+    }
+
+    /**
+     * @return the shell expression of what is recorded once the configuration is installed
+     */
+    private static String installed(String activeDir, String digest) {
+        // the lock file is hashed as its contents, so that it is compared even where the file is missing
+        return "\"" + digest + " $(cat " + Os.mergePathsUnix(activeDir, ".terraform.lock.hcl") + " 2>/dev/null | sha256sum | cut -d' ' -f1)\"";
+    }
+
+    /**
+     * @return the command writing {@link #UNCHANGED} if the configuration with the digest is installed in the workspace already
+     */
+    static String checkCommand(String activeDir, String digestFile, String digest) {
+        return "if [ -d " + Os.mergePathsUnix(activeDir, ".terraform") + " ] && "
+                + "[ \"$(cat " + digestFile + " 2>/dev/null)\" = " + installed(activeDir, digest) + " ] ; "
+                + "then echo " + UNCHANGED + " ; else echo changed ; fi";
+    }
+
+    /**
+     * @return the command recording that the configuration with the digest has been installed, once {@code init} has succeeded
+     */
+    static String recordCommand(String activeDir, String digestFile, String digest) {
+        return "echo " + installed(activeDir, digest) + " > " + digestFile;
+    }
+}
@@ -1,16 +1,23 @@
 package io.cloudsoft.terraform;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.base.Function;
 import com.google.common.base.Supplier;
 import com.google.common.collect.Maps;
-import com.google.gson.internal.LinkedTreeMap;
 import io.cloudsoft.terraform.entity.DataResource;
 import io.cloudsoft.terraform.entity.ManagedResource;
 import io.cloudsoft.terraform.entity.TerraformResource;
+import io.cloudsoft.terraform.parser.AttributeDiff;
 import io.cloudsoft.terraform.parser.EntityParser;
+import io.cloudsoft.terraform.parser.FlatteningRules;
+import io.cloudsoft.terraform.parser.JsonReaders;
+import io.cloudsoft.terraform.parser.PlanModel;
+import io.cloudsoft.terraform.parser.PlanSummary;
+import io.cloudsoft.terraform.parser.StateChanges;
 import io.cloudsoft.terraform.parser.StateParser;
+import io.cloudsoft.terraform.util.IncrementalRefresh;
+import io.cloudsoft.terraform.util.ParallelismController;
+import io.cloudsoft.terraform.util.TieredPolling;
 import org.apache.brooklyn.api.entity.Entity;
 
 import org.apache.brooklyn.api.location.Location;
@@ -69,6 +76,16 @@ public class TerraformConfigurationImpl extends SoftwareProcessImpl implements T
 
     private Map<String, Object> lastCommandOutputs = Collections.synchronizedMap(Maps.newHashMapWithExpectedSize(3));
     private AtomicReference<Thread> configurationChangeInProgress = new AtomicReference(null);
+    // content hashes of the resources of the last state read, not persisted: after a rebind every resource is refreshed once
+    private transient volatile Map<String, Long> resourceHashes = Collections.emptyMap();
+    // lineage and serial of the state the resources were last read from, see StateParser.parseStateVersion,
+    // with a hash of the configuration they were read with
+    private transient volatile String lastStateVersion;
+    private transient volatile PlanModel planModel;
+    private transient ParallelismController planParallelism;
+    private transient ParallelismController applyParallelism;
+    private transient volatile IncrementalRefresh incrementalRefresh;
+    private transient volatile TieredPolling tieredPolling;
 
     private Boolean applyDriftComplianceCheckToResources = false;
 
@@ -148,7 +165,7 @@ public class TerraformConfigurationImpl extends SoftwareProcessImpl implements T
                 .entity(this)
                 .period(getConfig(TerraformCommons.POLLING_PERIOD))
                 .poll(FunctionPollConfig.forMultiple().name("Refresh terraform")
-                        .supplier(new RefreshTerraformModelAndSensors(this, true)))
+                        .supplier(new RefreshTerraformModelAndSensors(this, true, true)))
 //                .poll(FunctionPollConfig.forSensor(PLAN).supplier(new PlanProvider(this, true)).name("refresh terraform plan")
 //                        .onResult(new PlanSuccessFunction())
 //                        .onFailure(new PlanFailureFunction()))
@@ -171,36 +188,246 @@ public class TerraformConfigurationImpl extends SoftwareProcessImpl implements T
      *  Since `terraform plan` is the only command reacting to changes, it makes sense entities to change according to its results.
      */
     private void updateDeploymentState() {
-        final String statePull = retryUntilLockAvailable("terraform state pull", () -> getDriver().runStatePullTask());
+        updateDeploymentState(null);
+    }
+
+    /**
+     * @param pulledState the output of {@code terraform state pull} if it has been run already in this poll, otherwise null to run it
+     */
+    private void updateDeploymentState(String pulledState) {
+        final String statePull = pulledState != null ? pulledState : retryUntilLockAvailable("terraform state pull", () -> getDriver().runStatePullTask());
         sensors().set(TerraformConfiguration.TF_STATE, statePull);
 
-        // TODO would be nice to deprecate this as 'show' is a bit more expensive than other things
-        final String show = retryUntilLockAvailable("terraform show", () -> getDriver().runShowTask());
-        Map<String, Map<String,Object>> state = StateParser.parseResources(show);
+        final Map<String, Object> flattening = config().get(STATE_FLATTENING);
+        final Boolean fromShow = config().get(TERRAFORM_STATE_FROM_SHOW);
+        final String parsedVersion = StateParser.parseStateVersion(statePull);
+        // the resources read differ with the configuration too, e.g. flattened otherwise
+        final String stateVersion = parsedVersion == null ? null : parsedVersion + " " + Integer.toHexString(Objects.hash(flattening, fromShow));
+        final Map<String, Map<String, Object>> lastState = sensors().get(TerraformConfiguration.STATE);
+        if (stateVersion != null && stateVersion.equals(lastStateVersion) && lastState != null) {
+            // terraform has not written the state since it was last read, so 'show' would report the same resources;
+            // their children still follow the drift status, e.g. back to running once in sync after an apply
+            final Long skipped = sensors().get(STATE_READS_SKIPPED);
+            sensors().set(STATE_READS_SKIPPED, skipped == null ? 1 : skipped + 1);
+            if (!Boolean.FALSE.equals(config().get(TERRAFORM_RESOURCE_ENTITIES_ENABLED))) {
+                updateResourceEntities(lastState, StateChanges.unchanged(resourceHashes));
+            }
+            return;
+        }
+
+        final FlatteningRules flatteningRules = FlatteningRules.fromConfig(flattening);
+        Map<String, Map<String,Object>> state = Boolean.TRUE.equals(fromShow) ? null
+                : StateParser.parsePulledState(statePull, flatteningRules);
+        if (state == null) {
+            // 'show' runs terraform once more, but only it reports the values sensitive by their provider's schema as such
+            state = retryUntilLockAvailable("terraform show", () -> getDriver().runShowTask(show -> {
+                final Map<String, Map<String, Object>> resources = MutableMap.of();
+                StateParser.parseResources(show, flatteningRules, resource -> resources.put(resource.get("resource.address").toString(), resource));
+                return resources;
+            }));
+        }
         sensors().set(TerraformConfiguration.STATE, state);
 
         if (!Boolean.FALSE.equals(config().get(TERRAFORM_RESOURCE_ENTITIES_ENABLED))) {
-            Map<String, Map<String, Object>> resources = MutableMap.copyOf(state);
-            updateResources(resources, this, ManagedResource.class);
-            updateDataResources(resources, DataResource.class);
-            if (!resources.isEmpty()) { // new resource, new child must be created
-                processResources(resources, this);
+            final StateChanges changes = StateChanges.between(resourceHashes, state);
+            final IncrementalRefresh incremental = incrementalRefresh;
+            if (incremental != null && !resourceHashes.isEmpty()) {
+                // on the first read every resource is new, and none is hotter than the others
+                final long now = System.currentTimeMillis();
+                incremental.changed(changes.getAdded(), now);
+                incremental.changed(changes.getModified(), now);
+                incremental.removed(changes.getRemoved());
             }
+            resourceHashes = changes.getHashes();
+            LOG.debug("Resources of "+this+" since last state read: "+changes);
+            updateResourceEntities(state, changes);
+        }
+        lastStateVersion = stateVersion;
+    }
+
+    private void updateResourceEntities(Map<String, Map<String, Object>> state, StateChanges changes) {
+        Map<String, Map<String, Object>> resources = MutableMap.copyOf(state);
+        updateResources(resources, this, ManagedResource.class, changes);
+        updateDataResources(resources, DataResource.class, changes);
+        if (!resources.isEmpty()) { // new resource, new child must be created
+            processResources(resources, this);
+        }
+    }
+
+    /**
+     * @return what terraform said of the plan made on the last poll refreshing the state
+     *         (with its resource changes and drift), or null if it could not be rendered
+     */
+    public PlanModel getPlanModel() {
+        return planModel;
+    }
+
+    void setPlanModel(PlanModel planModel) {
+        this.planModel = planModel;
+    }
+
+    /**
+     * @return what the poll should refresh, with {@link TerraformCommons#INCREMENTAL_REFRESH_ENABLED}; null to refresh as asked
+     */
+    synchronized IncrementalRefresh.Run nextRefresh(boolean doTerraformRefresh) {
+        if (!doTerraformRefresh || !Boolean.TRUE.equals(config().get(INCREMENTAL_REFRESH_ENABLED))) {
+            return null;
+        }
+        if (incrementalRefresh == null) {
+            incrementalRefresh = new IncrementalRefresh(config().get(TARGETED_REFRESH_PERIOD).toMilliseconds(),
+                    config().get(FULL_REFRESH_PERIOD).toMilliseconds(), config().get(TARGETED_REFRESH_HOT_FOR).toMilliseconds(),
+                    config().get(TARGETED_REFRESH_MAX_RESOURCES));
+        }
+        return incrementalRefresh.next(System.currentTimeMillis());
+    }
+
+    /**
+     * Marks the resources with changes in the plan of a poll as hot for incremental refresh.
+     */
+    void refreshCompleted(IncrementalRefresh.Run refresh, Map<String, Object> planStatus) {
+        final IncrementalRefresh incremental = incrementalRefresh;
+        if (refresh == null || incremental == null) {
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        incremental.completed(refresh, now);
+        final Object changes = planStatus.get(RESOURCE_CHANGES);
+        if (changes instanceof List) {
+            final List<String> addresses = new ArrayList<>();
+            ((List<Map<String, Object>>) changes).forEach(change -> {
+                if (change.get("resource.addr") != null) addresses.add(change.get("resource.addr").toString());
+            });
+            incremental.changed(addresses, now);
+        }
+        sensors().set(REFRESH_SCOPE, refresh.toString());
+        LOG.debug("Refresh of "+this+": "+refresh+"; "+incremental);
+    }
+
+    /**
+     * Has the next poll plan, with tiered polling, and refresh the whole deployment, with incremental refresh,
+     * e.g. once it has been applied.
+     */
+    void requestFullRefresh() {
+        final IncrementalRefresh incremental = incrementalRefresh;
+        if (incremental != null) incremental.requestFull();
+        final TieredPolling tiered = tieredPolling;
+        if (tiered != null) tiered.request();
+    }
+
+    private synchronized TieredPolling getTieredPolling() {
+        if (tieredPolling == null && Boolean.TRUE.equals(config().get(TIERED_POLLING_ENABLED))) {
+            tieredPolling = new TieredPolling(config().get(POLLING_PERIOD).toMilliseconds(), config().get(POLLING_MAX_STALENESS).toMilliseconds());
+        }
+        return tieredPolling;
+    }
+
+    /**
+     * Probes the deployment, with {@link TerraformCommons#TIERED_POLLING_ENABLED}, to tell whether the poll should plan;
+     * and, with {@link TerraformCommons#INCREMENTAL_REFRESH_ENABLED}, whether it should refresh the whole deployment.
+     */
+    boolean isPollDue() {
+        final TieredPolling tiered = getTieredPolling();
+        if (tiered == null) {
+            return true;
+        }
+        final TieredPolling.Reason reason = tiered.next(probe(), System.currentTimeMillis());
+        if (reason == null) {
+            final Long skipped = sensors().get(POLLS_SKIPPED);
+            sensors().set(POLLS_SKIPPED, skipped == null ? 1 : skipped + 1);
+            return false;
+        }
+        LOG.debug("Poll of "+this+" planning, reason "+reason+"; "+tiered);
+        final IncrementalRefresh incremental = incrementalRefresh;
+        if (reason.needsFullRefresh() && incremental != null) {
+            // else tiered polling, which only takes refreshing plans as done, would have every later poll plan
+            incremental.requestFull();
+        }
+        return true;
+    }
+
+    /**
+     * Has tiered polling take the plan just made into account, probing the deployment again as the plan may have written the state.
+     */
+    void pollCompleted(boolean succeeded) {
+        final TieredPolling tiered = getTieredPolling();
+        if (tiered == null) {
+            return;
+        }
+        if (succeeded) {
+            tiered.completed(probe(), TerraformStatus.SYNC.equals(sensors().get(DRIFT_STATUS)), System.currentTimeMillis());
+        } else {
+            tiered.failed();
+        }
+        sensors().set(POLLING_INTERVAL, tiered.getIntervalMillis());
+    }
+
+    /**
+     * @return the probe of the deployment, or null if it could not be taken, in which case the poll plans
+     */
+    private String probe() {
+        try {
+            return getDriver().runProbeTask();
+        } catch (Exception e) {
+            Exceptions.propagateIfFatal(e);
+            LOG.debug("Unable to probe "+this+" (planning): "+e);
+            return null;
+        }
+    }
+
+    @Override
+    public synchronized ParallelismController getPlanParallelism() {
+        if (planParallelism == null) {
+            planParallelism = new ParallelismController(config().get(PARALLELISM_MIN), config().get(PARALLELISM_MAX));
+        }
+        return planParallelism;
+    }
+
+    @Override
+    public synchronized ParallelismController getApplyParallelism() {
+        if (applyParallelism == null) {
+            applyParallelism = new ParallelismController(config().get(PARALLELISM_MIN), config().get(PARALLELISM_MAX));
+        }
+        return applyParallelism;
+    }
+
+    /**
+     * Publishes how long a plan or apply took, and has adaptive parallelism take it into account.
+     *
+     * @param parallelism the {@code -parallelism} the run was made with, not positive if it was not chosen
+     */
+    void recordTerraformRun(AttributeSensor<Long> durationSensor, ParallelismController controller, int parallelism, long millis, boolean throttled) {
+        sensors().set(durationSensor, millis);
+        if (throttled) {
+            final Long throttledRuns = sensors().get(THROTTLED_RUNS);
+            sensors().set(THROTTLED_RUNS, throttledRuns == null ? 1 : throttledRuns + 1);
+        }
+        if (parallelism > 0) {
+            controller.record(parallelism, millis, throttled);
+            LOG.debug("Terraform run of "+this+" took "+Duration.millis(millis)+" with parallelism "+parallelism
+                    +(throttled ? " and was throttled" : "")+"; now "+controller);
         }
     }
 
     private static Predicate<? super Entity> runningOrSync = c -> !c.sensors().getAll().containsKey(RESOURCE_STATUS) || (!c.sensors().get(RESOURCE_STATUS).equals("running") &&
             c.getParent().sensors().get(DRIFT_STATUS).equals(TerraformStatus.SYNC));
 
-    private void updateResources(Map<String, Map<String,Object>> resourcesToSensors, Entity parent, Class<? extends TerraformResource> clazz) {
+    /**
+     * Resources {@link StateChanges#isUnchanged(String) unchanged} since the last state read keep their sensors without comparing them.
+     */
+    private void updateResources(Map<String, Map<String,Object>> resourcesToSensors, Entity parent, Class<? extends TerraformResource> clazz, StateChanges changes) {
         List<Entity> childrenToRemove = new ArrayList<>();
         parent.getChildren().stream().filter(c -> clazz.isAssignableFrom(c.getClass())).forEach(c -> {
             if (runningOrSync.test(c)){
                 c.sensors().set(RESOURCE_STATUS, "running");
             }
-            if (resourcesToSensors.containsKey(c.getConfig(TerraformResource.ADDRESS))) { //child in resource set, update sensors
-                ((TerraformResource) c).refreshSensors(resourcesToSensors.get(c.getConfig(TerraformResource.ADDRESS)));
-                resourcesToSensors.remove(c.getConfig(TerraformResource.ADDRESS));
+            final String address = c.getConfig(TerraformResource.ADDRESS);
+            if (resourcesToSensors.containsKey(address)) { //child in resource set, update sensors
+                if (!changes.isUnchanged(address)) {
+                    ((TerraformResource) c).refreshSensors(resourcesToSensors.get(address));
+                } else if (c instanceof ManagedResource) {
+                    ((ManagedResource) c).updateResourceState();
+                }
+                resourcesToSensors.remove(address);
             } else {
                 childrenToRemove.add(c);
             }
@@ -214,8 +441,8 @@ public class TerraformConfigurationImpl extends SoftwareProcessImpl implements T
     /**
      * Updates Data resources
      */
-    private void updateDataResources(Map<String, Map<String,Object>> resources, Class<? extends TerraformResource> clazz) {
-        EntityParser.getDataResourcesGroup(this).ifPresent(c -> updateResources(resources, c, clazz));
+    private void updateDataResources(Map<String, Map<String,Object>> resources, Class<? extends TerraformResource> clazz, StateChanges changes) {
+        EntityParser.getDataResourcesGroup(this).ifPresent(c -> updateResources(resources, c, clazz, changes));
     }
 
     protected abstract static class RetryingProvider<T> implements Supplier<T> {
@@ -255,18 +482,99 @@ public class TerraformConfigurationImpl extends SoftwareProcessImpl implements T
 
     public static class RefreshTerraformModelAndSensors extends RetryingProvider<Void> {
         private final boolean doTerraformRefresh;
+        private final boolean probeFirst;
 
         public RefreshTerraformModelAndSensors(TerraformConfiguration entity, boolean doTerraformRefresh) {
+            this(entity, doTerraformRefresh, false);
+        }
+
+        /**
+         * @param probeFirst whether to plan only when tiered polling finds it due, as the polls of the feed do
+         */
+        public RefreshTerraformModelAndSensors(TerraformConfiguration entity, boolean doTerraformRefresh, boolean probeFirst) {
             super("refresh terraform model and plan", entity);
             this.doTerraformRefresh = doTerraformRefresh;
+            this.probeFirst = probeFirst;
         }
 
         @Override
         protected Void getWhenHasLock() {
-            entity.sensors().set(PLAN, new PlanProcessingFunction(entity).apply(getDriver().runJsonPlanTask(doTerraformRefresh)));
-            deproxied(entity).refreshOutput(false);
+            final Long connectTime = entity.sensors().get(SSH_CONNECT_TIME);
+            IncrementalRefresh.Run refresh = null;
+            boolean planned = false, succeeded = false;
+            try {
+                if (probeFirst && !deproxied(entity).isPollDue()) {
+                    return null;
+                }
+                planned = true;
+                refresh = deproxied(entity).nextRefresh(doTerraformRefresh);
+                poll(refresh);
+                succeeded = true;
+            } finally {
+                // plans which do not refresh (nor polls skipped by incremental refresh) do not tell whether the deployment drifted
+                if (planned && (refresh == null ? doTerraformRefresh : refresh.isRefresh())) deproxied(entity).pollCompleted(succeeded);
+                final Long connectTimeAfter = entity.sensors().get(SSH_CONNECT_TIME);
+                if (connectTimeAfter != null) {
+                    entity.sensors().set(SSH_CONNECT_TIME_LAST_POLL, connectTimeAfter - (connectTime == null ? 0 : connectTime));
+                }
+            }
             return null;
         }
+
+        /**
+         * @param refresh what to refresh, from {@link TerraformConfigurationImpl#nextRefresh(boolean)}
+         */
+        private void poll(IncrementalRefresh.Run refresh) {
+            if (refresh != null && refresh.getKind() == IncrementalRefresh.Kind.SKIP) {
+                entity.sensors().set(REFRESH_SCOPE, refresh.toString());
+                return;
+            }
+            final boolean doRefresh = refresh == null ? doTerraformRefresh : refresh.isRefresh();
+            final Set<String> targets = refresh == null ? Collections.emptySet() : refresh.getTargets();
+
+            final ParallelismController parallelismController = entity.getPlanParallelism();
+            final int parallelism = getDriver().chooseParallelism(parallelismController);
+            final long start = System.currentTimeMillis();
+            // set as the plan log is read, so known even if terraform then fails the plan
+            final AtomicReference<Boolean> throttled = new AtomicReference<>(false);
+            final Map<String, Object> planStatus;
+            final Map<String, Object> outputs;
+            try {
+                if (Boolean.TRUE.equals(entity.getConfig(TERRAFORM_POLL_PIPELINED))) {
+                    // one command for the whole poll; the state and outputs are taken from it rather than read again
+                    outputs = getDriver().runPipelinedPollTask(doRefresh, targets, parallelism);
+                    planStatus = (Map<String, Object>) outputs.get(TerraformDriver.POLL_PLAN);
+                } else {
+                    outputs = null;
+                    // the plan log is parsed as terraform writes it
+                    planStatus = getDriver().runJsonPlanTask(doRefresh, targets, parallelism, in -> {
+                        final Map<String, Object> parsed = StateParser.parsePlanLogEntries(in);
+                        throttled.set(parsed.containsKey(PLAN_THROTTLED));
+                        return parsed;
+                    });
+                }
+                throttled.set(planStatus.containsKey(PLAN_THROTTLED));
+            } catch (RuntimeException e) {
+                deproxied(entity).recordTerraformRun(PLAN_DURATION, parallelismController, parallelism, System.currentTimeMillis() - start,
+                        throttled.get() || ParallelismController.isThrottling(Exceptions.collapseText(e)));
+                throw e;
+            }
+            if (refresh == null || refresh.getKind() == IncrementalRefresh.Kind.FULL || throttled.get()) {
+                deproxied(entity).recordTerraformRun(PLAN_DURATION, parallelismController, parallelism, System.currentTimeMillis() - start, throttled.get());
+            } else {
+                // not comparable with the durations of full plans, which choose the parallelism
+                entity.sensors().set(PLAN_DURATION, System.currentTimeMillis() - start);
+            }
+            deproxied(entity).refreshCompleted(refresh, planStatus);
+
+            if (outputs != null) {
+                entity.sensors().set(PLAN, new PlanProcessingFunction(entity, (String) outputs.get(TerraformDriver.POLL_STATE)).process(planStatus));
+                entity.sensors().set(OUTPUT, new OutputSuccessFunction(entity).apply((String) outputs.get(TerraformDriver.POLL_OUTPUT)));
+                return;
+            }
+            entity.sensors().set(PLAN, new PlanProcessingFunction(entity).process(planStatus));
+            deproxied(entity).refreshOutput(false);
+        }
     }
 
     private String refreshOutput(boolean refresh) {
@@ -275,16 +583,38 @@ public class TerraformConfigurationImpl extends SoftwareProcessImpl implements T
 
     private static final class PlanProcessingFunction implements Function<String, Map<String, Object>>  {
         private final TerraformConfiguration entity;
+        private final String pulledState;
 
         public PlanProcessingFunction(TerraformConfiguration entity) {
+            this(entity, null);
+        }
+
+        /**
+         * @param pulledState the state pulled after the plan, if it has been already; otherwise it is pulled when needed
+         */
+        public PlanProcessingFunction(TerraformConfiguration entity, String pulledState) {
             this.entity = entity;
+            this.pulledState = pulledState;
         }
 
         @Nullable
         @Override
         public Map<String, Object> apply(@Nullable String tfPlanJson) {
+            final Map<String, Object> tfPlanStatus;
+            try {
+                tfPlanStatus = StateParser.parsePlanLogEntries(tfPlanJson);
+            } catch (Exception e) {
+                LOG.error("Unable to process terraform plan", e);
+                throw Exceptions.propagate(e);
+            }
+            return process(tfPlanStatus);
+        }
+
+        /**
+         * @param tfPlanStatus the plan log entries, as parsed by {@link StateParser#parsePlanLogEntries(String)}
+         */
+        public Map<String, Object> process(Map<String, Object> tfPlanStatus) {
             try {
-                Map<String, Object> tfPlanStatus = StateParser.parsePlanLogEntries(tfPlanJson);
                 boolean driftChanged = false;
                 if (entity.sensors().getAll().containsKey(PLAN) && entity.sensors().get(PLAN).containsKey(RESOURCE_CHANGES) &&
                         !entity.sensors().get(PLAN).get(RESOURCE_CHANGES).equals(tfPlanStatus.get(RESOURCE_CHANGES))) {
@@ -302,7 +632,7 @@ public class TerraformConfigurationImpl extends SoftwareProcessImpl implements T
                     ServiceStateLogic.updateMapSensorEntry(entity, Attributes.SERVICE_PROBLEMS, "TF-ERROR", Entities.REMOVE);
                     ((EntityInternal)entity).sensors().remove(Sensors.newSensor(Object.class, "compliance.drift"));
                     ((EntityInternal)entity).sensors().remove(Sensors.newSensor(Object.class, "tf.plan.changes"));
-                    deproxied(entity).updateDeploymentState();
+                    deproxied(entity).updateDeploymentState(pulledState);
 
                 } else if (TerraformConfiguration.TerraformStatus.ERROR.equals(tfPlanStatus.get(PLAN_STATUS))) {
                     LOG.debug("Setting problem because "+"state is "+tfPlanStatus);
@@ -317,13 +647,14 @@ public class TerraformConfigurationImpl extends SoftwareProcessImpl implements T
                     entity.sensors().set(DRIFT_STATUS, (TerraformStatus) tfPlanStatus.get(PLAN_STATUS));
                     if (tfPlanStatus.containsKey(RESOURCE_CHANGES)) {
                         ServiceStateLogic.updateMapSensorEntry(entity, Attributes.SERVICE_PROBLEMS, "TF-ASYNC", "Resources no longer match initial plan. Invoke 'apply' to synchronize configuration and infrastructure.");
-                        deproxied(entity).updateDeploymentState(); // we are updating the resources anyway, because we still need to inspect our infrastructure
+                        deproxied(entity).updateDeploymentState(pulledState); // we are updating the resources anyway, because we still need to inspect our infrastructure
                         updateResourceStates(tfPlanStatus);
                     } else {
                         ServiceStateLogic.updateMapSensorEntry(entity, Attributes.SERVICE_PROBLEMS, "TF-ASYNC", "Outputs no longer match initial plan.This is not critical as the infrastructure is not affected. However you might want to invoke 'apply'.");
                     }
                     entity.sensors().set(Sensors.newSensor(Object.class, "compliance.drift"), tfPlanStatus);
-                    entity.sensors().set(Sensors.newSensor(Object.class, "tf.plan.changes"), entity.getDriver().runPlanTask());
+                    // rendered from the plan already made, rather than planning again for it
+                    entity.sensors().set(Sensors.newSensor(Object.class, "tf.plan.changes"), PlanSummary.render(deproxied(entity).getPlanModel(), tfPlanStatus));
                 } else {
                     LOG.debug("No action because "+"state is "+tfPlanStatus);
                 }
@@ -331,6 +662,7 @@ public class TerraformConfigurationImpl extends SoftwareProcessImpl implements T
                 if (driftChanged || !entity.sensors().getAll().containsKey(DRIFT_STATUS) || !entity.sensors().get(DRIFT_STATUS).equals(tfPlanStatus.get(PLAN_STATUS))) {
                     entity.sensors().set(DRIFT_STATUS, (TerraformStatus) tfPlanStatus.get(PLAN_STATUS));
                 }
+                updateDriftedAttributes(deproxied(entity).getPlanModel());
                 deproxied(entity).lastCommandOutputs.put(PLAN.getName(), tfPlanStatus);
                 return tfPlanStatus;
 
@@ -354,6 +686,25 @@ public class TerraformConfigurationImpl extends SoftwareProcessImpl implements T
             }
         }
 
+        /**
+         * Publishes on each resource the attributes which drifted according to the plan, or clears them if it did not drift.
+         * Nothing is changed if the plan could not be rendered.
+         */
+        private void updateDriftedAttributes(PlanModel planModel) {
+            if (planModel == null) {
+                return;
+            }
+            entity.getChildren().stream().filter(c -> c instanceof ManagedResource).forEach(c -> {
+                final PlanModel.ResourceChange drift = planModel.getResourceDrift(c.config().get(TerraformResource.ADDRESS));
+                final List<AttributeDiff.Difference> differences = drift == null ? Collections.emptyList() : AttributeDiff.between(drift.change);
+                if (!differences.isEmpty()) {
+                    c.sensors().set(ManagedResource.DRIFTED_ATTRIBUTES, AttributeDiff.toSensorValue(differences));
+                } else if (c.sensors().get(ManagedResource.DRIFTED_ATTRIBUTES) != null) {
+                    ((EntityInternal) c).sensors().remove(ManagedResource.DRIFTED_ATTRIBUTES);
+                }
+            });
+        }
+
         private void checkAndUpdateResource(Entity c) {
             if (!c.sensors().get(RESOURCE_STATUS).equals("changed") && !c.getParent().sensors().get(DRIFT_STATUS).equals(TerraformStatus.SYNC)) {
                 c.sensors().set(RESOURCE_STATUS, "changed");
@@ -387,7 +738,7 @@ public class TerraformConfigurationImpl extends SoftwareProcessImpl implements T
                 return "No output is applied.";
             }
             try {
-                Map<String, Map<String, Object>> result = new ObjectMapper().readValue(output, LinkedTreeMap.class);
+                Map<String, Map<String, Object>> result = JsonReaders.OUTPUTS.readValue(output);
                 // remove sensors that were removed in the configuration
                 List<AttributeSensor<?>> toRemove = new ArrayList<>();
                 entity.sensors().getAll().forEach((sK, sV) -> {
@@ -562,8 +913,10 @@ public class TerraformConfigurationImpl extends SoftwareProcessImpl implements T
     @Override
     public void removeDiscoveredResources() {
         Map<String, Map<String,Object>> resources = MutableMap.of();
-        updateResources(resources, this, ManagedResource.class);
-        updateDataResources(resources, DataResource.class);
+        resourceHashes = Collections.emptyMap();
+        lastStateVersion = null;
+        updateResources(resources, this, ManagedResource.class, StateChanges.NONE);
+        updateDataResources(resources, DataResource.class, StateChanges.NONE);
     }
 
     @Override
@@ -590,7 +943,14 @@ public class TerraformConfigurationImpl extends SoftwareProcessImpl implements T
         SimpleProcessTaskFactory<?, ?, String, ?> command = null;
         String ns = null;
         try {
-            if( getDriver()!=null) command = getDriver().newCommandTaskFactory(false, null);
+            final TerraformDriver driver = getDriver();
+            if (driver instanceof TerraformContainerDriver) {
+                // in a job rather than the worker container, which would otherwise be started only to be deleted with the namespace
+                ((TerraformContainerDriver) driver).stopWorker();
+                command = ((TerraformContainerDriver) driver).newJobTaskFactory(false, null);
+            } else if (driver != null) {
+                command = driver.newCommandTaskFactory(false, null);
+            }
             if (command instanceof ContainerTaskFactory) {
                 // delete all files in the volume created for this
                 ns = ((ContainerTaskFactory) command).getNamespace();
@@ -1,5 +1,7 @@
 package io.cloudsoft.terraform;
 
+import com.google.common.io.ByteStreams;
+import io.cloudsoft.terraform.util.TarStreams;
 import org.apache.brooklyn.api.entity.EntityLocal;
 import org.apache.brooklyn.api.location.Location;
 import org.apache.brooklyn.api.mgmt.TaskAdaptable;
@@ -12,18 +14,22 @@ import org.apache.brooklyn.util.core.config.ConfigBag;
 import org.apache.brooklyn.util.core.task.DynamicTasks;
 import org.apache.brooklyn.util.core.task.TaskTags;
 import org.apache.brooklyn.util.core.task.Tasks;
-import org.apache.brooklyn.util.core.task.system.ProcessTaskStub;
-import org.apache.brooklyn.util.core.task.system.ProcessTaskWrapper;
-import org.apache.brooklyn.util.core.task.system.internal.SystemProcessTaskFactory;
+import org.apache.brooklyn.util.core.task.system.ProcessTaskFactory;
 import org.apache.brooklyn.util.exceptions.Exceptions;
-import org.apache.brooklyn.util.os.Os;
 import org.apache.brooklyn.util.text.Strings;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
 
 import static java.lang.String.format;
 
@@ -44,6 +50,8 @@ public class TerraformContainerDriver implements TerraformDriver {
 
     protected final EntityLocal entity;
 
+    private final transient TerraformWorkerPod worker = new TerraformWorkerPod(this);
+
     public TerraformContainerDriver(EntityLocal entity) {
         this.entity = entity;
     }
@@ -51,7 +59,34 @@ public class TerraformContainerDriver implements TerraformDriver {
     private TerraformConfigurationImpl entity() { return (TerraformConfigurationImpl) Entities.deproxy(getEntity()); }
 
     @Override
-    public ContainerTaskFactory<?,String> newCommandTaskFactory(boolean withEnvVars, String command) {
+    public ProcessTaskFactory<String> newCommandTaskFactory(boolean withEnvVars, String command) {
+        if (Boolean.TRUE.equals(getEntity().getConfig(TerraformCommons.KUBE_WORKER_ENABLED))) {
+            ProcessTaskFactory<String> tf = worker.newCommandTaskFactory(withEnvVars ? getShellEnvironment() : null, command);
+            if (tf != null) return tf;
+        }
+        return newJobTaskFactory(withEnvVars, command);
+    }
+
+    /**
+     * Streams the output of commands run in the worker container with {@code kubectl exec}; commands run in jobs
+     * have their output collected by the job task, so are read once they have finished.
+     */
+    @Override
+    public <T> T runStreamingTask(boolean withEnvVars, String command, String summary, Function<InputStream, T> stdoutReader) {
+        if (Boolean.TRUE.equals(getEntity().getConfig(TerraformCommons.KUBE_WORKER_ENABLED))) {
+            List<String> commandLine = worker.newCommandLine(withEnvVars ? getShellEnvironment() : null, command);
+            if (commandLine != null) {
+                return runQueued(Tasks.<T>builder().displayName(summary).body(() ->
+                        StreamingCommand.run(summary, StreamingCommand.process(commandLine, null), stdoutReader)).build());
+            }
+        }
+        return TerraformDriver.super.runStreamingTask(withEnvVars, command, summary, stdoutReader);
+    }
+
+    /**
+     * @return a task factory running the command in a new Kubernetes job
+     */
+    public ContainerTaskFactory<?,String> newJobTaskFactory(boolean withEnvVars, String command) {
         MutableMap<Object, Object> config = MutableMap.of()
                 .add(getEntity().getConfig(TerraformCommons.KUBEJOB_CONFIG))
                 .add(ContainerCommons.TIMEOUT, getEntity().getConfig(TerraformCommons.CONTAINER_TIMEOUT))
@@ -77,7 +112,7 @@ public class TerraformContainerDriver implements TerraformDriver {
     @Override
     public String computeHomeDir(boolean clearCache) {
         if (clearCache || cachedHomeDir==null) {
-            cachedHomeDir = DynamicTasks.queue(newCommandTaskFactory(false, "cd ~ && pwd").returningStdout()).getUnchecked().trim();
+            cachedHomeDir = DynamicTasks.queue(newCommandTaskFactory(false, "cd ~ && pwd")).getUnchecked().trim();
         }
         return cachedHomeDir;
     }
@@ -95,21 +130,97 @@ public class TerraformContainerDriver implements TerraformDriver {
     @Override
     public String getTerraformActiveDir() {
         // volume mount is not unique to entity but directory is
+        return getTerraformWorkspacesDir() + getEntity().getApplicationId()+"/"+getEntity().getId()+"/active/";
+    }
+
+    @Override
+    public String getTerraformWorkspacesDir() {
         Map<String, Object> kubecfg = getEntity().getConfig(TerraformCommons.KUBEJOB_CONFIG);
         String baseDir = null;
         if (kubecfg!=null) baseDir = Strings.toString(kubecfg.get(ContainerCommons.WORKING_DIR.getName()));
         if (baseDir==null) baseDir = ".";
         baseDir = Strings.removeAllFromEnd(baseDir, "/", "\\") + "/";
-        baseDir += "brooklyn-terraform/"+getEntity().getApplicationId()+"/"+getEntity().getId()+"/active/";
-        return baseDir;
+        return baseDir + "brooklyn-terraform/";
     }
 
     @Override
     public void copyTo(InputStream tfStream, String target) {
-        File f = Os.writeToTempFile(tfStream, "terraform-" + getEntity().getId(), "dat");
-        ContainerTaskFactory<?, String> cf = newCommandTaskFactory(false, "sleep 120");
+        copyTo(Collections.singletonMap(target, tfStream));
+    }
+
+    /**
+     * Sends all the files as one tar archive to the standard input of {@code tar} in a single container, with {@code kubectl exec};
+     * the worker container if there is one, otherwise a container started for the copy.
+     */
+    @Override
+    public void copyTo(Map<String, InputStream> files) {
+        if (files.isEmpty()) return;
+        Map<String, byte[]> absolute = new LinkedHashMap<>();
+        Map<String, byte[]> relative = new LinkedHashMap<>();
+        files.forEach((target, stream) -> {
+            try (InputStream in = stream) {
+                (target.startsWith("/") ? absolute : relative).put(target, ByteStreams.toByteArray(in));
+            } catch (IOException e) {
+                throw Exceptions.propagateAnnotated("Cannot read data to copy to "+target, e);
+            }
+        });
+        String summary = files.size() == 1 ? "Copying data to " + files.keySet().iterator().next() : "Copying " + files.size() + " files";
+
+        ContainerTaskResult ctr = Boolean.TRUE.equals(getEntity().getConfig(TerraformCommons.KUBE_WORKER_ENABLED)) ? worker.getStarted() : null;
+        if (ctr != null) {
+            runQueued(Tasks.create(summary, () -> extract(ctr, absolute, relative)));
+            return;
+        }
+
+        ContainerTaskFactory<?, String> cf = newJobTaskFactory(false, "sleep 120");
         TaskAdaptable<String> tc = Entities.submit(getEntity(), cf
                 .summary("sleeping container to allow files to be copied").newTask());
+        try {
+            ContainerTaskResult sleeping = waitForContainerStarted(tc, summary.toLowerCase());
+            runQueued(Tasks.create(summary, () -> extract(sleeping, absolute, relative)));
+        } finally {
+            ContainerTaskResult result = (ContainerTaskResult) TaskTags.getTagsFast(tc.asTask()).stream().filter(x -> x instanceof ContainerTaskResult).findAny().orElse(null);
+            if (result!=null && result.getKubeJobName()!=null) {
+                // deleting a job terminates the containers, but sometimes (eg Docker Desktop) this is not immediate, and can take 20s (!)
+                Entities.submit(getEntity(), cf.newDeleteJobTask(result.getKubeJobName()).allowingNonZeroExitCode().summary("cancel sleeping container used for file copy"));
+            }
+        }
+    }
+
+    private void extract(ContainerTaskResult ctr, Map<String, byte[]> absolute, Map<String, byte[]> relative) {
+        // absolute paths are archived without their leading slash, so they are extracted from the root; others from the working directory
+        if (!absolute.isEmpty()) extract(ctr, absolute, "-C /");
+        if (!relative.isEmpty()) extract(ctr, relative, "");
+    }
+
+    private void extract(ContainerTaskResult ctr, Map<String, byte[]> files, String tarOptions) {
+        String command = "kubectl exec -i -n " + ctr.getNamespace() + " " + ctr.getKubePodName() + " -- tar xf - " + tarOptions;
+        try {
+            Process process = new ProcessBuilder(command.trim().split(" +")).redirectErrorStream(true).start();
+            CompletableFuture<byte[]> output = CompletableFuture.supplyAsync(() -> {
+                try (InputStream in = process.getInputStream()) {
+                    return ByteStreams.toByteArray(in);
+                } catch (IOException e) {
+                    throw Exceptions.propagate(e);
+                }
+            });
+            try (OutputStream stdin = process.getOutputStream()) {
+                TarStreams.write(stdin, files);
+            }
+            int exitCode = process.waitFor();
+            if (exitCode != 0) {
+                throw new IllegalStateException("Copying to " + files.keySet() + " failed, exit code " + exitCode + ": "
+                        + new String(output.get(), StandardCharsets.UTF_8).trim());
+            }
+        } catch (Exception e) {
+            throw Exceptions.propagateAnnotated("Error copying to " + files.keySet(), e);
+        }
+    }
+
+    /**
+     * @return the result of the container task, once its container has started and its pod is known
+     */
+    static ContainerTaskResult waitForContainerStarted(TaskAdaptable<String> tc, String purpose) {
         ContainerTaskResult ctr = (ContainerTaskResult) TaskTags.getTagsFast(tc.asTask()).stream().filter(x -> x instanceof ContainerTaskResult).findAny().orElseThrow(() -> new IllegalStateException("Cannot find namespace result on task " + tc));
 
         synchronized (ctr) {
@@ -121,26 +232,10 @@ public class TerraformContainerDriver implements TerraformDriver {
                 }
             }
         }
-        if (tc.asTask().isDone()) throw new IllegalStateException("Container for file upload failed prematurely, when copying to "+target);
-
-        String namespace = ctr.getNamespace();
-        String pod = ctr.getKubePodName();
-        if (Strings.isBlank(namespace) || Strings.isBlank(pod)) throw new IllegalStateException("Unable to get pod name from task when copying to "+target);
-
-        // https://medium.com/@nnilesh7756/copy-directories-and-files-to-and-from-kubernetes-container-pod-19612fa74660
-        ProcessTaskWrapper<Object> t = DynamicTasks.queue(new SystemProcessTaskFactory.ConcreteSystemProcessTaskFactory<String>(
-                "kubectl cp " + f.getAbsolutePath() + " " + namespace + "/" + pod + ":" + target)
-                .summary("Copying data to " + target)
-                .returning(ProcessTaskStub.ScriptReturnType.STDOUT_STRING)
-                .requiringExitCodeZero().newTask());
-        t.block();
-        f.delete();
-        ContainerTaskResult result = (ContainerTaskResult) TaskTags.getTagsFast(tc.asTask()).stream().filter(x -> x instanceof ContainerTaskResult).findAny().orElse(null);
-        if (result!=null && result.getKubeJobName()!=null) {
-            // deleting a job terminates the containers, but sometimes (eg Docker Desktop) this is not immediate, and can take 20s (!)
-            Entities.submit(getEntity(), cf.newDeleteJobTask(result.getKubeJobName()).allowingNonZeroExitCode().summary("cancel sleeping container used for file copy"));
-        }
-        t.get();
+        if (tc.asTask().isDone()) throw new IllegalStateException("Container failed prematurely, when "+purpose);
+
+        if (Strings.isBlank(ctr.getNamespace()) || Strings.isBlank(ctr.getKubePodName())) throw new IllegalStateException("Unable to get pod name from task when "+purpose);
+        return ctr;
     }
 
     @Override
@@ -215,7 +310,13 @@ public class TerraformContainerDriver implements TerraformDriver {
         ((TerraformConfiguration)getEntity()).apply();
     }
 
-    @Override public void stop() { TerraformDriver.super.stop(); }
+    @Override public void stop() {
+        try {
+            TerraformDriver.super.stop();
+        } finally {
+            worker.stop();
+        }
+    }
 
     @Override
     public void kill() {
@@ -223,9 +324,17 @@ public class TerraformContainerDriver implements TerraformDriver {
         stop();
     }
 
+    /**
+     * Terminates the worker container, if there is one, e.g. as the entity is destroyed.
+     */
+    void stopWorker() {
+        worker.stop();
+    }
+
     @Override
     public void deleteFilesOnDestroy() {
-        runQueued(newCommandTaskFactory(false, "cd .. && rm -rf active backup").deleteNamespace(true));
+        worker.stop();
+        runQueued(newJobTaskFactory(false, "cd .. && rm -rf active backup").deleteNamespace(true));
     }
 
 }
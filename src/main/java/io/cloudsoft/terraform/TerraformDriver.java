@@ -1,5 +1,10 @@
 package io.cloudsoft.terraform;
 
+import com.google.common.io.ByteStreams;
+import io.cloudsoft.terraform.parser.FramedOutput;
+import io.cloudsoft.terraform.parser.PlanModel;
+import io.cloudsoft.terraform.parser.StateParser;
+import io.cloudsoft.terraform.util.ParallelismController;
 import org.apache.brooklyn.api.entity.Entity;
 import org.apache.brooklyn.api.mgmt.Task;
 import org.apache.brooklyn.api.mgmt.TaskAdaptable;
@@ -20,6 +25,7 @@ import org.apache.brooklyn.util.exceptions.Exceptions;
 import org.apache.brooklyn.util.os.Os;
 import org.apache.brooklyn.util.stream.KnownSizeInputStream;
 import org.apache.brooklyn.util.text.Identifiers;
+import org.apache.brooklyn.util.text.StringEscapes.BashStringEscapes;
 import org.apache.brooklyn.util.text.Strings;
 import org.apache.brooklyn.util.time.Duration;
 import org.apache.brooklyn.util.time.Time;
@@ -27,11 +33,17 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.time.Instant;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.function.Function;
 import java.util.function.Supplier;
 
 import static io.cloudsoft.terraform.TerraformCommons.*;
@@ -43,9 +55,15 @@ public interface TerraformDriver extends SoftwareProcessDriver {
 
     String PLAN_STATUS = "tf.plan.status";
     String PLAN_PROVIDER = "tf.plan.provider";
+    /** name of the provider, where {@link #PLAN_PROVIDER} is {@code UNKNOWN} as it is only known to the provider registry */
+    String PLAN_PROVIDER_NAME = "tf.plan.provider.name";
     String RESOURCE_CHANGES = "tf.resource.changes";
     String PLAN_MESSAGE = "tf.plan.message";
     String PLAN_ERRORS = "tf.errors";
+    String PLAN_THROTTLED = "tf.plan.throttled";
+
+    /** enough of a state file for its version, lineage and serial, which Terraform writes before its outputs and resources */
+    int STATE_HEAD_BYTES = 4096;
 
     public void postLaunch();
 
@@ -78,8 +96,31 @@ public interface TerraformDriver extends SoftwareProcessDriver {
 
     SimpleProcessTaskFactory<?,?,String,?> newCommandTaskFactory(boolean withEnvVars, String command);
 
+    /**
+     * Runs the command as a task from {@link #newCommandTaskFactory(boolean, String)} would, but hands its standard output
+     * to {@code stdoutReader} as it is written, so that it is read while the command runs rather than held in memory
+     * once it has finished. Fails as that task would if the command exits non-zero.
+     *
+     * Here the output is collected and then read; drivers able to stream it override this.
+     */
+    default <T> T runStreamingTask(boolean withEnvVars, String command, String summary, Function<InputStream, T> stdoutReader) {
+        final String stdout = runQueued(newCommandTaskFactory(withEnvVars, command).summary(summary).newTask().asTask());
+        return stdoutReader.apply(new ByteArrayInputStream(stdout.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    default <T> T runStreamingTerraformSubCommand(String terraformSubCommand, String summary, Function<InputStream, T> stdoutReader) {
+        return runStreamingTask(true, makeCommandInTerraformActiveDir(prependTerraformExecutable(terraformSubCommand)), summary, stdoutReader);
+    }
+
     void copyTo(InputStream tfStream, String target);
 
+    /**
+     * Copies the files, by target path; drivers which can copy several files at once override this to do so.
+     */
+    default void copyTo(Map<String, InputStream> files) {
+        files.forEach((target, tfStream) -> copyTo(tfStream, target));
+    }
+
     default String prependTerraformExecutable(String argument) {
         return getTerraformExecutable() + " " + argument;
     }
@@ -94,15 +135,58 @@ public interface TerraformDriver extends SoftwareProcessDriver {
     }
 
     default String planSubcommand(boolean refresh, boolean json) {
+        return planSubcommand(refresh, json, 0);
+    }
+    /**
+     * @param parallelism the {@code -parallelism} of the plan, see {@link #chooseParallelism(ParallelismController)}
+     */
+    default String planSubcommand(boolean refresh, boolean json, int parallelism) {
         return "plan -lock=false -input=false -no-color"
                 + (json ? " -json" : "")
-                + (refresh ? "" : " -refresh=false");
+                + (refresh ? "" : " -refresh=false")
+                + parallelismOption(parallelism);
     }
     default String applySubcommand() {
-        return "apply -no-color -input=false -auto-approve";
+        return applySubcommand(0);
+    }
+    default String applySubcommand(int parallelism) {
+        return "apply -no-color -input=false -auto-approve" + parallelismOption(parallelism);
+    }
+    /**
+     * @return the {@code -parallelism} option, nothing if not positive, so that terraform uses its default
+     */
+    default String parallelismOption(int parallelism) {
+        return parallelism > 0 ? " -parallelism=" + parallelism : "";
+    }
+    /**
+     * Chooses the {@code -parallelism} of a run about to be made, with {@link TerraformCommons#PARALLELISM_ADAPTIVE};
+     * once for the run, which is then recorded with the same value.
+     *
+     * @return the parallelism, 0 if it is not adaptive
+     */
+    default int chooseParallelism(ParallelismController controller) {
+        if (!Boolean.TRUE.equals(getEntity().getConfig(PARALLELISM_ADAPTIVE))) return 0;
+        final Map<String, Map<String, Object>> state = getEntity().sensors().get(TerraformConfiguration.STATE);
+        final int parallelism = controller.choose(state == null ? 0 : state.size());
+        getEntity().sensors().set(TerraformConfiguration.PARALLELISM, parallelism);
+        return parallelism;
+    }
+    default String showPlanSubcommand(String planFile) {
+        return "show -no-color -json " + planFile;
+    }
+    /**
+     * @return the {@code -target} options limiting a plan, and its refresh, to the given resources
+     */
+    default String targetOptions(Collection<String> targets) {
+        final StringBuilder options = new StringBuilder();
+        targets.forEach(address -> options.append(" -target=").append(BashStringEscapes.wrapBash(address)));
+        return options.toString();
     }
     default String applyRefreshOnlySubcommand(String args) {
-        return applySubcommand() + " -refresh-only" + (Strings.isNonBlank(args) ? " "+args : "");
+        return applyRefreshOnlySubcommand(args, 0);
+    }
+    default String applyRefreshOnlySubcommand(String args, int parallelism) {
+        return applySubcommand(parallelism) + " -refresh-only" + (Strings.isNonBlank(args) ? " "+args : "");
     }
 
 
@@ -147,8 +231,27 @@ public interface TerraformDriver extends SoftwareProcessDriver {
         return Os.mergePathsUnix(getTerraformActiveDir(), ".terraform.tfstate.lock.info");
     }
 
+    /**
+     * @return the directory under which are the workspaces of all deployments using the same host or volume, with trailing slash
+     */
+    String getTerraformWorkspacesDir();
+
+    default String getPluginCacheDir() {
+        final String configured = getEntity().getConfig(PLUGIN_CACHE_DIR);
+        return Strings.isNonBlank(configured) ? configured : Os.mergePathsUnix(getTerraformWorkspacesDir(), "terraform-plugin-cache");
+    }
+
     default void runTerraformInitAndVerifyTask() {
-        String initialized = runQueued(taskForTerraformSubCommand(initSubcommand(), "terraform init"));
+        final boolean pluginCache = Boolean.TRUE.equals(getEntity().getConfig(PLUGIN_CACHE_ENABLED));
+        String initialized = runQueued(!pluginCache ? taskForTerraformSubCommand(initSubcommand(), "terraform init")
+                : newCommandTaskFactory(true, makeCommandInTerraformActiveDir(TerraformPluginCache.initCommand(
+                        prependTerraformExecutable(initSubcommand()), getPluginCacheDir(), getTerraformWorkspacesDir(),
+                        getEntity().getConfig(PLUGIN_CACHE_MAX_SIZE_MB) * 1024)))
+                    .summary("terraform init (with shared plugin cache)")
+                    .newTask().asTask());
+        if (pluginCache) {
+            TerraformPluginCache.recordUse(getEntity(), initialized);
+        }
         if (initialized.contains(EMPTY_TF_CFG_WARN)) {
             throw new IllegalStateException("Invalid or missing Terraform configuration: " + initialized);
         }
@@ -158,7 +261,14 @@ public interface TerraformDriver extends SoftwareProcessDriver {
      * @return {@code String} containing json state of the infrastructure
      */
     default String runShowTask() {
-        return runQueued( taskForTerraformSubCommand("show -no-color -json", "terraform show"));
+        return runShowTask(StreamingCommand::readString);
+    }
+
+    /**
+     * @param stateReader reads the json state of the infrastructure as {@code terraform show} writes it
+     */
+    default <T> T runShowTask(Function<InputStream, T> stateReader) {
+        return runStreamingTerraformSubCommand("show -no-color -json", "terraform show", stateReader);
     }
 
     /**
@@ -168,12 +278,78 @@ public interface TerraformDriver extends SoftwareProcessDriver {
         return runQueued( taskForTerraformSubCommand("state pull") );
     }
 
-    // Needed for extracting pure Terraform output for the tf.plan sensor
+    /**
+     * Probes the deployment for what a plan would be made from, see {@link TerraformCommons#TIERED_POLLING_ENABLED}:
+     * a digest of the configuration installed and of the Terraform files in the workspace, the lineage and serial of the
+     * state, and a digest of the {@code TF_VAR_} variables Terraform is run with.
+     *
+     * The lineage and serial come first in the state, so with the local backend they are read from the head of the state file;
+     * otherwise the state is pulled, and read no further. In {@code kube} mode without {@link TerraformCommons#KUBE_WORKER_ENABLED}
+     * the probe is a container job of its own, cheaper than a plan only in that it does not ask the cloud.
+     *
+     * @return a value which changes whenever any of those does
+     */
+    default String runProbeTask() {
+        final String filesDigest = "{ cat " + getConfigurationDigestFilePath() + " 2>/dev/null ; "
+                + "find . -path ./.terraform -prune -o -type f \\( -name '*.tf' -o -name '*.tf.json' -o -name '*.tfvars' -o -name '*.tfvars.json' \\) -print0"
+                + " | LC_ALL=C sort -z | xargs -0 -r sha256sum ; } | sha256sum | cut -d' ' -f1";
+        final String probe = runStreamingTask(true,
+                makeCommandInTerraformActiveDir(filesDigest + " && " + stateHeadCommand()),
+                "terraform configuration digest and state serial", out -> {
+                    try {
+                        // the digest is on the first line, and the state after it
+                        final StringBuilder digest = new StringBuilder();
+                        for (int b; (b = out.read()) >= 0 && b != '\n'; ) digest.append((char) b);
+                        return digest.toString().trim() + " " + StateParser.parseStateVersion(out);
+                    } catch (IOException e) {
+                        throw Exceptions.propagate(e);
+                    }
+                });
+        return probe + " " + TerraformConfigurationDigest.ofVariables(getShellEnvironment());
+    }
+
+    /**
+     * @return a command writing the state, or with the local backend and default workspace only its head, see {@link #runProbeTask()}
+     */
+    default String stateHeadCommand() {
+        return "if [ -f terraform.tfstate ] && [ ! -f .terraform/environment ] && ! grep -qs '\"backend\"' .terraform/terraform.tfstate ; "
+                + "then head -c " + STATE_HEAD_BYTES + " terraform.tfstate ; "
+                + "else " + prependTerraformExecutable("state pull") + " ; fi";
+    }
+
+    /**
+     * @return the human-readable output of {@code terraform plan}
+     * @deprecated since the {@code tf.plan.changes} sensor is rendered from the parsed plan by {@link io.cloudsoft.terraform.parser.PlanSummary},
+     *             nothing here calls this; it plans again, so use {@link #runJsonPlanTask(boolean)} and the plan model instead
+     */
+    @Deprecated
     default String runPlanTask() {
-        return runQueued( taskForTerraformSubCommand(planSubcommand(true, false), "terraform plan (human-readable output)") );
+        return runQueued( taskForTerraformSubCommand(planSubcommand(true, false, chooseParallelism(((TerraformConfiguration) getEntity()).getPlanParallelism())),
+                "terraform plan (human-readable output)") );
     }
 
     default String runJsonPlanTask(boolean doRefresh) {
+        return runJsonPlanTask(doRefresh, StreamingCommand::readString);
+    }
+
+    /**
+     * @param planLogReader reads the json log entries of {@code terraform plan} as it writes them
+     */
+    default <T> T runJsonPlanTask(boolean doRefresh, Function<InputStream, T> planLogReader) {
+        return runJsonPlanTask(doRefresh, Collections.emptySet(), planLogReader);
+    }
+
+    /**
+     * @param targets the addresses of the resources to refresh, if not all, see {@link TerraformCommons#INCREMENTAL_REFRESH_ENABLED}
+     */
+    default <T> T runJsonPlanTask(boolean doRefresh, Collection<String> targets, Function<InputStream, T> planLogReader) {
+        return runJsonPlanTask(doRefresh, targets, chooseParallelism(((TerraformConfiguration) getEntity()).getPlanParallelism()), planLogReader);
+    }
+
+    /**
+     * @param parallelism the {@code -parallelism} of the plan and of the refresh applied with it, see {@link #chooseParallelism(ParallelismController)}
+     */
+    default <T> T runJsonPlanTask(boolean doRefresh, Collection<String> targets, int parallelism, Function<InputStream, T> planLogReader) {
         try {
             if (doRefresh) {
                 // `plan` does not update tf state, it just makes a plan that will include that if needed;
@@ -181,38 +357,141 @@ public interface TerraformDriver extends SoftwareProcessDriver {
                 // thus the following seems the fastest way to do a refresh and get the plan output
 
                 String filename = "../"+Identifiers.makeRandomId(8)+".plan";
-                String planResult = runQueued(newCommandTaskFactory(true,
-                        makeCommandInTerraformActiveDir(
-                                prependTerraformExecutable(planSubcommand(doRefresh /* true */, true) + " -out=" + filename)))
-                        .summary("terraform plan")
-                        .newTask().asTask());
+                T planResult = runStreamingTerraformSubCommand(planSubcommand(doRefresh /* true */, true, parallelism) + targetOptions(targets) + " -out=" + filename,
+                        "terraform plan", planLogReader);
 
-                runQueued(newCommandTaskFactory(true,
+                // the plan is rendered in the same command, so that its details are known without running terraform again;
+                // failing to render it is not fatal, and its JSON, on a single line, is the last line of the output
+                String applyResult = runStreamingTask(true,
                         makeCommandInTerraformActiveDir(
-                                prependTerraformExecutable(applyRefreshOnlySubcommand(filename))
-                                + " && " + "rm "+filename))
-                        .summary("terraform apply -refresh-only (state change) and clean up")
-                        .newTask().asTask());
+                                prependTerraformExecutable(applyRefreshOnlySubcommand(filename, parallelism))
+                                + " && " + "(" + prependTerraformExecutable(showPlanSubcommand(filename)) + " || true)"
+                                + " && " + "rm "+filename),
+                        "terraform apply -refresh-only (state change), render the plan and clean up", StreamingCommand::readString);
+                updatePlanModel(applyResult);
 
                 return planResult;
 
             } else {
                 // -refresh=false doesn't seem to speed up planning much at all (it still needs online access)
-                // but worth doing for good measure
-                return runQueued(taskForTerraformSubCommand(planSubcommand(false, true), "terraform plan (and update resources and drift)"));
+                // but worth doing for good measure; no plan file is written, so there is no model of this plan
+                updatePlanModel(null);
+                return runStreamingTerraformSubCommand(planSubcommand(false, true, parallelism), "terraform plan (and update resources and drift)", planLogReader);
             }
         } catch (Exception e) {
             throw Exceptions.propagateAnnotated("Error running terraform plan (json)", e);
         }
     }
 
+    String POLL_PLAN = "plan";
+    String POLL_REFRESH = "refresh";
+    String POLL_SHOW_PLAN = "show";
+    String POLL_STATE = "state";
+    String POLL_OUTPUT = "output";
+
+    /**
+     * Runs what a poll needs from terraform as one script: the plan as with {@link #runJsonPlanTask(boolean)},
+     * then the state as with {@link #runStatePullTask()} and the outputs as with {@link #runOutputTask(boolean)},
+     * only once the plan has succeeded. The output is split into that of each command as it is read, the plan log
+     * being parsed rather than kept.
+     *
+     * @return the plan log parsed as by {@link StateParser#parsePlanLogEntries(InputStream)} for {@link #POLL_PLAN},
+     * and the output of the others, by {@code POLL_*} name; fails as the commands would if run on their own
+     */
+    default Map<String, Object> runPipelinedPollTask(boolean doRefresh) {
+        return runPipelinedPollTask(doRefresh, Collections.emptySet());
+    }
+
+    default Map<String, Object> runPipelinedPollTask(boolean doRefresh, Collection<String> targets) {
+        return runPipelinedPollTask(doRefresh, targets, chooseParallelism(((TerraformConfiguration) getEntity()).getPlanParallelism()));
+    }
+
+    default Map<String, Object> runPipelinedPollTask(boolean doRefresh, Collection<String> targets, int parallelism) {
+        final FramedOutput framing = FramedOutput.withRandomBoundary();
+        final String filename = "../"+Identifiers.makeRandomId(8)+".plan";
+        final StringBuilder script = new StringBuilder("{ ");
+        final StringBuilder afterPlan = new StringBuilder();
+        if (doRefresh) {
+            script.append(framing.section(POLL_PLAN, prependTerraformExecutable(planSubcommand(true, true, parallelism) + targetOptions(targets) + " -out=" + filename))).append(" ; ");
+            afterPlan.append(framing.section(POLL_REFRESH, "[ -f " + filename + " ] && " + prependTerraformExecutable(applyRefreshOnlySubcommand(filename, parallelism)))).append(" ; ")
+                    .append(framing.section(POLL_SHOW_PLAN, "[ -f " + filename + " ] && " + prependTerraformExecutable(showPlanSubcommand(filename)))).append(" ; ");
+        } else {
+            script.append(framing.section(POLL_PLAN, prependTerraformExecutable(planSubcommand(false, true, parallelism)))).append(" ; ");
+        }
+        afterPlan.append(framing.section(POLL_STATE, prependTerraformExecutable("state pull"))).append(" ; ")
+                .append(framing.section(POLL_OUTPUT, prependTerraformExecutable("output -no-color -json")));
+        script.append(framing.ifSucceeded(POLL_PLAN, afterPlan.toString())).append(" ; ");
+        if (doRefresh) {
+            script.append("rm -f ").append(filename).append(" ; ");
+        }
+        script.append("}");
+
+        final Map<String, FramedOutput.Section<Object>> sections = runStreamingTask(true, makeCommandInTerraformActiveDir(script.toString()),
+                "terraform plan, refresh, state pull and output", out -> {
+                    try {
+                        // only the end of the refresh is kept, for the message should it fail
+                        return framing.<Object>split(out, name -> POLL_PLAN.equals(name) ? StateParser::parsePlanLogEntries
+                                : POLL_REFRESH.equals(name) ? StreamingCommand::readTail : StreamingCommand::readString);
+                    } catch (IOException e) {
+                        throw Exceptions.propagate(e);
+                    }
+                });
+
+        final Map<String, Object> outputs = MutableMap.of();
+        for (String name : doRefresh ? new String[] { POLL_PLAN, POLL_REFRESH, POLL_STATE, POLL_OUTPUT } : new String[] { POLL_PLAN, POLL_STATE, POLL_OUTPUT }) {
+            final FramedOutput.Section<Object> section = sections.get(name);
+            if (section == null || !section.isSuccess()) {
+                final Object output = section == null ? null : section.getOutput();
+                throw new IllegalStateException("Error running terraform " + name + " in poll of " + getEntity()
+                        + (section == null ? ": not run" : ", exit code " + section.getExitCode() + ": "
+                                + Strings.maxlenWithEllipsis(String.valueOf(output instanceof Map ? ((Map<?, ?>) output).get(PLAN_ERRORS) : output), 1024)));
+            }
+            outputs.put(name, section.getOutput());
+        }
+        // as when run on its own, failing to render the plan is not fatal
+        final FramedOutput.Section<Object> showPlan = sections.get(POLL_SHOW_PLAN);
+        updatePlanModel(showPlan != null && showPlan.isSuccess() ? (String) showPlan.getOutput() : null);
+        return outputs;
+    }
+
+    /**
+     * Keeps the model of the plan rendered at the end of {@code output} on the entity, see {@link TerraformConfigurationImpl#getPlanModel()}.
+     */
+    default void updatePlanModel(String output) {
+        PlanModel planModel = null;
+        final String trimmed = Strings.isBlank(output) ? "" : output.trim();
+        final String showPlan = trimmed.substring(trimmed.lastIndexOf('\n') + 1).trim();
+        if (showPlan.startsWith("{")) {
+            try {
+                planModel = StateParser.parsePlan(showPlan);
+            } catch (Exception e) {
+                Exceptions.propagateIfFatal(e);
+                LOG.debug("Unable to read the plan rendered for "+getEntity()+" (ignoring): "+e);
+            }
+        }
+        ((TerraformConfigurationImpl) Entities.deproxy(getEntity())).setPlanModel(planModel);
+    }
+
     default String runOutputTask(boolean doRefresh) {
         if (doRefresh) DynamicTasks.queue(refreshTaskWithName("Refresh state to gather output", false));
         return runQueued( taskForTerraformSubCommand("output -no-color -json", "terraform output") );
     }
 
     default void runApplyTask() {
-        runQueued(taskForTerraformSubCommand(applySubcommand(), "terraform apply"));
+        final ParallelismController parallelismController = ((TerraformConfiguration) getEntity()).getApplyParallelism();
+        final int parallelism = chooseParallelism(parallelismController);
+        final long start = System.currentTimeMillis();
+        boolean throttled = false;
+        try {
+            runQueued(taskForTerraformSubCommand(applySubcommand(parallelism), "terraform apply"));
+        } catch (RuntimeException e) {
+            throttled = ParallelismController.isThrottling(Exceptions.collapseText(e));
+            throw e;
+        } finally {
+            final TerraformConfigurationImpl entity = (TerraformConfigurationImpl) Entities.deproxy(getEntity());
+            entity.recordTerraformRun(TerraformConfiguration.APPLY_DURATION, parallelismController, parallelism, System.currentTimeMillis() - start, throttled);
+            entity.requestFullRefresh();
+        }
         getEntity().sensors().set(TerraformConfiguration.CONFIGURATION_APPLIED, Instant.now());
         // previously removed children here, but (1) there might be children we shouldn't remove; and (2) the synch should take care of that
         // now _caller_ should force a new plan instead
@@ -279,6 +558,8 @@ public interface TerraformDriver extends SoftwareProcessDriver {
         final String backupPath = activePath + "../backup/";
 
         runQueued( newCommandTaskFactory(false, String.join(" ; ",
+                // the files installed are about to change, so the digest of those installed no longer holds
+                "rm -f "+getConfigurationDigestFilePath(),
                 "mkdir -p "+activePath,
                 "rm -rf "+backupPath,
                 "mkdir -p "+backupPath,
@@ -295,52 +576,94 @@ public interface TerraformDriver extends SoftwareProcessDriver {
      * If a `terraform.tfvars` file is present in the bundle is copied in the terraform workspace
      */
     default void copyTfVars(){
+        final Map<String, InputStream> files = new LinkedHashMap<>();
+        addTfVars(files);
+        copyTo(files);
+    }
+    /**
+     * If extra templates contents is specified, create those
+     */
+    default void copyTemplatesContents(){
+        final Map<String, InputStream> files = new LinkedHashMap<>();
+        addTemplatesContents(files);
+        copyTo(files);
+    }
+
+    /**
+     * Adds the `terraform.tfvars` file, if there is one, to the files to copy, see {@link #copyTo(Map)}
+     */
+    default void addTfVars(Map<String, InputStream> files){
         final String varsURL = getEntity().getConfig(TFVARS_FILE_URL);
         if (Strings.isNonBlank(varsURL)) {
-            InputStream tfStream =  new ResourceUtils(getEntity()).getResourceFromUrl(varsURL);
-            copyTo(tfStream, getTfVarsFilePath());
+            files.put(getTfVarsFilePath(), new ResourceUtils(getEntity()).getResourceFromUrl(varsURL));
         }
     }
     /**
-     * If extra templates contents is specified, create those
+     * Adds the extra templates, resolved, to the files to copy, see {@link #copyTo(Map)}
      */
-    default void copyTemplatesContents(){
+    default void addTemplatesContents(Map<String, InputStream> files){
         final Map<String, String> templates = getEntity().getConfig(EXTRA_TEMPLATES_CONTENTS);
         if (templates!=null && !templates.isEmpty()) {
-            DynamicTasks.queue("Install extra TF files", () -> {
-                templates.forEach((targetPath, template) -> {
-                    DynamicTasks.queue("Install "+targetPath, () -> {
-                        String remotePath;
-                        if (Os.isAbsolutish(targetPath)) {
-                            if (targetPath.startsWith("~/")) {
-                                remotePath = Os.mergePathsUnix(computeHomeDir(false), targetPath.substring(2));
-                            } else {
-                                remotePath = targetPath;
-                            }
-                        } else {
-                            remotePath = Os.mergePathsUnix(getTerraformActiveDir(), targetPath);
-                        }
-
-                        String templateResolved = TemplateProcessor.processTemplateContents(template, this, null);
-                        LOG.debug("Installing template to "+remotePath+":\n"+templateResolved);
-
-                        InputStream tfStream = new ByteArrayInputStream(templateResolved.getBytes());
-                        copyTo(tfStream, remotePath);
-                    });
-                });
+            templates.forEach((targetPath, template) -> {
+                String remotePath;
+                if (Os.isAbsolutish(targetPath)) {
+                    if (targetPath.startsWith("~/")) {
+                        remotePath = Os.mergePathsUnix(computeHomeDir(false), targetPath.substring(2));
+                    } else {
+                        remotePath = targetPath;
+                    }
+                } else {
+                    remotePath = Os.mergePathsUnix(getTerraformActiveDir(), targetPath);
+                }
+
+                String templateResolved = TemplateProcessor.processTemplateContents(template, this, null);
+                LOG.debug("Installing template to "+remotePath+":\n"+templateResolved);
+
+                files.put(remotePath, new ByteArrayInputStream(templateResolved.getBytes()));
             });
         }
     }
 
+    default String getConfigurationDigestFilePath() {
+        return Os.mergePathsUnix(getTerraformActiveDir(), "../configuration.digest");
+    }
+
+    /**
+     * Copies the configuration, tfvars and extra templates and runs {@code terraform init}; unless the workspace
+     * has been initialized already with the same files, as told by a digest of their contents and of the dependency lock file
+     * written by {@code init}, in which case nothing is done.
+     */
     default void customize() {
         final String cfgPath = getConfigurationFilePath();
 
+        // copy terraform configuration file or zip, the tfvars and the extra templates, all in one go where the driver can
+        final Map<String, byte[]> files = runQueued(Tasks.<Map<String, byte[]>>builder().displayName("Read configuration file(s)").body(() -> {
+            final Map<String, InputStream> streams = new LinkedHashMap<>();
+            streams.put(cfgPath, getConfiguration());
+            addTfVars(streams);
+            addTemplatesContents(streams);
+            final Map<String, byte[]> contents = new LinkedHashMap<>();
+            for (Map.Entry<String, InputStream> stream : streams.entrySet()) {
+                try (InputStream in = stream.getValue()) {
+                    contents.put(stream.getKey(), ByteStreams.toByteArray(in));
+                }
+            }
+            return contents;
+        }).build());
+        final String digest = TerraformConfigurationDigest.of(files);
+        final String installed = runQueued(newCommandTaskFactory(false,
+                TerraformConfigurationDigest.checkCommand(getTerraformActiveDir(), getConfigurationDigestFilePath(), digest))
+                .summary("Check whether the configuration is installed already"));
+        if (installed != null && TerraformConfigurationDigest.UNCHANGED.equals(installed.trim())) {
+            LOG.info("Configuration of " + getEntity() + " is unchanged since it was installed (digest " + digest + "); not installing it again");
+            return;
+        }
+
         DynamicTasks.queue(Tasks.create("Copy configuration file(s)", () -> {
             moveConfigurationFilesToBackupDir();
-            // copy terraform configuration file or zip
-            copyTo(getConfiguration(), cfgPath);
-            copyTfVars();
-            copyTemplatesContents();
+            final Map<String, InputStream> streams = new LinkedHashMap<>();
+            files.forEach((target, contents) -> streams.put(target, new ByteArrayInputStream(contents)));
+            copyTo(streams);
         }));
 
         DynamicTasks.queue(newCommandTaskFactory(true,
@@ -350,6 +673,9 @@ public interface TerraformDriver extends SoftwareProcessDriver {
                 .summary("Preparing configuration (unzip if necessary)..."));
 
         runTerraformInitAndVerifyTask();
+        DynamicTasks.queue(newCommandTaskFactory(false,
+                TerraformConfigurationDigest.recordCommand(getTerraformActiveDir(), getConfigurationDigestFilePath(), digest))
+                .summary("Record the digest of the installed configuration"));
         DynamicTasks.waitForLast();
     }
 
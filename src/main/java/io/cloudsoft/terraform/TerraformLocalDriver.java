@@ -4,6 +4,7 @@ import org.apache.brooklyn.api.entity.EntityLocal;
 import org.apache.brooklyn.core.entity.BrooklynConfigKeys;
 import org.apache.brooklyn.core.entity.Entities;
 import org.apache.brooklyn.util.core.task.DynamicTasks;
+import org.apache.brooklyn.util.core.task.Tasks;
 import org.apache.brooklyn.util.core.task.system.ProcessTaskFactory;
 import org.apache.brooklyn.util.core.task.system.internal.SystemProcessTaskFactory;
 import org.apache.brooklyn.util.exceptions.Exceptions;
@@ -19,6 +20,7 @@ import java.nio.file.Files;
 import java.nio.file.StandardCopyOption;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Function;
 
 public class TerraformLocalDriver extends TerraformOnMachineDriver implements TerraformDriver {
     private static final Logger LOG = LoggerFactory.getLogger(TerraformLocalDriver.class);
@@ -37,6 +39,13 @@ public class TerraformLocalDriver extends TerraformOnMachineDriver implements Te
         return tf;
     }
 
+    @Override
+    public <T> T runStreamingTask(boolean withEnvVars, String command, String summary, Function<InputStream, T> stdoutReader) {
+        final Map<String, String> env = withEnvVars ? getShellEnvironment() : null;
+        return runQueued(Tasks.<T>builder().displayName(summary).body(() ->
+                StreamingCommand.run(summary, StreamingCommand.bash(command, env), stdoutReader)).build());
+    }
+
     @Override
     public void copyTo(InputStream tfStream, String target) {
         try {
@@ -51,6 +51,12 @@ public abstract class TerraformOnMachineDriver extends AbstractSoftwareProcessSs
         return getRunDir() + "/" + "active/";
     }
 
+    @Override
+    public String getTerraformWorkspacesDir() {
+        // the run dir is <base>/apps/<application>/entities/<entity>, see AbstractSoftwareProcessSshDriver
+        return getRunDir() + "/../../../../";
+    }
+
     transient String cachedHomeDir = null;
     @Override
     public String computeHomeDir(boolean clearCache) {
@@ -0,0 +1,112 @@
+package io.cloudsoft.terraform;
+
+import org.apache.brooklyn.api.entity.Entity;
+import org.apache.brooklyn.api.sensor.AttributeSensor;
+
+/**
+ * A provider plugin cache shared by the deployments of a host or volume, see {@link TerraformCommons#PLUGIN_CACHE_ENABLED},
+ * so that {@code terraform init} links the providers it already has rather than downloading them again.
+ *
+ * Terraform does not support concurrent writes to its cache, so {@code init} runs under an exclusive {@code flock} on it
+ * (where {@code flock} is available). After a successful {@code init} each provider used is touched, reported as a hit
+ * or a miss, and, if the cache has grown beyond its size, the least recently used providers are evicted; providers still
+ * linked from a workspace under the shared directory are never evicted, as those workspaces would no longer plan.
+ */
+final class TerraformPluginCache {
+
+    static final String MARKER = "brooklyn-terraform-plugin-cache:";
+
+    private TerraformPluginCache() {
+    }
+
+    /**
+     * @param terraformInit the {@code terraform init} command, run in the terraform active directory
+     * @param cacheDir the shared cache directory
+     * @param workspacesDir the directory under which are the workspaces sharing the cache
+     * @param maxSizeKb size of the cache above which providers are evicted
+     * @return the commands running {@code terraform init} with the cache
+     */
+    static String initCommand(String terraformInit, String cacheDir, String workspacesDir, long maxSizeKb) {
+        final String cache = "\"$__cache\"";
+        return "__cache=" + cacheDir + " ; mkdir -p " + cache + " && ( "
+                + "if command -v flock >/dev/null 2>&1 ; then flock -x 9 ; fi ; "
+                // providers are kept as <hostname>/<namespace>/<type>/<version>/<os_arch>
+                + "__before=$(cd " + cache + " && find . -mindepth 5 -maxdepth 5 | sort) ; "
+                + "TF_PLUGIN_CACHE_DIR=" + cache + " " + terraformInit + " ; __rc=$? ; "
+                + "if [ $__rc -eq 0 ] ; then "
+                +   "for __p in $(cd .terraform/providers 2>/dev/null && find . -mindepth 5 -maxdepth 5 | sort) ; do "
+                +     "[ -d " + cache + "/$__p ] || continue ; "
+                +     "if echo \"$__before\" | grep -qxF \"$__p\" ; then "
+                +       "echo \"" + MARKER + " hit $__p $(du -sk " + cache + "/$__p | cut -f1)\" ; "
+                +     "else echo \"" + MARKER + " miss $__p\" ; fi ; "
+                +     "touch " + cache + "/$__p ; "
+                +   "done ; "
+                +   "__total=$(du -sk " + cache + " | cut -f1) ; "
+                +   "if [ $__total -gt " + maxSizeKb + " ] ; then "
+                +     "__inuse=$(find " + workspacesDir + " -path '*/.terraform/providers/*' -type l -exec readlink -f {} \\; 2>/dev/null) ; "
+                +     "for __p in $(cd " + cache + " && ls -dtr */*/*/*/*) ; do "
+                +       "[ $__total -le " + maxSizeKb + " ] && break ; "
+                +       "echo \"$__inuse\" | grep -qxF \"$(cd " + cache + "/$__p && pwd -P)\" && continue ; "
+                +       "__size=$(du -sk " + cache + "/$__p | cut -f1) ; "
+                +       "rm -rf " + cache + "/$__p && __total=$((__total - __size)) && echo \"" + MARKER + " evicted $__p $__size\" ; "
+                +     "done ; "
+                +   "fi ; "
+                + "fi ; "
+                + "exit $__rc "
+                + ") 9>" + cache + "/.lock";
+    }
+
+    /**
+     * Adds what the output of {@link #initCommand(String, String, String, long)} says of the cache to the sensors of the entity.
+     */
+    static void recordUse(Entity entity, String initOutput) {
+        final Use use = Use.parse(initOutput);
+        add(entity, TerraformConfiguration.PLUGIN_CACHE_HITS, use.hits);
+        add(entity, TerraformConfiguration.PLUGIN_CACHE_MISSES, use.misses);
+        add(entity, TerraformConfiguration.PLUGIN_CACHE_BYTES_SAVED, use.bytesSaved);
+    }
+
+    /**
+     * What one {@code init} made of the cache: the providers found in it and the size of those, and the providers it added.
+     */
+    static final class Use {
+        final long hits;
+        final long misses;
+        final long bytesSaved;
+
+        private Use(long hits, long misses, long bytesSaved) {
+            this.hits = hits;
+            this.misses = misses;
+            this.bytesSaved = bytesSaved;
+        }
+
+        /**
+         * @param initOutput the output of {@link #initCommand(String, String, String, long)}
+         */
+        static Use parse(String initOutput) {
+            long hits = 0, misses = 0, bytesSaved = 0;
+            for (String line : initOutput.split("\n")) {
+                if (!line.startsWith(MARKER)) continue;
+                final String[] words = line.substring(MARKER.length()).trim().split(" ");
+                if ("hit".equals(words[0])) {
+                    hits++;
+                    if (words.length > 2) {
+                        try {
+                            bytesSaved += Long.parseLong(words[2]) * 1024;
+                        } catch (NumberFormatException e) {
+                            // size unknown, the hit still counts
+                        }
+                    }
+                } else if ("miss".equals(words[0])) {
+                    misses++;
+                }
+            }
+            return new Use(hits, misses, bytesSaved);
+        }
+    }
+
+    private static void add(Entity entity, AttributeSensor<Long> sensor, long value) {
+        final Long current = entity.sensors().get(sensor);
+        ((org.apache.brooklyn.api.entity.EntityLocal) entity).sensors().set(sensor, (current == null ? 0 : current) + value);
+    }
+}
@@ -8,6 +8,7 @@ import org.apache.brooklyn.core.entity.Attributes;
 import org.apache.brooklyn.core.entity.Entities;
 import org.apache.brooklyn.entity.software.base.AbstractSoftwareProcessSshDriver;
 import org.apache.brooklyn.location.ssh.SshMachineLocation;
+import org.apache.brooklyn.util.collections.MutableMap;
 import org.apache.brooklyn.util.core.ResourceUtils;
 import org.apache.brooklyn.util.core.task.DynamicTasks;
 import org.apache.brooklyn.util.core.task.Tasks;
@@ -22,10 +23,12 @@ import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.InputStream;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
+import java.util.function.Function;
 
 import static io.cloudsoft.terraform.TerraformConfiguration.TERRAFORM_DOWNLOAD_URL;
 import static io.cloudsoft.terraform.TerraformConfiguration.TERRAFORM_PATH;
@@ -46,9 +49,38 @@ public class TerraformSshDriver extends TerraformOnMachineDriver {
         return tf;
     }
 
+    @Override
+    public <T> T runStreamingTask(boolean withEnvVars, String command, String summary, Function<InputStream, T> stdoutReader) {
+        return runQueued(newStreamingTask(withEnvVars, command, summary, stdoutReader));
+    }
+
+    @Override
+    public Task<String> taskForTerraformSubCommand(String terraformSubCommand, String name) {
+        if (!isSessionReuse()) return super.taskForTerraformSubCommand(terraformSubCommand, name);
+        return newStreamingTask(true, makeCommandInTerraformActiveDir(prependTerraformExecutable(terraformSubCommand)), name, StreamingCommand::readString);
+    }
+
+    protected <T> Task<T> newStreamingTask(boolean withEnvVars, String command, String summary, Function<InputStream, T> stdoutReader) {
+        final Map<String, String> env = withEnvVars ? getShellEnvironment() : Collections.emptyMap();
+        final List<String> commands = Collections.singletonList(command);
+        return Tasks.<T>builder().displayName(summary).body(() -> StreamingCommand.run(summary, (stdout, stderr) -> isSessionReuse()
+                        ? getSessions().execCommands(getMachine(), getEntity(), commands, env, stdout, stderr)
+                        : getMachine().execCommands(MutableMap.of("out", stdout, "err", stderr), summary, commands, env),
+                stdoutReader)).build();
+    }
+
     @Override
     public void copyTo(InputStream tfStream, String target) {
-        getMachine().copyTo(tfStream, target);
+        if (isSessionReuse()) getSessions().copyTo(getMachine(), tfStream, target);
+        else getMachine().copyTo(tfStream, target);
+    }
+
+    protected boolean isSessionReuse() {
+        return !Boolean.FALSE.equals(getEntity().getConfig(TerraformCommons.SSH_SESSION_REUSE));
+    }
+
+    protected TerraformSshSessions getSessions() {
+        return TerraformSshSessions.forMachine(getMachine(), getEntity().getConfig(TerraformCommons.SSH_MAX_SESSIONS));
     }
 
     public String getDefaultTerraformExecutable() {
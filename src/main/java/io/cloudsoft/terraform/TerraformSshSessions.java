@@ -0,0 +1,120 @@
+package io.cloudsoft.terraform;
+
+import com.google.common.collect.MapMaker;
+import org.apache.brooklyn.api.entity.Entity;
+import org.apache.brooklyn.api.entity.EntityLocal;
+import org.apache.brooklyn.location.ssh.SshMachineLocation;
+import org.apache.brooklyn.util.collections.MutableMap;
+import org.apache.brooklyn.util.core.internal.ssh.ShellTool;
+import org.apache.brooklyn.util.core.task.Tasks;
+import org.apache.brooklyn.util.exceptions.Exceptions;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The SSH sessions shared by the Terraform commands run on a machine, see {@link TerraformCommons#SSH_SESSION_REUSE}.
+ *
+ * {@link SshMachineLocation} keeps a pool of connected SSH tools for each set of properties a command is run with; as the
+ * standard output and error of a command are among them, a command run with {@code SshTasks} gets a connection of its
+ * own. Here every command is run with the same, empty, properties, and its streams passed to the tool only, so that they
+ * all take an already authenticated connection from the same pool, opening a channel on it, as {@code copyTo} does.
+ * Connections are kept while used more often than the {@code sshCacheExpiryDuration} of the location (5 minutes by default).
+ *
+ * At most {@link TerraformCommons#SSH_MAX_SESSIONS} commands run at once on a machine, bounding the connections it is
+ * kept open with. The time taken to get a connection, which includes connecting when there was none to reuse, is added
+ * to {@link TerraformConfiguration#SSH_CONNECT_TIME} of the entity running the command.
+ */
+final class TerraformSshSessions {
+
+    /** the sessions by machine; machines are not referenced by their sessions, so they are forgotten with them */
+    private static final Map<SshMachineLocation, TerraformSshSessions> SESSIONS = new MapMaker().weakKeys().makeMap();
+
+    private final Semaphore permits;
+
+    TerraformSshSessions(int maxSessions) {
+        this.permits = new Semaphore(Math.max(1, maxSessions), true);
+    }
+
+    /**
+     * @param maxSessions the number of commands which may run at once, if none has been run on the machine yet
+     */
+    static TerraformSshSessions forMachine(SshMachineLocation machine, int maxSessions) {
+        return SESSIONS.computeIfAbsent(machine, m -> new TerraformSshSessions(maxSessions));
+    }
+
+    /**
+     * Runs the commands in a pooled session, waiting for one if as many as allowed are in use.
+     *
+     * @return the exit code of the commands
+     */
+    int execCommands(SshMachineLocation machine, Entity entity, List<String> commands, Map<String, ?> env,
+                     OutputStream stdout, OutputStream stderr) {
+        return withSession(machine.getAddress().toString(), () -> {
+            final long requested = System.nanoTime();
+            return machine.execSsh(Collections.emptyMap(), (ShellTool tool) -> {
+                addConnectTime(entity, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - requested));
+                return tool.execCommands(MutableMap.of(ShellTool.PROP_OUT_STREAM.getName(), stdout, ShellTool.PROP_ERR_STREAM.getName(), stderr),
+                        commands, env);
+            });
+        });
+    }
+
+    /**
+     * Copies in a pooled session, which {@link SshMachineLocation#copyTo(InputStream, String)} takes from the same pool.
+     */
+    void copyTo(SshMachineLocation machine, InputStream source, String target) {
+        withSession(machine.getAddress().toString(), () -> {
+            machine.copyTo(source, target);
+            return null;
+        });
+    }
+
+    /**
+     * Runs the body holding one of the sessions, waiting for one if as many as allowed are in use.
+     *
+     * @param host what the session is to, as shown while waiting
+     */
+    <T> T withSession(String host, Callable<T> body) {
+        acquire(host);
+        try {
+            return body.call();
+        } catch (Exception e) {
+            throw Exceptions.propagate(e);
+        } finally {
+            permits.release();
+        }
+    }
+
+    private void acquire(String host) {
+        if (permits.tryAcquire()) {
+            return;
+        }
+        try {
+            // streamed commands are run off the task thread, where there is no task to show this on
+            if (Tasks.current() == null) {
+                permits.acquire();
+                return;
+            }
+            Tasks.withBlockingDetails("Waiting for an SSH session to " + host, () -> {
+                permits.acquire();
+                return null;
+            });
+        } catch (Exception e) {
+            throw Exceptions.propagate(e);
+        }
+    }
+
+    private static void addConnectTime(Entity entity, long millis) {
+        synchronized (entity) {
+            final Long current = entity.sensors().get(TerraformConfiguration.SSH_CONNECT_TIME);
+            ((EntityLocal) entity).sensors().set(TerraformConfiguration.SSH_CONNECT_TIME, (current == null ? 0 : current) + millis);
+        }
+    }
+}
@@ -0,0 +1,281 @@
+package io.cloudsoft.terraform;
+
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import org.apache.brooklyn.api.mgmt.Task;
+import org.apache.brooklyn.api.mgmt.TaskAdaptable;
+import org.apache.brooklyn.core.entity.Entities;
+import org.apache.brooklyn.tasks.kubectl.ContainerCommons;
+import org.apache.brooklyn.tasks.kubectl.ContainerTaskFactory;
+import org.apache.brooklyn.tasks.kubectl.ContainerTaskResult;
+import org.apache.brooklyn.util.collections.MutableMap;
+import org.apache.brooklyn.util.core.task.system.ProcessTaskFactory;
+import org.apache.brooklyn.util.core.task.system.internal.SystemProcessTaskFactory;
+import org.apache.brooklyn.util.exceptions.Exceptions;
+import org.apache.brooklyn.util.text.StringEscapes.BashStringEscapes;
+import org.apache.brooklyn.util.time.Duration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A container kept running for an entity in 'kube' mode, see {@link TerraformCommons#KUBE_WORKER_ENABLED}, so that
+ * Terraform commands are run in it with {@code kubectl exec} instead of each waiting for a new job to be scheduled and started.
+ *
+ * The container terminates itself once nothing has run in it for {@link TerraformCommons#KUBE_WORKER_IDLE_TIMEOUT};
+ * every command touches a heartbeat file in it while running. Before a command is handed out the worker is checked, and
+ * started again if its job has ended, if it may be about to time out, or if it has been running for {@link #MAX_AGE};
+ * unless its job is still running commands, each of which leaves a marker in it while running, in which case it is
+ * replaced once they have finished.
+ *
+ * The environment of the commands, which holds credentials and {@code TF_VAR_} values, is written to a file in the
+ * container through the standard input of {@code kubectl exec}, and read from there by the commands, so that it is never
+ * on a command line.
+ */
+class TerraformWorkerPod {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TerraformWorkerPod.class);
+
+    private static final String HEARTBEAT_FILE = "/tmp/brooklyn-terraform-worker.heartbeat";
+    static final String ENV_FILE = "/tmp/brooklyn-terraform-worker.env";
+    /** holds a file named by the process id of each command running */
+    private static final String RUNNING_DIR = "/tmp/brooklyn-terraform-worker.running";
+    /** how often a running command touches the heartbeat file */
+    private static final Duration HEARTBEAT_PERIOD = Duration.seconds(15);
+    /** how long before the idle timeout a worker is no longer used, allowing for the time to reach it */
+    private static final Duration IDLE_MARGIN = Duration.seconds(30);
+    /** workers are replaced after this long, so that no command runs into the timeout of the worker's own job */
+    static final Duration MAX_AGE = Duration.hours(1);
+    /** after a worker fails to start, commands run in jobs for this long before another worker is tried */
+    private static final Duration RETRY_AFTER_FAILURE = Duration.minutes(5);
+
+    private final TerraformContainerDriver driver;
+
+    private TaskAdaptable<String> workerTask;
+    private ContainerTaskResult worker;
+    private long startedAt;
+    private long lastUsedAt;
+    private long failedAt;
+    /** digest of the environment last written to the worker, null if none was */
+    private String envWritten;
+
+    TerraformWorkerPod(TerraformContainerDriver driver) {
+        this.driver = driver;
+    }
+
+    /**
+     * @return a task factory running the command in the worker, started if needed; null if it could not be started,
+     * in which case the command should be run in a job of its own
+     */
+    synchronized ProcessTaskFactory<String> newCommandTaskFactory(Map<String, String> env, String command) {
+        final ContainerTaskResult started = getStarted();
+        if (started == null) {
+            return null;
+        }
+        writeEnv(started, env);
+        return new SystemProcessTaskFactory.ConcreteSystemProcessTaskFactory<String>(
+                "kubectl exec -n " + started.getNamespace() + " " + started.getKubePodName() + " -- bash -c " + BashStringEscapes.wrapBash(script(env != null, command)))
+                .requiringZeroAndReturningStdout();
+    }
+
+    /**
+     * @return the local command line running the command in the worker, started if needed; null if it could not be started
+     */
+    synchronized List<String> newCommandLine(Map<String, String> env, String command) {
+        final ContainerTaskResult started = getStarted();
+        if (started == null) {
+            return null;
+        }
+        writeEnv(started, env);
+        return Arrays.asList("kubectl", "exec", "-n", started.getNamespace(), started.getKubePodName(), "--", "bash", "-c", script(env != null, command));
+    }
+
+    private String script(boolean withEnv, String command) {
+        return script(driver.getTerraformActiveDir(), withEnv, command);
+    }
+
+    /**
+     * @return the script running the command in the directory, which marks it as running and, with {@code withEnv},
+     * reads its environment from {@link #ENV_FILE}
+     */
+    static String script(String dir, boolean withEnv, String command) {
+        StringBuilder script = new StringBuilder()
+                .append("touch ").append(HEARTBEAT_FILE).append(" ; ")
+                .append("mkdir -p ").append(RUNNING_DIR).append(" && touch ").append(RUNNING_DIR).append("/$$ ; ")
+                .append("( while sleep ").append(HEARTBEAT_PERIOD.toSeconds()).append(" ; do touch ").append(HEARTBEAT_FILE).append(" ; done ) & ")
+                .append("trap \"kill $! 2>/dev/null ; rm -f ").append(RUNNING_DIR).append("/$$\" EXIT ; ");
+        if (withEnv) {
+            script.append(". ").append(ENV_FILE).append(" && ");
+        }
+        return script.append("mkdir -p ").append(dir).append(" && cd ").append(dir).append(" && ").append(command).toString();
+    }
+
+    /**
+     * Writes the environment to {@link #ENV_FILE} in the worker, readable by its user only, unless it is there already.
+     */
+    private void writeEnv(ContainerTaskResult started, Map<String, String> env) {
+        if (env == null) {
+            return;
+        }
+        final byte[] contents = envFile(env).getBytes(StandardCharsets.UTF_8);
+        final String digest = Hashing.sha256().hashBytes(contents).toString();
+        if (digest.equals(envWritten)) {
+            return;
+        }
+        exec(started, "umask 077 && cat > " + ENV_FILE + ".tmp && mv " + ENV_FILE + ".tmp " + ENV_FILE, contents);
+        envWritten = digest;
+    }
+
+    /**
+     * @return the contents of {@link #ENV_FILE}, exporting the environment when sourced
+     */
+    static String envFile(Map<String, String> env) {
+        final StringBuilder exports = new StringBuilder();
+        env.forEach((name, value) -> exports.append("export ").append(name).append('=').append(BashStringEscapes.wrapBash(value)).append('\n'));
+        return exports.toString();
+    }
+
+    /**
+     * @return the script writing how many of the commands which left a marker in the directory are still running
+     */
+    static String countRunningScript(String runningDir) {
+        // a command killed without running its exit trap leaves its marker behind, so only live processes are counted
+        return "for p in $(ls " + runningDir + " 2>/dev/null) ; do kill -0 $p 2>/dev/null && echo $p ; done | wc -l";
+    }
+
+    /**
+     * @return the number of commands running in the worker, -1 if that could not be told
+     */
+    private int countRunning(ContainerTaskResult started) {
+        try {
+            final String count = exec(started, countRunningScript(RUNNING_DIR), null);
+            return Integer.parseInt(count.trim());
+        } catch (Exception e) {
+            Exceptions.propagateIfFatal(e);
+            LOG.debug("Unable to tell which commands are running in Terraform worker container " + started.getKubePodName() + ": " + e);
+            return -1;
+        }
+    }
+
+    /**
+     * Runs the script in the worker with {@code kubectl exec}, writing {@code stdin}, if any, to its standard input.
+     *
+     * @return the output of the script
+     */
+    private static String exec(ContainerTaskResult started, String script, byte[] stdin) {
+        try {
+            final Process process = new ProcessBuilder("kubectl", "exec", "-i", "-n", started.getNamespace(), started.getKubePodName(), "--", "sh", "-c", script)
+                    .redirectErrorStream(true).start();
+            final CompletableFuture<byte[]> output = CompletableFuture.supplyAsync(() -> {
+                try (InputStream in = process.getInputStream()) {
+                    return ByteStreams.toByteArray(in);
+                } catch (IOException e) {
+                    throw Exceptions.propagate(e);
+                }
+            });
+            try (OutputStream in = process.getOutputStream()) {
+                if (stdin != null) in.write(stdin);
+            }
+            final int exitCode = process.waitFor();
+            final String result = new String(output.get(), StandardCharsets.UTF_8);
+            if (exitCode != 0) {
+                throw new IllegalStateException("Command in Terraform worker container failed, exit code " + exitCode + ": " + result.trim());
+            }
+            return result;
+        } catch (Exception e) {
+            throw Exceptions.propagate(e);
+        }
+    }
+
+    /**
+     * @return the worker, started if needed and marked as used; null if it could not be started
+     */
+    synchronized ContainerTaskResult getStarted() {
+        if (worker == null && System.currentTimeMillis() - failedAt < RETRY_AFTER_FAILURE.toMilliseconds()) {
+            return null;
+        }
+        try {
+            ensureStarted();
+        } catch (Exception e) {
+            Exceptions.propagateIfFatal(e);
+            LOG.warn("Unable to start Terraform worker container for " + driver.getEntity() + ", running commands in jobs for "
+                    + RETRY_AFTER_FAILURE + ": " + e);
+            failedAt = System.currentTimeMillis();
+            return null;
+        }
+        lastUsedAt = System.currentTimeMillis();
+        return worker;
+    }
+
+    private void ensureStarted() {
+        if (worker != null) {
+            final long now = System.currentTimeMillis();
+            final long idleTimeout = driver.getEntity().getConfig(TerraformCommons.KUBE_WORKER_IDLE_TIMEOUT).toMilliseconds();
+            String reason = null;
+            if (workerTask.asTask().isDone()) reason = "its job has ended";
+            else if (now - lastUsedAt > idleTimeout - IDLE_MARGIN.toMilliseconds()) reason = "it has been idle for too long";
+            else if (now - startedAt > MAX_AGE.toMilliseconds()) reason = "it has been running for " + Duration.millis(now - startedAt);
+            if (reason == null) {
+                return;
+            }
+            if (!workerTask.asTask().isDone()) {
+                // a command handed out just before may not have left its marker yet
+                final int running = now - lastUsedAt < IDLE_MARGIN.toMilliseconds() ? 1 : countRunning(worker);
+                if (running > 0) {
+                    LOG.debug("Not replacing Terraform worker container " + worker.getKubePodName() + " for " + driver.getEntity()
+                            + " although " + reason + ", as commands are running in it");
+                    return;
+                }
+            }
+            LOG.debug("Replacing Terraform worker container " + worker.getKubePodName() + " for " + driver.getEntity() + " because " + reason);
+            stop();
+        }
+
+        final long idleSeconds = driver.getEntity().getConfig(TerraformCommons.KUBE_WORKER_IDLE_TIMEOUT).toSeconds();
+        final ContainerTaskFactory<?, String> cf = driver.newJobTaskFactory(false,
+                "touch " + HEARTBEAT_FILE + " ; "
+                + "while [ $(( $(date +%s) - $(stat -c %Y " + HEARTBEAT_FILE + ") )) -lt " + idleSeconds + " ] ; do sleep 5 ; done");
+        cf.configure(MutableMap.of(ContainerCommons.TIMEOUT, driver.getEntity().getConfig(TerraformCommons.CONTAINER_TIMEOUT).add(MAX_AGE)));
+        final TaskAdaptable<String> tc = Entities.submit(driver.getEntity(), cf.summary("Terraform worker container").newTask());
+        final ContainerTaskResult result;
+        try {
+            result = TerraformContainerDriver.waitForContainerStarted(tc, "starting the Terraform worker container");
+        } catch (RuntimeException e) {
+            tc.asTask().cancel(true);
+            throw e;
+        }
+
+        workerTask = tc;
+        worker = result;
+        envWritten = null;
+        startedAt = lastUsedAt = System.currentTimeMillis();
+        LOG.debug("Started Terraform worker container " + result.getNamespace() + "/" + result.getKubePodName() + " for " + driver.getEntity());
+    }
+
+    /**
+     * Terminates the worker, if there is one; it is started again when next needed.
+     */
+    synchronized void stop() {
+        if (workerTask == null) {
+            return;
+        }
+        final Task<String> task = workerTask.asTask();
+        final ContainerTaskResult result = worker;
+        workerTask = null;
+        worker = null;
+        if (result != null && result.getKubeJobName() != null && !task.isDone()) {
+            Entities.submit(driver.getEntity(), driver.newJobTaskFactory(false, "true").newDeleteJobTask(result.getKubeJobName())
+                    .allowingNonZeroExitCode().summary("stop Terraform worker container"));
+        } else if (!task.isDone()) {
+            task.cancel(true);
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package io.cloudsoft.terraform.entity;
 
+import io.cloudsoft.terraform.util.StringPool;
 import org.apache.brooklyn.core.entity.Attributes;
 import org.apache.brooklyn.core.entity.lifecycle.Lifecycle;
 import org.apache.brooklyn.core.sensor.Sensors;
@@ -17,8 +18,8 @@ public class DataResourceImpl extends BasicEntityImpl  implements DataResource {
     @Override
     public boolean refreshSensors(Map<String, Object> resource) {
         resource.forEach((k, v) -> {
-            if (!Objects.equals(sensors().get(Sensors.newSensor(Object.class, "tf." + k)), v)) {
-                sensors().set(Sensors.newSensor(Object.class, "tf." + k), v.toString());
+            if (!Objects.equals(sensors().get(Sensors.newSensor(Object.class, StringPool.prefixed("tf.", k))), v)) {
+                sensors().set(Sensors.newSensor(Object.class, StringPool.prefixed("tf.", k)), StringPool.canonical(v.toString()));
             }
         });
         return true;
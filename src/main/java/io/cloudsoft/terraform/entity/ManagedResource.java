@@ -2,6 +2,7 @@ package io.cloudsoft.terraform.entity;
 
 import org.apache.brooklyn.api.entity.ImplementedBy;
 import org.apache.brooklyn.api.sensor.AttributeSensor;
+import org.apache.brooklyn.core.sensor.BasicAttributeSensor;
 import org.apache.brooklyn.core.sensor.Sensors;
 
 import java.util.Map;
@@ -11,6 +12,10 @@ public interface ManagedResource extends TerraformResource {
 
     AttributeSensor<String> RESOURCE_STATUS = Sensors.newStringSensor("tf.resource.status", "The status of this resource");
 
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    AttributeSensor<Map<String, Map<String,Object>>> DRIFTED_ATTRIBUTES = new BasicAttributeSensor(Map.class, "tf.resource.drift",
+            "The attributes of this resource changed outside Terraform, by path (e.g. 'tags.Owner'), with their values before and after");
+
     boolean refreshSensors(Map<String,Object> resource);
 
     void updateResourceState();
@@ -1,5 +1,6 @@
 package io.cloudsoft.terraform.entity;
 
+import io.cloudsoft.terraform.util.StringPool;
 import org.apache.brooklyn.core.entity.Attributes;
 import org.apache.brooklyn.core.entity.lifecycle.Lifecycle;
 import org.apache.brooklyn.core.entity.lifecycle.ServiceStateLogic;
@@ -18,7 +19,7 @@ public class ManagedResourceImpl extends BasicEntityImpl implements  ManagedReso
 
     protected void connectSensors() {
         Map<String, Object> resourceDetails = this.getConfig(StartableManagedResource.STATE_CONTENTS);
-        resourceDetails.forEach((k,v) -> sensors().set(Sensors.newSensor(Object.class, "tf." + k), v.toString()));
+        resourceDetails.forEach((k,v) -> sensors().set(Sensors.newSensor(Object.class, StringPool.prefixed("tf.", k)), StringPool.canonical(v.toString())));
         if(!resourceDetails.containsKey("resource.status")) {
             sensors().set(RESOURCE_STATUS, "ok"); // the provider doesn't provide any property to let us know the state of the resource
         }
@@ -29,8 +30,8 @@ public class ManagedResourceImpl extends BasicEntityImpl implements  ManagedReso
     @Override
     public boolean refreshSensors(Map<String, Object> resource) {
         resource.forEach((k, v) -> {
-            if (!sensors().get(Sensors.newSensor(Object.class, "tf." + k)).equals(v)){
-                sensors().set(Sensors.newSensor(Object.class, "tf." + k), v.toString());
+            if (!sensors().get(Sensors.newSensor(Object.class, StringPool.prefixed("tf.", k))).equals(v)){
+                sensors().set(Sensors.newSensor(Object.class, StringPool.prefixed("tf.", k)), StringPool.canonical(v.toString()));
             }
         });
         updateResourceState();
@@ -1,6 +1,7 @@
 package io.cloudsoft.terraform.entity;
 
 import com.google.common.collect.ImmutableList;
+import io.cloudsoft.terraform.util.StringPool;
 import org.apache.brooklyn.api.location.Location;
 import org.apache.brooklyn.core.annotation.Effector;
 import org.apache.brooklyn.core.entity.Attributes;
@@ -19,7 +20,7 @@ public class StartableManagedResourceImpl extends ManagedResourceImpl implements
 
     protected void connectSensors() {
         Map<String, Object> resourceDetails = this.getConfig(StartableManagedResource.STATE_CONTENTS);
-        resourceDetails.forEach((k,v) -> sensors().set(Sensors.newSensor(Object.class, "tf." + k), v.toString()));
+        resourceDetails.forEach((k,v) -> sensors().set(Sensors.newSensor(Object.class, StringPool.prefixed("tf.", k)), StringPool.canonical(v.toString())));
         if(!resourceDetails.containsKey("resource.status")) {
             sensors().set(RESOURCE_STATUS, "ok"); // the provider doesn't provide any property to let us know the state of the resource
         }
@@ -31,8 +32,8 @@ public class StartableManagedResourceImpl extends ManagedResourceImpl implements
     @Override
     public boolean refreshSensors(Map<String, Object> resource) {
         resource.forEach((k, v) -> {
-            if (!sensors().get(Sensors.newSensor(Object.class, "tf." + k)).equals(v)){
-                sensors().set(Sensors.newSensor(Object.class, "tf." + k), v.toString());
+            if (!sensors().get(Sensors.newSensor(Object.class, StringPool.prefixed("tf.", k))).equals(v)){
+                sensors().set(Sensors.newSensor(Object.class, StringPool.prefixed("tf.", k)), StringPool.canonical(v.toString()));
             }
         });
 
@@ -0,0 +1,170 @@
+package io.cloudsoft.terraform.parser;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Compares the values of a resource before and after a change, such as those of a {@link PlanModel#getResourceDrift() drift},
+ * attribute by attribute, and tells which attribute paths differ.
+ *
+ * Values are compared as they were read, maps with maps and lists with lists, without turning them into text;
+ * only the values that differ are reported. Maps and lists read from a plan have a hash of their contents (see {@link HashedJson}),
+ * and those with the same hash before and after are not looked into, so comparing takes time in proportion to what changed
+ * rather than to the size of the resource. Values given otherwise are walked in full.
+ * Paths are written like the keys of flattened attributes: {@code tags.Owner}, {@code ingress[0].cidr_blocks[1]}.
+ * Where a value is sensitive, before or after, it is only reported that it changed; where it is only known once applied,
+ * it is reported as {@value #KNOWN_AFTER_APPLY}.
+ */
+public final class AttributeDiff {
+
+    public static final String SENSITIVE_VALUE = "(sensitive value)";
+    public static final String KNOWN_AFTER_APPLY = "(known after apply)";
+
+    private AttributeDiff() {
+    }
+
+    /**
+     * @return the differences between the two, in the order of the attributes before then of those added
+     */
+    public static List<Difference> between(PlanModel.Change change) {
+        if (change == null) {
+            return Collections.emptyList();
+        }
+        final List<Difference> differences = new ArrayList<>();
+        compare("", change.before, change.after, change.beforeSensitive, change.afterSensitive, change.afterUnknown, differences);
+        return differences;
+    }
+
+    /**
+     * @param beforeSensitive which parts of {@code before} are sensitive: {@code true}, or a map or list shaped like the value
+     * @param afterSensitive likewise for {@code after}
+     */
+    public static List<Difference> between(Object before, Object after, Object beforeSensitive, Object afterSensitive) {
+        final List<Difference> differences = new ArrayList<>();
+        compare("", before, after, beforeSensitive, afterSensitive, null, differences);
+        return differences;
+    }
+
+    private static void compare(String path, Object before, Object after, Object beforeSensitive, Object afterSensitive, Object afterUnknown,
+                                List<Difference> differences) {
+        if (Boolean.TRUE.equals(afterUnknown)) {
+            differences.add(new Difference(path, Boolean.TRUE.equals(beforeSensitive) ? SENSITIVE_VALUE : before, KNOWN_AFTER_APPLY));
+            return;
+        }
+        if (before == after || (HashedJson.sameHash(before, after) && !anyTrue(afterUnknown))) {
+            // equal, and none of it only known once applied
+            return;
+        }
+        if (Boolean.TRUE.equals(beforeSensitive) || Boolean.TRUE.equals(afterSensitive)) {
+            if (!Objects.equals(before, after)) {
+                differences.add(new Difference(path, SENSITIVE_VALUE, SENSITIVE_VALUE));
+            }
+        } else if (before instanceof Map && after instanceof Map) {
+            final Map<?, ?> beforeMap = (Map<?, ?>) before, afterMap = (Map<?, ?>) after;
+            for (Map.Entry<?, ?> field : beforeMap.entrySet()) {
+                final Object key = field.getKey();
+                compare(child(path, key), field.getValue(), afterMap.get(key), child(beforeSensitive, key), child(afterSensitive, key),
+                        child(afterUnknown, key), differences);
+            }
+            for (Map.Entry<?, ?> field : afterMap.entrySet()) {
+                final Object key = field.getKey();
+                if (!beforeMap.containsKey(key)) {
+                    compare(child(path, key), null, field.getValue(), child(beforeSensitive, key), child(afterSensitive, key),
+                            child(afterUnknown, key), differences);
+                }
+            }
+            if (afterUnknown instanceof Map) {
+                // attributes only known once applied are left out of the values after
+                for (Map.Entry<?, ?> field : ((Map<?, ?>) afterUnknown).entrySet()) {
+                    final Object key = field.getKey();
+                    if (Boolean.TRUE.equals(field.getValue()) && !afterMap.containsKey(key) && !beforeMap.containsKey(key)) {
+                        differences.add(new Difference(child(path, key), null, KNOWN_AFTER_APPLY));
+                    }
+                }
+            }
+        } else if (before instanceof List && after instanceof List) {
+            final List<?> beforeList = (List<?>) before, afterList = (List<?>) after;
+            for (int i = 0; i < Math.max(beforeList.size(), afterList.size()); i++) {
+                compare(path + "[" + i + "]", i < beforeList.size() ? beforeList.get(i) : null, i < afterList.size() ? afterList.get(i) : null,
+                        child(beforeSensitive, i), child(afterSensitive, i), child(afterUnknown, i), differences);
+            }
+        } else if (!Objects.equals(before, after)) {
+            differences.add(new Difference(path, before, after));
+        }
+    }
+
+    private static boolean anyTrue(Object unknown) {
+        if (unknown instanceof Map) {
+            return ((Map<?, ?>) unknown).values().stream().anyMatch(AttributeDiff::anyTrue);
+        }
+        if (unknown instanceof List) {
+            return ((List<?>) unknown).stream().anyMatch(AttributeDiff::anyTrue);
+        }
+        return Boolean.TRUE.equals(unknown);
+    }
+
+    private static String child(String path, Object key) {
+        return path.isEmpty() ? String.valueOf(key) : path + "." + key;
+    }
+
+    private static Object child(Object sensitive, Object key) {
+        if (sensitive instanceof Map) {
+            return ((Map<?, ?>) sensitive).get(key);
+        }
+        if (sensitive instanceof List && key instanceof Integer) {
+            final List<?> items = (List<?>) sensitive;
+            return (Integer) key < items.size() ? items.get((Integer) key) : null;
+        }
+        return null;
+    }
+
+    /**
+     * @return by path, the value before and after, as published on the {@code tf.resource.drift} sensor of a resource
+     */
+    public static Map<String, Map<String, Object>> toSensorValue(List<Difference> differences) {
+        final Map<String, Map<String, Object>> value = new LinkedHashMap<>();
+        for (Difference difference : differences) {
+            final Map<String, Object> beforeAndAfter = new LinkedHashMap<>();
+            beforeAndAfter.put("before", difference.getBefore());
+            beforeAndAfter.put("after", difference.getAfter());
+            value.put(difference.getPath(), beforeAndAfter);
+        }
+        return value;
+    }
+
+    /**
+     * An attribute path whose value differs, with its value before and after (null where there was, or is, none).
+     */
+    public static final class Difference {
+        private final String path;
+        private final Object before;
+        private final Object after;
+
+        Difference(String path, Object before, Object after) {
+            this.path = path;
+            this.before = before;
+            this.after = after;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public Object getBefore() {
+            return before;
+        }
+
+        public Object getAfter() {
+            return after;
+        }
+
+        @Override
+        public String toString() {
+            return path + ": " + before + " -> " + after;
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package io.cloudsoft.terraform.parser;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * What a resource is described with: a {@link ResourceSchema} shared with the other resources that have the same keys,
+ * and an array holding this resource's values in the order of the schema's keys.
+ *
+ * Compared with a {@link LinkedHashMap}, a resource costs one array instead of an entry object per key plus a hash table,
+ * so a fleet of resources of the same type takes several times less memory. It is a mutable {@link Map} nonetheless:
+ * adding or removing a key moves the resource to the schema with (or without) that key. Iteration follows the schema order.
+ *
+ * Values of nested attributes may be held as {@link LazyJson}, and are only turned into text when they are first read;
+ * the {@link LazyJson} stays in the array, holding the text instead of its bytes from then on.
+ *
+ * The {@link #getContentHash() content hash} of the keys and values is taken when the map is created, so that comparing
+ * a resource with the one of the previous poll does not need to read its values (see {@link StateChanges}).
+ *
+ * Not thread-safe to change; once published it can be read from several threads, values being turned into text
+ * included. It is serialized as a {@link LinkedHashMap}.
+ */
+public final class CompactResourceMap extends AbstractMap<String, Object> implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private ResourceSchema schema;
+    private Object[] values;
+    private transient int modCount;
+    private transient long contentHash;
+    private transient boolean contentHashStale;
+
+    /**
+     * @param keys distinct keys, in order
+     * @param values their values, in the same order
+     */
+    public CompactResourceMap(List<String> keys, List<?> values) {
+        if (keys.size() != values.size()) {
+            throw new IllegalArgumentException("Expected as many values as keys: " + keys + " " + values);
+        }
+        this.schema = ResourceSchema.of(keys);
+        this.values = values.toArray();
+        this.contentHash = hashContent();
+    }
+
+    public ResourceSchema getSchema() {
+        return schema;
+    }
+
+    /**
+     * A hash of the keys and values, in order, equal for two resources read from equal JSON.
+     * Nested values count as their {@link LazyJson#layoutHash() bytes without white space between tokens}, whether or not
+     * they have been read since, so the hash does not change when they are, nor with the layout of the document;
+     * a nested value put as text counts as that text.
+     */
+    public long getContentHash() {
+        if (contentHashStale) {
+            contentHash = hashContent();
+            contentHashStale = false;
+        }
+        return contentHash;
+    }
+
+    private long hashContent() {
+        final Hasher hasher = Hashing.murmur3_128().newHasher();
+        for (int i = 0; i < values.length; i++) {
+            putWithLength(hasher, schema.keyAt(i).getBytes(StandardCharsets.UTF_8));
+            final Object value = values[i];
+            if (value instanceof LazyJson) {
+                // no text is as long as -1 bytes
+                hasher.putInt(-1).putLong(((LazyJson) value).layoutHash());
+            } else {
+                putWithLength(hasher, String.valueOf(value).getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        return hasher.hash().asLong();
+    }
+
+    private static void putWithLength(Hasher hasher, byte[] bytes) {
+        hasher.putInt(bytes.length).putBytes(bytes);
+    }
+
+    @Override
+    public int size() {
+        return values.length;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return schema.indexOf(key) >= 0;
+    }
+
+    @Override
+    public Object get(Object key) {
+        final int i = schema.indexOf(key);
+        return i < 0 ? null : valueAt(i);
+    }
+
+    /**
+     * Values read lazily are turned into text here, by the {@link LazyJson} itself, so the array is not written to.
+     */
+    private Object valueAt(int i) {
+        final Object value = values[i];
+        return value instanceof LazyJson ? ((LazyJson) value).materialize() : value;
+    }
+
+    @Override
+    public Object put(String key, Object value) {
+        final int i = schema.indexOf(key);
+        if (i >= 0) {
+            final Object previous = valueAt(i);
+            values[i] = value;
+            contentHashStale = true;
+            return previous;
+        }
+        schema = schema.with(key);
+        values = Arrays.copyOf(values, values.length + 1);
+        values[values.length - 1] = value;
+        modCount++;
+        contentHashStale = true;
+        return null;
+    }
+
+    @Override
+    public Object remove(Object key) {
+        final int i = schema.indexOf(key);
+        return i < 0 ? null : removeAt(i);
+    }
+
+    private Object removeAt(int i) {
+        final Object previous = valueAt(i);
+        schema = schema.without(schema.keyAt(i));
+        final Object[] remaining = new Object[values.length - 1];
+        System.arraycopy(values, 0, remaining, 0, i);
+        System.arraycopy(values, i + 1, remaining, i, remaining.length - i);
+        values = remaining;
+        modCount++;
+        contentHashStale = true;
+        return previous;
+    }
+
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+        return new AbstractSet<Entry<String, Object>>() {
+            @Override
+            public int size() {
+                return values.length;
+            }
+
+            @Override
+            public Iterator<Entry<String, Object>> iterator() {
+                return new EntryIterator();
+            }
+        };
+    }
+
+    private final class EntryIterator implements Iterator<Entry<String, Object>> {
+        private int next = 0;
+        private int last = -1;
+        private int expectedModCount = modCount;
+
+        @Override
+        public boolean hasNext() {
+            return next < values.length;
+        }
+
+        @Override
+        public Entry<String, Object> next() {
+            if (expectedModCount != modCount) {
+                throw new ConcurrentModificationException();
+            }
+            if (next >= values.length) {
+                throw new NoSuchElementException();
+            }
+            last = next++;
+            return new CompactEntry(last);
+        }
+
+        @Override
+        public void remove() {
+            if (last < 0) {
+                throw new IllegalStateException();
+            }
+            if (expectedModCount != modCount) {
+                throw new ConcurrentModificationException();
+            }
+            removeAt(last);
+            next = last;
+            last = -1;
+            expectedModCount = modCount;
+        }
+    }
+
+    private final class CompactEntry implements Entry<String, Object> {
+        private final ResourceSchema entrySchema = schema;
+        private final int i;
+
+        CompactEntry(int i) {
+            this.i = i;
+        }
+
+        @Override
+        public String getKey() {
+            return entrySchema.keyAt(i);
+        }
+
+        @Override
+        public Object getValue() {
+            return entrySchema == schema ? valueAt(i) : get(getKey());
+        }
+
+        @Override
+        public Object setValue(Object value) {
+            return put(getKey(), value);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Entry)) return false;
+            Entry<?, ?> other = (Entry<?, ?>) o;
+            return getKey().equals(other.getKey()) && Objects.equals(getValue(), other.getValue());
+        }
+
+        @Override
+        public int hashCode() {
+            return getKey().hashCode() ^ Objects.hashCode(getValue());
+        }
+
+        @Override
+        public String toString() {
+            return getKey() + "=" + getValue();
+        }
+    }
+
+    private Object writeReplace() {
+        return new LinkedHashMap<>(this);
+    }
+}
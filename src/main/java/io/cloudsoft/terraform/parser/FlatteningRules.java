@@ -0,0 +1,188 @@
+package io.cloudsoft.terraform.parser;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Tells the state parser which nested attribute values of a resource to flatten into separate keys.
+ *
+ * Rules are registered per resource type, or per type prefix such as {@code google_}; the rule registered for the type itself
+ * wins, otherwise the one with the longest matching prefix (the empty prefix matches every type). Attributes of types
+ * without a rule are kept as they have always been: one {@code value.<attribute>} key with the JSON of the attribute.
+ *
+ * Paths are attribute names separated by dots, without list indices: {@code cluster_config.worker_config}.
+ * Flattened values get keys such as {@code value.cluster_config[0].worker_config[0].num_instances}.
+ */
+public final class FlatteningRules {
+
+    public static final int DEFAULT_MAX_DEPTH = 8;
+
+    /**
+     * What the parser does unless configured otherwise: expand {@code cluster_config} of Google resources.
+     */
+    public static final FlatteningRules DEFAULT = builder()
+            .rule(PlanLogEntry.Provider.GOOGLE.getPrefix(), new Rule(DEFAULT_MAX_DEPTH, Collections.singleton("cluster_config"), Collections.emptySet()))
+            .build();
+
+    private final Map<String, Rule> rules;
+
+    private FlatteningRules(Map<String, Rule> rules) {
+        this.rules = ImmutableMap.copyOf(rules);
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Builds rules from configuration: resource type (or prefix) to a map with optional {@code maxDepth},
+     * {@code expand} and {@code keepAsJson} entries, the last two being a path or a list of paths.
+     * The {@link #DEFAULT} rules apply to the types (or prefixes) not configured.
+     */
+    public static FlatteningRules fromConfig(Map<String, ?> config) {
+        if (config == null || config.isEmpty()) {
+            return DEFAULT;
+        }
+        Builder builder = builder();
+        DEFAULT.rules.forEach(builder::rule);
+        config.forEach((type, ruleConfig) -> {
+            if (!(ruleConfig instanceof Map)) {
+                throw new IllegalArgumentException("Flattening rule for '" + type + "' should be a map, not: " + ruleConfig);
+            }
+            Map<?, ?> rule = (Map<?, ?>) ruleConfig;
+            Object maxDepth = rule.get("maxDepth");
+            builder.rule(type, new Rule(
+                    maxDepth == null ? DEFAULT_MAX_DEPTH : Integer.parseInt(maxDepth.toString()),
+                    toPaths(rule.get("expand")),
+                    toPaths(rule.get("keepAsJson"))));
+        });
+        return builder.build();
+    }
+
+    private static Set<String> toPaths(Object paths) {
+        if (paths == null) {
+            return Collections.emptySet();
+        }
+        if (paths instanceof Collection) {
+            ImmutableSet.Builder<String> result = ImmutableSet.builder();
+            ((Collection<?>) paths).forEach(path -> result.add(path.toString()));
+            return result.build();
+        }
+        return Collections.singleton(paths.toString());
+    }
+
+    /**
+     * @return the rule for the given resource type, {@link Rule#NONE} if there is none
+     */
+    public Rule forType(String type) {
+        Rule rule = rules.get(type);
+        if (rule != null) {
+            return rule;
+        }
+        String longestPrefix = null;
+        for (String prefix : rules.keySet()) {
+            if (type.startsWith(prefix) && (longestPrefix == null || prefix.length() > longestPrefix.length())) {
+                longestPrefix = prefix;
+            }
+        }
+        return longestPrefix == null ? Rule.NONE : rules.get(longestPrefix);
+    }
+
+    @Override
+    public String toString() {
+        return "FlatteningRules" + rules;
+    }
+
+    public static final class Builder {
+        private final Map<String, Rule> rules = new LinkedHashMap<>();
+
+        private Builder() {
+        }
+
+        /**
+         * @param type resource type, or a prefix of resource types
+         */
+        public Builder rule(String type, Rule rule) {
+            rules.put(type, rule);
+            return this;
+        }
+
+        public FlatteningRules build() {
+            return new FlatteningRules(rules);
+        }
+    }
+
+    /**
+     * How the attributes of one resource type are flattened.
+     *
+     * The values of the {@code expand} paths are flattened recursively, apart from the {@code keepAsJson} paths below them and
+     * anything nested deeper than {@code maxDepth} lists and objects (counted from the attribute), which are kept as JSON.
+     * Values on the way to an {@code expand} path are flattened too, so that it can be reached.
+     */
+    public static final class Rule {
+        public static final Rule NONE = new Rule(0, Collections.emptySet(), Collections.emptySet());
+
+        private final int maxDepth;
+        private final Set<String> expand;
+        private final Set<String> keepAsJson;
+        /** the expand paths, and every path leading to one */
+        private final Set<String> walked;
+
+        public Rule(int maxDepth, Set<String> expand, Set<String> keepAsJson) {
+            this.maxDepth = maxDepth;
+            this.expand = ImmutableSet.copyOf(expand);
+            this.keepAsJson = ImmutableSet.copyOf(keepAsJson);
+            ImmutableSet.Builder<String> walked = ImmutableSet.builder();
+            for (String path : expand) {
+                for (int dot = path.indexOf('.'); dot > 0; dot = path.indexOf('.', dot + 1)) {
+                    walked.add(path.substring(0, dot));
+                }
+                walked.add(path);
+            }
+            this.walked = walked.build();
+        }
+
+        public int getMaxDepth() {
+            return maxDepth;
+        }
+
+        public Set<String> getExpand() {
+            return expand;
+        }
+
+        public Set<String> getKeepAsJson() {
+            return keepAsJson;
+        }
+
+        /**
+         * @param path path of a list or object value
+         * @param depth how many lists and objects deep the value is, 1 for the value of an attribute
+         * @return whether the value should be flattened rather than kept as JSON
+         */
+        boolean isFlattened(String path, int depth) {
+            if (depth > maxDepth || keepAsJson.contains(path)) {
+                return false;
+            }
+            if (walked.contains(path)) {
+                return true;
+            }
+            for (String expanded : expand) {
+                if (path.length() > expanded.length() && path.charAt(expanded.length()) == '.' && path.startsWith(expanded)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return "Rule{maxDepth=" + maxDepth + ", expand=" + expand + ", keepAsJson=" + keepAsJson + "}";
+        }
+    }
+}
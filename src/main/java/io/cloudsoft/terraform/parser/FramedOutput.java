@@ -0,0 +1,265 @@
+package io.cloudsoft.terraform.parser;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Function;
+
+/**
+ * Frames the output of several commands run by one shell script, so that it can be split back into the output of each.
+ *
+ * Each command is run as a {@link #section(String, String) section} whose output is written between a begin marker and
+ * an end marker carrying its exit code; the markers start with a boundary made at random for each script, so that no
+ * command can print them by chance. Commands keep their standard error, which is not framed.
+ */
+public final class FramedOutput {
+
+    private final String boundary;
+
+    private FramedOutput(String boundary) {
+        this.boundary = boundary;
+    }
+
+    public static FramedOutput withRandomBoundary() {
+        return new FramedOutput("--brooklyn-terraform-" + UUID.randomUUID().toString().replace("-", ""));
+    }
+
+    public String getBoundary() {
+        return boundary;
+    }
+
+    /**
+     * @return the shell commands running {@code command} as the named section; the name must be a single word
+     */
+    public String section(String name, String command) {
+        // the markers are written on lines of their own, whether or not the output ends with a new line
+        return "echo ; echo '" + boundary + " begin " + name + "' ; "
+                + "{ " + command + " ; } ; "
+                + "__section_exit=$? ; " + exitVariable(name) + "=${__section_exit} ; echo ; echo \"" + boundary + " end " + name + " ${__section_exit}\"";
+    }
+
+    /**
+     * Runs the commands only if the named section, run before them, succeeded.
+     */
+    public String ifSucceeded(String name, String commands) {
+        return "if [ \"${" + exitVariable(name) + "}\" = 0 ] ; then " + commands + " ; fi";
+    }
+
+    private static String exitVariable(String name) {
+        return "__section_exit_" + name;
+    }
+
+    /**
+     * @return the sections found in the output of the script, by name, in the order they were run
+     */
+    public Map<String, Section<String>> split(String output) {
+        if (output == null) {
+            return Collections.emptyMap();
+        }
+        try {
+            return split(new ByteArrayInputStream(output.getBytes(StandardCharsets.UTF_8)), name -> FramedOutput::readString);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Splits the output of the script as it is read, handing the output of each section to the reader for its name
+     * as a stream which ends with the section; what a reader leaves of it is skipped.
+     *
+     * @return what the readers made of the sections, by name, in the order they were run
+     */
+    public <T> Map<String, Section<T>> split(InputStream output, Function<String, Function<InputStream, ? extends T>> readers) throws IOException {
+        final Map<String, Section<T>> sections = new LinkedHashMap<>();
+        final Buffer in = new Buffer(output);
+        final String begin = boundary + " begin ";
+        for (String line; (line = in.readLine()) != null; ) {
+            final int beginAt = line.indexOf(begin);
+            if (beginAt < 0) {
+                continue;
+            }
+            final String name = line.substring(beginAt + begin.length()).trim();
+            final SectionInputStream content = new SectionInputStream(in, ("\n" + boundary + " end " + name + " ").getBytes(StandardCharsets.UTF_8));
+            final T value = readers.apply(name).apply(content);
+            content.skipToEnd();
+            if (!content.ended) {
+                // the script was interrupted while running this section
+                sections.put(name, new Section<>(value, null));
+                break;
+            }
+            final String exit = in.readLine();
+            Integer exitCode;
+            try {
+                exitCode = exit == null ? null : Integer.valueOf(exit.trim());
+            } catch (NumberFormatException e) {
+                exitCode = null;
+            }
+            sections.put(name, new Section<>(value, exitCode));
+        }
+        return sections;
+    }
+
+    private static String readString(InputStream in) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[8192];
+        try {
+            for (int n; (n = in.read(buffer)) >= 0; ) out.write(buffer, 0, n);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The output of the script, read ahead far enough to tell the end marker of a section.
+     */
+    private static final class Buffer {
+        private final InputStream in;
+        private byte[] bytes = new byte[8192];
+        private int pos;
+        private int limit;
+
+        Buffer(InputStream in) {
+            this.in = in;
+        }
+
+        /** @return whether {@code count} bytes are buffered, false if the output ends before */
+        boolean fill(int count) throws IOException {
+            while (limit - pos < count) {
+                if (pos > 0) {
+                    System.arraycopy(bytes, pos, bytes, 0, limit - pos);
+                    limit -= pos;
+                    pos = 0;
+                }
+                if (limit == bytes.length) {
+                    bytes = Arrays.copyOf(bytes, bytes.length * 2);
+                }
+                final int read = in.read(bytes, limit, bytes.length - limit);
+                if (read < 0) {
+                    return false;
+                }
+                limit += read;
+            }
+            return true;
+        }
+
+        boolean startsWith(byte[] prefix) throws IOException {
+            if (!fill(prefix.length)) {
+                return false;
+            }
+            for (int i = 0; i < prefix.length; i++) {
+                if (bytes[pos + i] != prefix[i]) return false;
+            }
+            return true;
+        }
+
+        /** @return the next line, without its new line, or null at the end of the output */
+        String readLine() throws IOException {
+            final ByteArrayOutputStream line = new ByteArrayOutputStream();
+            while (fill(1)) {
+                int end = pos;
+                while (end < limit && bytes[end] != '\n') end++;
+                line.write(bytes, pos, end - pos);
+                if (end < limit) {
+                    pos = end + 1;
+                    return new String(line.toByteArray(), StandardCharsets.UTF_8);
+                }
+                pos = end;
+            }
+            return line.size() == 0 ? null : new String(line.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * The output of a section, up to the new line written before its end marker.
+     */
+    private static final class SectionInputStream extends InputStream {
+        private final Buffer in;
+        private final byte[] end;
+        private boolean ended;
+        private boolean interrupted;
+
+        SectionInputStream(Buffer in, byte[] end) {
+            this.in = in;
+            this.end = end;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = 0;
+            while (n < len && !ended && !interrupted) {
+                if (!in.fill(1)) {
+                    interrupted = true;
+                    break;
+                }
+                if (in.bytes[in.pos] == '\n' && in.startsWith(end)) {
+                    in.pos += end.length;
+                    ended = true;
+                    break;
+                }
+                // up to the next new line, which may start the end marker
+                int to = in.pos + 1;
+                final int max = Math.min(in.limit, in.pos + len - n);
+                while (to < max && in.bytes[to] != '\n') to++;
+                System.arraycopy(in.bytes, in.pos, b, off + n, to - in.pos);
+                n += to - in.pos;
+                in.pos = to;
+            }
+            return n == 0 && len > 0 ? -1 : n;
+        }
+
+        void skipToEnd() throws IOException {
+            final byte[] skipped = new byte[8192];
+            while (read(skipped, 0, skipped.length) >= 0) {
+            }
+        }
+
+        @Override
+        public void close() {
+            // the rest of the section is skipped once its reader returns
+        }
+    }
+
+    /**
+     * The output of a command run as a section, or what was read from it, and its exit code, null if it did not finish.
+     */
+    public static final class Section<T> {
+        private final T output;
+        private final Integer exitCode;
+
+        Section(T output, Integer exitCode) {
+            this.output = output;
+            this.exitCode = exitCode;
+        }
+
+        public T getOutput() {
+            return output;
+        }
+
+        public Integer getExitCode() {
+            return exitCode;
+        }
+
+        public boolean isSuccess() {
+            return exitCode != null && exitCode == 0;
+        }
+
+        @Override
+        public String toString() {
+            return "Section{exitCode=" + exitCode + (output instanceof String ? ", length=" + ((String) output).length() : "") + "}";
+        }
+    }
+}
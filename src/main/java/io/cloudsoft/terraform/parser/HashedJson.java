@@ -0,0 +1,107 @@
+package io.cloudsoft.terraform.parser;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.deser.std.StdDeserializer;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+/**
+ * Values of a resource as read from a plan, the maps and lists in them each with a hash of their contents, taken as they are read;
+ * {@link AttributeDiff} takes two of them with the same hash to be equal, and does not look into them.
+ *
+ * Maps and lists are read into {@link LinkedHashMap}s and {@link ArrayList}s, as they would be otherwise, and compare equal with them.
+ * The hash of a map does not depend on the order of its keys.
+ */
+final class HashedJson {
+
+    private HashedJson() {
+    }
+
+    /**
+     * @return whether both are maps, or both lists, read with the same hash
+     */
+    static boolean sameHash(Object a, Object b) {
+        if (a instanceof HashedMap && b instanceof HashedMap) {
+            return ((HashedMap) a).hash == ((HashedMap) b).hash;
+        }
+        return a instanceof HashedList && b instanceof HashedList && ((HashedList) a).hash == ((HashedList) b).hash;
+    }
+
+    static final class HashedMap extends LinkedHashMap<String, Object> {
+        private static final long serialVersionUID = 1L;
+        private long hash;
+    }
+
+    static final class HashedList extends ArrayList<Object> {
+        private static final long serialVersionUID = 1L;
+        private long hash;
+    }
+
+    /**
+     * Reads a value, which is expected to be an object; see {@link PlanModel.Change#before}.
+     */
+    static final class Deserializer extends StdDeserializer<Object> {
+        private static final long serialVersionUID = 1L;
+
+        Deserializer() {
+            super(Object.class);
+        }
+
+        @Override
+        public Object deserialize(JsonParser parser, DeserializationContext context) throws IOException {
+            return read(parser, Hashing.murmur3_128().newHasher());
+        }
+
+        /**
+         * Reads the value the parser is on, leaving it on its last token, and adds it to the hash of its parent.
+         */
+        private static Object read(JsonParser parser, Hasher parent) throws IOException {
+            final JsonToken token = parser.currentToken();
+            if (token == JsonToken.START_OBJECT) {
+                final HashedMap map = new HashedMap();
+                // summed, so that the hash does not depend on the order of the keys
+                long entries = 0;
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    final String key = parser.getCurrentName();
+                    parser.nextToken();
+                    final Hasher entry = Hashing.murmur3_128().newHasher().putString(key, StandardCharsets.UTF_8);
+                    map.put(key, read(parser, entry));
+                    entries += entry.hash().asLong();
+                }
+                map.hash = Hashing.murmur3_128().newHasher().putByte((byte) '{').putInt(map.size()).putLong(entries).hash().asLong();
+                parent.putLong(map.hash);
+                return map;
+            }
+            if (token == JsonToken.START_ARRAY) {
+                final HashedList list = new HashedList();
+                final Hasher items = Hashing.murmur3_128().newHasher().putByte((byte) '[');
+                while (parser.nextToken() != JsonToken.END_ARRAY) {
+                    list.add(read(parser, items));
+                }
+                list.hash = items.putInt(list.size()).hash().asLong();
+                parent.putLong(list.hash);
+                return list;
+            }
+            final Object value;
+            switch (token) {
+                case VALUE_STRING: value = parser.getText(); break;
+                case VALUE_NUMBER_INT: value = parser.getNumberValue(); break;
+                case VALUE_NUMBER_FLOAT: value = parser.getDoubleValue(); break;
+                case VALUE_TRUE: value = Boolean.TRUE; break;
+                case VALUE_FALSE: value = Boolean.FALSE; break;
+                default: value = null;
+            }
+            // tells strings from other scalars with the same text
+            parent.putByte(value instanceof String ? (byte) 's' : value == null ? (byte) 'z' : (byte) 'v')
+                    .putString(String.valueOf(value), StandardCharsets.UTF_8).putByte((byte) 0);
+            return value;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package io.cloudsoft.terraform.parser;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.Module;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+
+/**
+ * Readers for everything we get back from Terraform as JSON, configured once and shared by all the parsing paths.
+ *
+ * {@link ObjectReader}s are immutable and thread-safe, and each of them resolves the deserializer for its target type
+ * when it is created, so a poll never pays for building a mapper or for introspecting the target types again.
+ *
+ * If a bytecode-generating Jackson module (Blackbird, or Afterburner on older JVMs) is on the classpath it is registered
+ * with the shared mapper; set the system property {@value #ACCELERATION_PROPERTY} to {@code false} to turn this off.
+ */
+public final class JsonReaders {
+    private static final Logger LOG = LoggerFactory.getLogger(JsonReaders.class);
+
+    public static final String ACCELERATION_PROPERTY = "brooklyn.terraform.json.acceleration";
+
+    private static final String[] ACCELERATION_MODULES = {
+            "com.fasterxml.jackson.module.blackbird.BlackbirdModule",
+            "com.fasterxml.jackson.module.afterburner.AfterburnerModule"
+    };
+
+    private static final ObjectMapper MAPPER = newMapper();
+
+    /** Reads one line of {@code terraform plan -json} output. */
+    public static final ObjectReader PLAN_LOG_ENTRY = MAPPER.readerFor(PlanLogEntry.class)
+            .without(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+
+    /** Reads the output of {@code terraform show -json <planfile>}. */
+    public static final ObjectReader PLAN = MAPPER.readerFor(PlanModel.class)
+            .without(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+
+    /** Reads the output of {@code terraform output -json}: output name to its {@code value}, {@code type} and {@code sensitive} flag. */
+    public static final ObjectReader OUTPUTS = MAPPER.readerFor(new TypeReference<Map<String, Map<String, Object>>>() {});
+
+    /** Reads Terraform state documents, either as a tree or token by token. */
+    public static final ObjectReader STATE = MAPPER.reader();
+
+    private JsonReaders() {
+    }
+
+    static ObjectMapper newMapper() {
+        ObjectMapper mapper = new ObjectMapper();
+        if (!Boolean.parseBoolean(System.getProperty(ACCELERATION_PROPERTY, "true"))) {
+            return mapper;
+        }
+        for (String moduleClass : ACCELERATION_MODULES) {
+            try {
+                mapper.registerModule((Module) Class.forName(moduleClass, true, JsonReaders.class.getClassLoader()).getDeclaredConstructor().newInstance());
+                LOG.debug("Registered " + moduleClass + " for parsing Terraform output");
+                break;
+            } catch (ClassNotFoundException | LinkageError e) {
+                // not available, try the next one
+            } catch (Exception e) {
+                LOG.warn("Unable to register " + moduleClass + " for parsing Terraform output (ignoring): " + e);
+            }
+        }
+        return mapper;
+    }
+}
@@ -0,0 +1,119 @@
+package io.cloudsoft.terraform.parser;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import io.cloudsoft.terraform.util.StringPool;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A list or object value of a resource attribute, kept as the UTF-8 bytes it was read from until someone asks for it;
+ * it is then turned into the same compact JSON text it would have been given when parsed, by {@link #materialize()},
+ * and the bytes are let go.
+ *
+ * The {@link #layoutHash() hash} of the value is taken from the bytes leaving out the white space between tokens,
+ * so that it does not depend on how the document was laid out, and it stays the same once the value has been read.
+ *
+ * Only {@link CompactResourceMap} holds these.
+ */
+final class LazyJson {
+
+    private volatile byte[] json;
+    private volatile String text;
+    private final long layoutHash;
+
+    /**
+     * @param json the bytes of the value, a copy which is not shared with the source document
+     */
+    LazyJson(byte[] json) {
+        this.json = json;
+        this.layoutHash = hashIgnoringLayout(json);
+    }
+
+    long layoutHash() {
+        return layoutHash;
+    }
+
+    /**
+     * @return the value as compact JSON, decoded from the bytes the first time only
+     */
+    String materialize() {
+        String value = text;
+        if (value == null) {
+            final byte[] bytes = json;
+            if (bytes == null) {
+                // another thread read it, and set the text before letting the bytes go
+                return text;
+            }
+            try (JsonParser parser = JsonReaders.STATE.createParser(bytes)) {
+                parser.nextToken();
+                value = StringPool.canonical(copyAsJson(parser));
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot read attribute value: " + new String(bytes, StandardCharsets.UTF_8), e);
+            }
+            text = value;
+            json = null;
+        }
+        return value;
+    }
+
+    /**
+     * @return a hash of the bytes of the JSON, but for white space outside of strings
+     */
+    private static long hashIgnoringLayout(byte[] json) {
+        final Hasher hasher = Hashing.murmur3_128().newHasher();
+        boolean inString = false, escaped = false;
+        int run = 0;
+        for (int i = 0; i < json.length; i++) {
+            final byte b = json[i];
+            if (inString) {
+                if (escaped) {
+                    escaped = false;
+                } else if (b == '\\') {
+                    escaped = true;
+                } else if (b == '"') {
+                    inString = false;
+                }
+            } else if (b == '"') {
+                inString = true;
+            } else if (b == ' ' || b == '\n' || b == '\r' || b == '\t') {
+                hasher.putBytes(json, run, i - run);
+                run = i + 1;
+            }
+        }
+        return hasher.putBytes(json, run, json.length - run).hash().asLong();
+    }
+
+    /**
+     * @return the value the parser is on as compact JSON; the parser is left on its last token
+     */
+    private static String copyAsJson(JsonParser parser) throws IOException {
+        final StringWriter json = new StringWriter();
+        try (JsonGenerator generator = JsonReaders.STATE.getFactory().createGenerator(json)) {
+            generator.copyCurrentStructure(parser);
+        }
+        return json.toString();
+    }
+
+    /**
+     * @return the value the parser is on as compact JSON, in UTF-8; the parser is left on its last token.
+     *         For values read from a stream, which cannot be sliced.
+     */
+    static byte[] copyAsBytes(JsonParser parser) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (JsonGenerator generator = JsonReaders.STATE.getFactory().createGenerator(bytes)) {
+            generator.copyCurrentStructure(parser);
+        }
+        return bytes.toByteArray();
+    }
+
+    @Override
+    public String toString() {
+        return materialize();
+    }
+}
@@ -7,15 +7,23 @@ import java.util.Map;
 public class PlanLogEntry {
 
     public final static String NO_CHANGES = "Plan: 0 to add, 0 to change, 0 to destroy.";
+    /** summary of the warning of a plan made with {@code -target}, which is expected of targeted refreshes */
+    public final static String TARGETING_IN_EFFECT = "Resource targeting is in effect";
 
-    public enum Provider {
+    /**
+     * The providers built in; see {@link ProviderRegistry} for adding others.
+     */
+    public enum Provider implements TerraformProvider {
         NOT_SUPPORTED("?"),
+        /** a provider added to the {@link ProviderRegistry}, which is not one of these; see {@link #getTerraformProvider()} */
+        UNKNOWN("?"),
         AWS("aws_"),
         VSPHERE("vsphere_"),
         ALIBABA("alicloud_"),
         AZURE("azurerm_"),
         GOOGLE("google_"),
-        ORACLE("oci_");
+        ORACLE("oci_"),
+        HETZNER("hcloud_");
 
         private String prefix;
 
@@ -23,6 +31,12 @@ public class PlanLogEntry {
             this.prefix = prefix;
         }
 
+        @Override
+        public String getName() {
+            return name();
+        }
+
+        @Override
         public String getPrefix() {
             return prefix;
         }
@@ -64,13 +78,20 @@ public class PlanLogEntry {
 
     public LType type;
 
+    /**
+     * @return the built in provider of the resource the entry is about, {@link Provider#UNKNOWN} if it is one added to the
+     *         {@link ProviderRegistry}
+     */
     public Provider getProvider(){
-       for (Provider p : Provider.values()) {
-           if(message.startsWith(p.prefix)) {
-               return p;
-           }
-       }
-       return Provider.NOT_SUPPORTED;
+       final TerraformProvider provider = getTerraformProvider();
+       return provider instanceof Provider ? (Provider) provider : Provider.UNKNOWN;
+    }
+
+    /**
+     * @return the provider of the resource the entry is about, as found in the {@link ProviderRegistry}
+     */
+    public TerraformProvider getTerraformProvider(){
+       return ProviderRegistry.lookup(message);
     }
 
     @Override
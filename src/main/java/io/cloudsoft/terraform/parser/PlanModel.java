@@ -0,0 +1,157 @@
+package io.cloudsoft.terraform.parser;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * What {@code terraform show -json <planfile>} says of a saved plan: the changes planned for each resource
+ * ({@code resource_changes}) and the changes made outside terraform since the state was written ({@code resource_drift}),
+ * each indexed by resource address, with the values before and after and the paths forcing a replacement.
+ *
+ * Read it with {@link StateParser#parsePlan(String)}; the entity keeps the model of its last refreshing plan,
+ * so plan details can be looked up without running terraform again.
+ */
+public final class PlanModel {
+
+    public static final String NO_OP = "no-op";
+
+    private final String terraformVersion;
+    private final Map<String, ResourceChange> resourceChanges;
+    private final Map<String, ResourceChange> resourceDrift;
+
+    @JsonCreator
+    PlanModel(@JsonProperty("terraform_version") String terraformVersion,
+              @JsonProperty("resource_changes") List<ResourceChange> resourceChanges,
+              @JsonProperty("resource_drift") List<ResourceChange> resourceDrift) {
+        this.terraformVersion = terraformVersion;
+        this.resourceChanges = byAddress(resourceChanges);
+        this.resourceDrift = byAddress(resourceDrift);
+    }
+
+    private static Map<String, ResourceChange> byAddress(List<ResourceChange> changes) {
+        if (changes == null || changes.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        final Map<String, ResourceChange> byAddress = new LinkedHashMap<>();
+        for (ResourceChange change : changes) {
+            // a deposed object has the address of the current one; the current one is the one of interest
+            if (change.deposed == null || !byAddress.containsKey(change.address)) {
+                byAddress.put(change.address, change);
+            }
+        }
+        return Collections.unmodifiableMap(byAddress);
+    }
+
+    public String getTerraformVersion() {
+        return terraformVersion;
+    }
+
+    /**
+     * @return the planned change of every resource, no-ops included, by address
+     */
+    public Map<String, ResourceChange> getResourceChanges() {
+        return resourceChanges;
+    }
+
+    public ResourceChange getResourceChange(String address) {
+        return resourceChanges.get(address);
+    }
+
+    /**
+     * @return the changes made outside terraform, by address
+     */
+    public Map<String, ResourceChange> getResourceDrift() {
+        return resourceDrift;
+    }
+
+    public ResourceChange getResourceDrift(String address) {
+        return resourceDrift.get(address);
+    }
+
+    /**
+     * @return the planned changes which are not no-ops
+     */
+    public Collection<ResourceChange> getPendingChanges() {
+        return resourceChanges.values().stream().filter(change -> !change.isNoOp()).collect(Collectors.toList());
+    }
+
+    @Override
+    public String toString() {
+        return "PlanModel{terraformVersion=" + terraformVersion + ", resourceChanges=" + resourceChanges.keySet() + ", resourceDrift=" + resourceDrift.keySet() + "}";
+    }
+
+    /**
+     * An entry of {@code resource_changes} or {@code resource_drift}.
+     */
+    public static class ResourceChange {
+        public String address;
+        @JsonProperty("module_address")
+        public String moduleAddress;
+        public String mode;
+        public String type;
+        public String name;
+        public Object index;
+        @JsonProperty("provider_name")
+        public String providerName;
+        public String deposed;
+        public Change change;
+        @JsonProperty("action_reason")
+        public String actionReason;
+
+        public ResourceChange() {
+        }
+
+        public List<String> getActions() {
+            return change == null || change.actions == null ? Collections.emptyList() : change.actions;
+        }
+
+        public boolean isNoOp() {
+            return getActions().isEmpty() || getActions().equals(Collections.singletonList(NO_OP));
+        }
+
+        /**
+         * @return whether the resource is to be destroyed and created again, in either order
+         */
+        public boolean isReplace() {
+            return getActions().contains("delete") && getActions().contains("create");
+        }
+
+        @Override
+        public String toString() {
+            return "ResourceChange{address=" + address + ", actions=" + getActions() + (actionReason == null ? "" : ", reason=" + actionReason) + "}";
+        }
+    }
+
+    /**
+     * The values of a resource before and after a change. Values not known until applied are {@code true} in
+     * {@link #afterUnknown}; sensitive ones are {@code true} in {@link #beforeSensitive} and {@link #afterSensitive}.
+     * The maps and lists of {@link #before} and {@link #after} are read with a hash of their contents (see {@link HashedJson}).
+     */
+    public static class Change {
+        public List<String> actions;
+        @JsonDeserialize(using = HashedJson.Deserializer.class)
+        public Map<String, Object> before;
+        @JsonDeserialize(using = HashedJson.Deserializer.class)
+        public Map<String, Object> after;
+        @JsonProperty("after_unknown")
+        public Map<String, Object> afterUnknown;
+        @JsonProperty("before_sensitive")
+        public Object beforeSensitive;
+        @JsonProperty("after_sensitive")
+        public Object afterSensitive;
+        /** paths of the attributes forcing a replacement, each a list of attribute names and list indexes */
+        @JsonProperty("replace_paths")
+        public List<List<Object>> replacePaths;
+
+        public Change() {
+        }
+    }
+}
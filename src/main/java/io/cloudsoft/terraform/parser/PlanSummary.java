@@ -0,0 +1,177 @@
+package io.cloudsoft.terraform.parser;
+
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import static io.cloudsoft.terraform.TerraformDriver.PLAN_MESSAGE;
+import static io.cloudsoft.terraform.TerraformDriver.RESOURCE_CHANGES;
+
+/**
+ * Renders the human-readable summary of a plan, published on the {@code tf.plan.changes} sensor, from what is already
+ * known of the plan, so that terraform does not have to plan a second time to print it.
+ *
+ * With the {@link PlanModel} of the saved plan the summary lists the drift and the planned changes of each resource,
+ * attribute by attribute, much like {@code terraform plan} does; without it (the plan was not saved, or could not be
+ * rendered) the summary lists what the parsed plan log says of each resource.
+ */
+public final class PlanSummary {
+
+    private static final String INDENT = "  ";
+    private static final String ATTRIBUTE_INDENT = "      ";
+
+    private PlanSummary() {
+    }
+
+    /**
+     * @param model the model of the saved plan, null if there is none
+     * @param planStatus the plan log, as parsed by {@link StateParser#parsePlanLogEntries(String)}
+     */
+    public static String render(PlanModel model, Map<String, Object> planStatus) {
+        return model != null ? render(model) : render(planStatus);
+    }
+
+    public static String render(PlanModel model) {
+        final StringBuilder sb = new StringBuilder();
+        if (!model.getResourceDrift().isEmpty()) {
+            sb.append("Terraform detected the following changes made outside of Terraform since the last \"terraform apply\":\n");
+            for (PlanModel.ResourceChange drift : model.getResourceDrift().values()) {
+                sb.append('\n').append(INDENT).append("# ").append(drift.address).append(' ').append(describeDrift(drift)).append('\n');
+                appendDifferences(sb, drift, null);
+            }
+            sb.append('\n');
+        }
+
+        final Collection<PlanModel.ResourceChange> pending = model.getPendingChanges();
+        if (pending.isEmpty()) {
+            sb.append("No changes. Your infrastructure matches the configuration.\n");
+            return sb.toString();
+        }
+        sb.append("Terraform will perform the following actions:\n");
+        int toAdd = 0, toChange = 0, toDestroy = 0;
+        for (PlanModel.ResourceChange change : pending) {
+            sb.append('\n').append(INDENT).append("# ").append(change.address).append(' ').append(describeChange(change));
+            if (change.actionReason != null) {
+                sb.append(" (").append(change.actionReason).append(')');
+            }
+            sb.append('\n');
+            appendDifferences(sb, change, replacePaths(change));
+            final List<String> actions = change.getActions();
+            if (actions.contains("create")) toAdd++;
+            if (actions.contains("update")) toChange++;
+            if (actions.contains("delete")) toDestroy++;
+        }
+        sb.append('\n').append("Plan: ").append(toAdd).append(" to add, ").append(toChange).append(" to change, ")
+                .append(toDestroy).append(" to destroy.\n");
+        return sb.toString();
+    }
+
+    @SuppressWarnings("unchecked")
+    static String render(Map<String, Object> planStatus) {
+        final StringBuilder sb = new StringBuilder();
+        final Object resourceChanges = planStatus.get(RESOURCE_CHANGES);
+        if (resourceChanges instanceof List) {
+            for (Map<String, Object> change : (List<Map<String, Object>>) resourceChanges) {
+                sb.append(INDENT).append("# ").append(change.get("resource.addr")).append(": ").append(change.get("resource.action")).append('\n');
+            }
+        }
+        final Object outputChanges = planStatus.get("tf.output.changes");
+        if (outputChanges instanceof List) {
+            for (Map<String, Object> change : (List<Map<String, Object>>) outputChanges) {
+                sb.append(INDENT).append("# output.").append(change.get("output.addr")).append(": ").append(change.get("output.action")).append('\n');
+            }
+        }
+        final Object message = planStatus.get(PLAN_MESSAGE);
+        if (message != null) {
+            sb.append(sb.length() > 0 ? "\n" : "").append(message).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static String describeDrift(PlanModel.ResourceChange drift) {
+        final List<String> actions = drift.getActions();
+        if (actions.contains("delete") && !actions.contains("create")) {
+            return "has been deleted";
+        }
+        return "has changed";
+    }
+
+    private static String describeChange(PlanModel.ResourceChange change) {
+        final List<String> actions = change.getActions();
+        if (change.isReplace()) {
+            return "must be replaced";
+        }
+        if (actions.contains("create")) {
+            return "will be created";
+        }
+        if (actions.contains("delete")) {
+            return "will be destroyed";
+        }
+        if (actions.contains("read")) {
+            return "will be read during apply";
+        }
+        return "will be updated in-place";
+    }
+
+    private static void appendDifferences(StringBuilder sb, PlanModel.ResourceChange change, List<String> replacePaths) {
+        for (AttributeDiff.Difference difference : AttributeDiff.between(change.change)) {
+            sb.append(ATTRIBUTE_INDENT).append(symbol(difference)).append(' ').append(difference.getPath()).append(": ")
+                    .append(format(difference.getBefore())).append(" -> ").append(format(difference.getAfter()));
+            if (replacePaths != null && forcesReplacement(difference.getPath(), replacePaths)) {
+                sb.append(" # forces replacement");
+            }
+            sb.append('\n');
+        }
+    }
+
+    private static char symbol(AttributeDiff.Difference difference) {
+        if (difference.getBefore() == null) {
+            return '+';
+        }
+        return difference.getAfter() == null ? '-' : '~';
+    }
+
+    private static String format(Object value) {
+        if (value == null) {
+            return "null";
+        }
+        if (value instanceof String && !AttributeDiff.SENSITIVE_VALUE.equals(value) && !AttributeDiff.KNOWN_AFTER_APPLY.equals(value)) {
+            return '"' + (String) value + '"';
+        }
+        return String.valueOf(value);
+    }
+
+    /**
+     * @return the replace paths of the change written like the paths of {@link AttributeDiff}
+     */
+    private static List<String> replacePaths(PlanModel.ResourceChange change) {
+        final List<String> paths = new ArrayList<>();
+        if (change.change == null || change.change.replacePaths == null) {
+            return paths;
+        }
+        for (List<Object> steps : change.change.replacePaths) {
+            final StringBuilder path = new StringBuilder();
+            for (Object step : steps) {
+                if (step instanceof Number) {
+                    path.append('[').append(step).append(']');
+                } else {
+                    path.append(path.length() == 0 ? "" : ".").append(step);
+                }
+            }
+            paths.add(path.toString());
+        }
+        return paths;
+    }
+
+    private static boolean forcesReplacement(String path, List<String> replacePaths) {
+        for (String replacePath : replacePaths) {
+            if (path.equals(replacePath) || (path.startsWith(replacePath) && StringUtils.startsWithAny(path.substring(replacePath.length()), ".", "["))) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
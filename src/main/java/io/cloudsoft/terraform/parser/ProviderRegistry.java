@@ -0,0 +1,199 @@
+package io.cloudsoft.terraform.parser;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+
+/**
+ * Tells which {@link TerraformProvider} a resource type belongs to, by the longest registered prefix of the type.
+ *
+ * It knows the {@link PlanLogEntry.Provider} constants, the providers found with {@link ServiceLoader}, those listed in the
+ * system property {@value #PROVIDERS_PROPERTY} as {@code NAME=prefix} pairs separated by commas (e.g. {@code LINODE=linode_}),
+ * and those {@link #register(TerraformProvider) registered} later on.
+ *
+ * Prefixes are kept in a trie, so a type is matched in as many steps as its prefix has characters, and the provider of each
+ * type is remembered, up to {@value #MAX_REMEMBERED_TYPES} types, until another provider is registered.
+ */
+public final class ProviderRegistry {
+    private static final Logger LOG = LoggerFactory.getLogger(ProviderRegistry.class);
+
+    public static final String PROVIDERS_PROPERTY = "brooklyn.terraform.providers";
+    public static final int MAX_REMEMBERED_TYPES = 10_000;
+
+    private static final Map<String, TerraformProvider> BY_PREFIX = new LinkedHashMap<>();
+    private static volatile Lookup lookup;
+
+    static {
+        for (PlanLogEntry.Provider provider : PlanLogEntry.Provider.values()) {
+            if (provider != PlanLogEntry.Provider.NOT_SUPPORTED && provider != PlanLogEntry.Provider.UNKNOWN) {
+                BY_PREFIX.put(provider.getPrefix(), provider);
+            }
+        }
+        try {
+            for (TerraformProvider provider : ServiceLoader.load(TerraformProvider.class, ProviderRegistry.class.getClassLoader())) {
+                BY_PREFIX.put(provider.getPrefix(), provider);
+            }
+        } catch (ServiceConfigurationError e) {
+            LOG.warn("Unable to load Terraform providers (ignoring): " + e);
+        }
+        for (String provider : System.getProperty(PROVIDERS_PROPERTY, "").split(",")) {
+            final String[] nameAndPrefix = provider.trim().split("=", 2);
+            if (nameAndPrefix.length == 2 && !nameAndPrefix[1].trim().isEmpty()) {
+                final String prefix = nameAndPrefix[1].trim();
+                BY_PREFIX.put(prefix, new Registered(nameAndPrefix[0].trim(), prefix));
+            } else if (!provider.trim().isEmpty()) {
+                LOG.warn("Ignoring Terraform provider '" + provider + "' in " + PROVIDERS_PROPERTY + ", expected NAME=prefix");
+            }
+        }
+        lookup = new Lookup(Node.of(BY_PREFIX));
+    }
+
+    private ProviderRegistry() {
+    }
+
+    /**
+     * @return the provider of the resource a plan log message or a resource type or address is about
+     *         (e.g. {@code aws_instance.web: Plan to create}, {@code module.net.data.aws_ami.ubuntu}),
+     *         {@link PlanLogEntry.Provider#NOT_SUPPORTED} if there is none registered for it
+     */
+    public static TerraformProvider lookup(String message) {
+        return message == null ? PlanLogEntry.Provider.NOT_SUPPORTED : lookup.byType.getUnchecked(resourceType(message));
+    }
+
+    /**
+     * Adds a provider, or replaces the one with the same prefix.
+     */
+    public static synchronized void register(TerraformProvider provider) {
+        BY_PREFIX.put(Objects.requireNonNull(provider.getPrefix(), "prefix"), provider);
+        lookup = new Lookup(Node.of(BY_PREFIX));
+    }
+
+    public static void register(String name, String prefix) {
+        register(new Registered(name, prefix));
+    }
+
+    public static synchronized List<TerraformProvider> providers() {
+        return Collections.unmodifiableList(new ArrayList<>(BY_PREFIX.values()));
+    }
+
+    /**
+     * @return the first segment of the message that is not a module or {@code data}, up to a dot, colon or space
+     */
+    static String resourceType(String message) {
+        int start = 0;
+        while (true) {
+            if (message.startsWith("module.", start)) {
+                final int name = message.indexOf('.', start + "module.".length());
+                if (name < 0) break;
+                start = name + 1;
+            } else if (message.startsWith("data.", start)) {
+                start += "data.".length();
+            } else {
+                break;
+            }
+        }
+        int end = start;
+        while (end < message.length() && ".: ".indexOf(message.charAt(end)) < 0) {
+            end++;
+        }
+        return message.substring(start, end);
+    }
+
+    /**
+     * The trie of the registered prefixes, and the provider of each type looked up in it so far.
+     */
+    private static final class Lookup {
+        private final Node trie;
+        private final LoadingCache<String, TerraformProvider> byType = CacheBuilder.newBuilder()
+                .maximumSize(MAX_REMEMBERED_TYPES)
+                .build(CacheLoader.from(this::match));
+
+        Lookup(Node trie) {
+            this.trie = trie;
+        }
+
+        private TerraformProvider match(String type) {
+            Node node = trie;
+            TerraformProvider match = PlanLogEntry.Provider.NOT_SUPPORTED;
+            for (int i = 0; i < type.length() && node != null; i++) {
+                node = node.children.get(type.charAt(i));
+                if (node != null && node.provider != null) {
+                    match = node.provider;
+                }
+            }
+            return match;
+        }
+    }
+
+    /**
+     * A node of the prefix trie: the provider whose prefix ends here, if any, and the nodes for the characters that may follow.
+     */
+    private static final class Node {
+        private final Map<Character, Node> children = new HashMap<>();
+        private TerraformProvider provider;
+
+        static Node of(Map<String, TerraformProvider> byPrefix) {
+            final Node root = new Node();
+            byPrefix.forEach((prefix, provider) -> {
+                Node node = root;
+                for (int i = 0; i < prefix.length(); i++) {
+                    node = node.children.computeIfAbsent(prefix.charAt(i), c -> new Node());
+                }
+                node.provider = provider;
+            });
+            return root;
+        }
+    }
+
+    /**
+     * A provider registered by name and prefix.
+     */
+    private static final class Registered implements TerraformProvider {
+        private final String name;
+        private final String prefix;
+
+        Registered(String name, String prefix) {
+            this.name = Objects.requireNonNull(name, "name");
+            this.prefix = Objects.requireNonNull(prefix, "prefix");
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public String getPrefix() {
+            return prefix;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Registered)) return false;
+            Registered other = (Registered) o;
+            return name.equals(other.name) && prefix.equals(other.prefix);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(name, prefix);
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+}
@@ -0,0 +1,315 @@
+package io.cloudsoft.terraform.parser;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Converts the output of {@code terraform state pull}, the raw state in format version 4, into the same resources
+ * {@link StateParser#parseResources(String)} makes of {@code terraform show -json}, without running terraform again.
+ *
+ * Each of {@code resources[].instances[]} is a resource: its address is made of the {@code module}, mode, type and name of the
+ * resource and the {@code index_key} of the instance, its values are its {@code attributes}, and its sensitive values are
+ * worked out from the {@code sensitive_attributes} paths the way terraform does it for {@code show}.
+ * Deposed instances are left out. Resources are reported as {@code show} orders them: those of the root module first,
+ * then those of each child module, depth first, each module sorted by address.
+ */
+final class PulledStateReader {
+
+    private static final Comparator<Map<String, Object>> SHOW_ORDER = Comparator
+            .comparing((Map<String, Object> resource) -> String.valueOf(resource.getOrDefault("resource.module", "")))
+            .thenComparing(resource -> resource.get("resource.address").toString());
+
+    private static final byte[] NO_ATTRIBUTES = "{}".getBytes(StandardCharsets.UTF_8);
+
+    private final ResourceReader resourceReader;
+
+    PulledStateReader(ResourceReader resourceReader) {
+        this.resourceReader = resourceReader;
+    }
+
+    /**
+     * @param source the pulled state, as UTF-8
+     * @return false if it is not a state in format version 4, in which case nothing is reported
+     */
+    boolean read(final byte[] source, final Consumer<Map<String, Object>> resourceConsumer) throws IOException {
+        final List<Map<String, Object>> resources = new ArrayList<>();
+        int version = -1;
+        try (JsonParser parser = JsonReaders.STATE.createParser(source)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IllegalArgumentException("This is not a valid TF state!");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final String field = parser.getCurrentName();
+                final JsonToken value = parser.nextToken();
+                if ("version".equals(field) && value == JsonToken.VALUE_NUMBER_INT) {
+                    version = parser.getIntValue();
+                    if (version != 4) {
+                        return false;
+                    }
+                } else if ("resources".equals(field) && value == JsonToken.START_ARRAY) {
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        readResource(parser, source, resources);
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+        if (version != 4) {
+            return false;
+        }
+        resources.sort(SHOW_ORDER);
+        resources.forEach(resourceConsumer);
+        return true;
+    }
+
+    private void readResource(final JsonParser parser, final byte[] source, final List<Map<String, Object>> resources) throws IOException {
+        String module = null, mode = null, type = null, name = null, provider = null;
+        final List<Instance> instances = new ArrayList<>();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            final String field = parser.getCurrentName();
+            final JsonToken token = parser.nextToken();
+            switch (field) {
+                case "module": module = parser.getValueAsString(); break;
+                case "mode": mode = parser.getValueAsString(); break;
+                case "type": type = parser.getValueAsString(); break;
+                case "name": name = parser.getValueAsString(); break;
+                case "provider": provider = parser.getValueAsString(); break;
+                case "instances":
+                    if (token == JsonToken.START_ARRAY) {
+                        while (parser.nextToken() == JsonToken.START_OBJECT) {
+                            final Instance instance = Instance.read(parser, source);
+                            if (!instance.deposed) {
+                                instances.add(instance);
+                            }
+                        }
+                    } else {
+                        parser.skipChildren();
+                    }
+                    break;
+                default:
+                    parser.skipChildren();
+            }
+        }
+        if (mode == null || type == null || name == null || provider == null) {
+            throw new IllegalArgumentException("A resource should have a mode, type, name and provider" + (type == null || name == null ? "" : ": " + type + "." + name));
+        }
+        final String resourceAddress = (module == null ? "" : module + ".") + ("data".equals(mode) ? "data." : "") + type + "." + name;
+        final String providerName = providerName(provider);
+        for (Instance instance : instances) {
+            final Map<String, String> sensitiveValues;
+            try (JsonParser attributes = instance.attributesParser()) {
+                attributes.nextToken();
+                sensitiveValues = sensitiveValues(attributes, instance.sensitivePaths);
+            }
+            try (JsonParser attributes = instance.attributesParser()) {
+                attributes.nextToken();
+                resources.add(resourceReader.readInstance(resourceAddress + instance.indexSuffix(), mode, type, name, providerName, module,
+                        attributes, instance.source, instance.attributesStart, sensitiveValues));
+            }
+        }
+    }
+
+    /**
+     * @param provider as the state has it, e.g. {@code module.network.provider["registry.terraform.io/hashicorp/aws"].west},
+     *                 or {@code provider.aws} in states written by terraform 0.12
+     * @return the provider as {@code show} names it, e.g. {@code registry.terraform.io/hashicorp/aws}
+     */
+    static String providerName(final String provider) {
+        final int quoted = provider.indexOf("provider[\"");
+        if (quoted >= 0) {
+            final int start = quoted + "provider[\"".length();
+            final int end = provider.indexOf("\"]", start);
+            return end < 0 ? provider.substring(start) : provider.substring(start, end);
+        }
+        final int legacy = provider.lastIndexOf("provider.");
+        final String name = legacy < 0 ? provider : provider.substring(legacy + "provider.".length());
+        final int alias = name.indexOf('.');
+        return alias < 0 ? name : name.substring(0, alias);
+    }
+
+    /**
+     * Works out which parts of the attributes are sensitive the way {@code terraform show} does: a sensitive value is {@code true},
+     * a list has an entry for each of its items, an object (or map) only has the keys whose values are not simply {@code false}.
+     * @param attributes parser positioned on the start of the object of attributes, left on its end
+     * @return by attribute, {@code true} or the JSON telling which parts of its value are sensitive
+     */
+    static Map<String, String> sensitiveValues(final JsonParser attributes, final Set<List<Object>> sensitivePaths) throws IOException {
+        final Map<String, String> sensitiveValues = new LinkedHashMap<>();
+        final List<Object> path = new ArrayList<>();
+        while (attributes.nextToken() == JsonToken.FIELD_NAME) {
+            final String attribute = attributes.getCurrentName();
+            attributes.nextToken();
+            path.add(attribute);
+            final Object sensitive = sensitiveAsBool(attributes, path, sensitivePaths);
+            path.remove(path.size() - 1);
+            if (sensitive != Boolean.FALSE) {
+                sensitiveValues.put(attribute, toJson(sensitive));
+            }
+        }
+        return sensitiveValues;
+    }
+
+    private static Object sensitiveAsBool(final JsonParser parser, final List<Object> path, final Set<List<Object>> sensitivePaths) throws IOException {
+        if (sensitivePaths.contains(path)) {
+            parser.skipChildren();
+            return Boolean.TRUE;
+        }
+        final JsonToken token = parser.currentToken();
+        if (token == JsonToken.START_ARRAY) {
+            final List<Object> items = new ArrayList<>();
+            for (int i = 0; parser.nextToken() != JsonToken.END_ARRAY; i++) {
+                path.add(i);
+                items.add(sensitiveAsBool(parser, path, sensitivePaths));
+                path.remove(path.size() - 1);
+            }
+            return items;
+        }
+        if (token == JsonToken.START_OBJECT) {
+            final Map<String, Object> fields = new LinkedHashMap<>();
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final String field = parser.getCurrentName();
+                parser.nextToken();
+                path.add(field);
+                final Object sensitive = sensitiveAsBool(parser, path, sensitivePaths);
+                path.remove(path.size() - 1);
+                if (sensitive != Boolean.FALSE) {
+                    fields.put(field, sensitive);
+                }
+            }
+            return fields;
+        }
+        return Boolean.FALSE;
+    }
+
+    private static String toJson(final Object sensitive) throws IOException {
+        if (sensitive instanceof Boolean) {
+            return sensitive.toString();
+        }
+        final StringWriter json = new StringWriter();
+        try (JsonGenerator generator = JsonReaders.STATE.getFactory().createGenerator(json)) {
+            write(generator, sensitive);
+        }
+        return json.toString();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void write(final JsonGenerator generator, final Object sensitive) throws IOException {
+        if (sensitive instanceof List) {
+            generator.writeStartArray();
+            for (Object item : (List<Object>) sensitive) {
+                write(generator, item);
+            }
+            generator.writeEndArray();
+        } else if (sensitive instanceof Map) {
+            generator.writeStartObject();
+            for (Map.Entry<String, Object> field : ((Map<String, Object>) sensitive).entrySet()) {
+                generator.writeFieldName(field.getKey());
+                write(generator, field.getValue());
+            }
+            generator.writeEndObject();
+        } else {
+            generator.writeBoolean((Boolean) sensitive);
+        }
+    }
+
+    /**
+     * What is needed of an instance: its key, where its attributes are in the source, and the paths of its sensitive attributes.
+     */
+    private static final class Instance {
+        private Object indexKey;
+        private boolean deposed;
+        private byte[] source = NO_ATTRIBUTES;
+        private int attributesStart = 0;
+        private int attributesEnd = NO_ATTRIBUTES.length;
+        private final Set<List<Object>> sensitivePaths = new HashSet<>();
+
+        /**
+         * @param parser positioned on the start of the instance object, left on its end
+         */
+        static Instance read(final JsonParser parser, final byte[] source) throws IOException {
+            final Instance instance = new Instance();
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final String field = parser.getCurrentName();
+                final JsonToken token = parser.nextToken();
+                if ("index_key".equals(field)) {
+                    instance.indexKey = token.isNumeric() ? parser.getNumberValue() : parser.getValueAsString();
+                } else if ("deposed".equals(field)) {
+                    instance.deposed = true;
+                } else if ("attributes".equals(field) && token == JsonToken.START_OBJECT) {
+                    instance.source = source;
+                    instance.attributesStart = (int) parser.getTokenLocation().getByteOffset();
+                    parser.skipChildren();
+                    instance.attributesEnd = (int) parser.getCurrentLocation().getByteOffset();
+                } else if ("sensitive_attributes".equals(field) && token == JsonToken.START_ARRAY) {
+                    while (parser.nextToken() == JsonToken.START_ARRAY) {
+                        instance.sensitivePaths.add(readPath(parser));
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            return instance;
+        }
+
+        /**
+         * Reads a path such as <code>[{"type":"get_attr","value":"tags"},{"type":"index","value":{"value":"secret","type":"string"}}]</code>
+         * into its steps, attribute or key names and list indexes: {@code [tags, secret]}.
+         */
+        private static List<Object> readPath(final JsonParser parser) throws IOException {
+            final List<Object> path = new ArrayList<>();
+            while (parser.nextToken() == JsonToken.START_OBJECT) {
+                Object step = null;
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    final String field = parser.getCurrentName();
+                    final JsonToken token = parser.nextToken();
+                    if ("value".equals(field) && token == JsonToken.START_OBJECT) {
+                        // an index: {"value":0,"type":"number"} or {"value":"key","type":"string"}
+                        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                            final String indexField = parser.getCurrentName();
+                            final JsonToken indexToken = parser.nextToken();
+                            if ("value".equals(indexField)) {
+                                step = indexToken.isNumeric() ? (Object) parser.getIntValue() : parser.getValueAsString();
+                            } else {
+                                parser.skipChildren();
+                            }
+                        }
+                    } else if ("value".equals(field)) {
+                        step = parser.getValueAsString();
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+                path.add(step);
+            }
+            return path;
+        }
+
+        JsonParser attributesParser() throws IOException {
+            return JsonReaders.STATE.createParser(source, attributesStart, attributesEnd - attributesStart);
+        }
+
+        String indexSuffix() {
+            if (indexKey == null) {
+                return "";
+            }
+            if (indexKey instanceof Number) {
+                return "[" + indexKey + "]";
+            }
+            return "[\"" + indexKey.toString().replace("\\", "\\\\").replace("\"", "\\\"") + "\"]";
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package io.cloudsoft.terraform.parser;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.TreeNode;
+import com.google.common.collect.ImmutableList;
+import io.cloudsoft.terraform.util.StringPool;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static io.cloudsoft.terraform.parser.StateParser.BLANK_ITEMS;
+
+/**
+ * Converts one resource of {@code terraform show -json} into the map of keys the entities are given, reading it token by token;
+ * or one resource instance of the state as pulled, see {@link PulledStateReader}.
+ *
+ * Attribute values are flattened according to the {@link FlatteningRules} for the resource type as they are read.
+ * Whatever is not flattened is kept as JSON, turned into text only if someone reads it (see {@link LazyJson}): when the
+ * document is read from bytes, as a copy of the bytes of the value, taken by the locations of its first and last tokens;
+ * otherwise as compact JSON copied from the tokens. Either way no tree is built for it.
+ * Keys and short values are taken from the {@link StringPool}, as they repeat across resources and polls, and the result
+ * is a {@link CompactResourceMap} sharing its keys with the other resources of the same type.
+ */
+final class ResourceReader {
+
+    private static final List<String> RESOURCE_KEYS = ImmutableList.of("resource.address", "resource.mode", "resource.type", "resource.name", "resource.provider");
+    private static final List<String> MODULE_RESOURCE_KEYS = ImmutableList.<String>builder().addAll(RESOURCE_KEYS).add("resource.module").build();
+
+    private final FlatteningRules rules;
+
+    ResourceReader(FlatteningRules rules) {
+        this.rules = rules;
+    }
+
+    /**
+     * @param parser positioned on the start of the resource object, left on its end
+     * @param source the bytes the parser reads, or null if it does not read bytes
+     * @param sourceOffset where in {@code source} the parser started reading
+     * @param moduleAddress address of the child module the resource belongs to, or null for the root module
+     */
+    Map<String, Object> read(final JsonParser parser, final byte[] source, final int sourceOffset, final String moduleAddress) throws IOException {
+        final Values values = new Values(parser, source, sourceOffset);
+        final Values sensitiveValues = new Values(parser, source, sourceOffset);
+        String address = null, mode = null, type = null, name = null, provider = null;
+        TreeNode valuesBeforeType = null;
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            final String field = parser.getCurrentName();
+            final JsonToken token = parser.nextToken();
+            switch (field) {
+                case "address": address = parser.getValueAsString(); break;
+                case "mode": mode = StringPool.canonical(parser.getValueAsString()); break;
+                case "type": type = StringPool.canonical(parser.getValueAsString()); break;
+                case "name": name = StringPool.canonical(parser.getValueAsString()); break;
+                case "provider_name": provider = StringPool.canonical(parser.getValueAsString()); break;
+                case "values":
+                    if (token != JsonToken.START_OBJECT) {
+                        parser.skipChildren();
+                    } else if (type == null) {
+                        // cannot tell which rule applies yet; terraform writes the type first, so this is not expected
+                        valuesBeforeType = parser.readValueAsTree();
+                    } else {
+                        values.readAttributes("value.", rules.forType(type));
+                    }
+                    break;
+                case "sensitive_values":
+                    if (token == JsonToken.START_OBJECT) {
+                        sensitiveValues.readAttributes("sensitive.value.", FlatteningRules.Rule.NONE);
+                    } else {
+                        parser.skipChildren();
+                    }
+                    break;
+                default:
+                    parser.skipChildren();
+            }
+        }
+        if (address == null || mode == null || type == null || name == null || provider == null) {
+            throw new IllegalArgumentException("A resource should have an address, mode, type, name and provider_name" + (address == null ? "" : ": " + address));
+        }
+        if (valuesBeforeType != null) {
+            try (JsonParser valuesParser = valuesBeforeType.traverse(parser.getCodec())) {
+                valuesParser.nextToken();
+                values.putAll(new Values(valuesParser, null, 0).readAttributes("value.", rules.forType(type)));
+            }
+        }
+
+        if (moduleAddress != null && !address.startsWith(moduleAddress + ".")) {
+            address = moduleAddress + "." + address;
+        }
+        return toMap(address, mode, type, name, provider, moduleAddress, values, sensitiveValues);
+    }
+
+    /**
+     * Converts one instance of a resource of the state as pulled, given what {@code terraform show -json} would have said of it.
+     * @param attributes parser positioned on the start of the object of attributes of the instance, left on its end
+     * @param source the bytes the parser reads
+     * @param sourceOffset where in {@code source} the parser started reading
+     * @param sensitiveValues by attribute, {@code true} or JSON shaped like its value telling which parts of it are sensitive
+     *                        (as {@code sensitive_values} of {@code terraform show -json})
+     */
+    Map<String, Object> readInstance(final String address, final String mode, final String type, final String name, final String provider,
+                                     final String moduleAddress, final JsonParser attributes, final byte[] source, final int sourceOffset,
+                                     final Map<String, String> sensitiveValues) throws IOException {
+        final Values values = new Values(attributes, source, sourceOffset).readAttributes("value.", rules.forType(type));
+        final Values sensitive = new Values(null, null, 0);
+        sensitiveValues.forEach((attribute, value) -> sensitive.putIfNotBlank(StringPool.prefixed("sensitive.value.", attribute), value));
+        return toMap(address, StringPool.canonical(mode), StringPool.canonical(type), StringPool.canonical(name), StringPool.canonical(provider),
+                moduleAddress, values, sensitive);
+    }
+
+    private static Map<String, Object> toMap(final String address, final String mode, final String type, final String name, final String provider,
+                                             final String moduleAddress, final Values values, final Values sensitiveValues) {
+        final int size = (moduleAddress == null ? 5 : 6) + values.size() + sensitiveValues.size();
+        final List<String> keys = new ArrayList<>(size);
+        final List<Object> resourceValues = new ArrayList<>(size);
+        keys.addAll(moduleAddress == null ? RESOURCE_KEYS : MODULE_RESOURCE_KEYS);
+        resourceValues.addAll(Arrays.asList(address, mode, type, name, provider));
+        if (moduleAddress != null) {
+            resourceValues.add(StringPool.canonical(moduleAddress));
+        }
+        keys.addAll(values.keySet());
+        resourceValues.addAll(values.values());
+        keys.addAll(sensitiveValues.keySet());
+        resourceValues.addAll(sensitiveValues.values());
+        return new CompactResourceMap(keys, resourceValues);
+    }
+
+    /**
+     * The values read from an object of attributes, by key.
+     */
+    private static final class Values extends LinkedHashMap<String, Object> {
+        private final JsonParser parser;
+        private final byte[] source;
+        private final int sourceOffset;
+
+        Values(JsonParser parser, byte[] source, int sourceOffset) {
+            this.parser = parser;
+            this.source = source;
+            this.sourceOffset = sourceOffset;
+        }
+
+        /**
+         * Reads the object of attributes the parser is on, leaving it on its end.
+         */
+        Values readAttributes(final String prefix, final FlatteningRules.Rule rule) throws IOException {
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final String attribute = parser.getCurrentName();
+                parser.nextToken();
+                readValue(StringPool.prefixed(prefix, attribute), attribute, 1, rule);
+            }
+            return this;
+        }
+
+        /**
+         * Adds the value the parser is on under {@code key}, or, if it is a list or object the rule flattens,
+         * each of its values under {@code key[index]} or {@code key.field}. Blank values are left out.
+         */
+        private void readValue(final String key, final String path, final int depth, final FlatteningRules.Rule rule) throws IOException {
+            final JsonToken token = parser.currentToken();
+            if (!token.isStructStart()) {
+                putIfNotBlank(key, scalarText(token));
+            } else if (!rule.isFlattened(path, depth)) {
+                if (source == null) {
+                    final byte[] json = LazyJson.copyAsBytes(parser);
+                    // the blank items are at most 4 bytes long
+                    if (json.length > 4 || !BLANK_ITEMS.contains(new String(json, StandardCharsets.UTF_8))) {
+                        put(StringPool.canonical(key), new LazyJson(json));
+                    }
+                } else {
+                    final int start = sourceOffset + (int) parser.getTokenLocation().getByteOffset();
+                    if (!skipIsBlank()) {
+                        final int end = sourceOffset + (int) parser.getCurrentLocation().getByteOffset();
+                        put(StringPool.canonical(key), new LazyJson(Arrays.copyOfRange(source, start, end)));
+                    }
+                }
+            } else if (token == JsonToken.START_OBJECT) {
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    final String field = parser.getCurrentName();
+                    parser.nextToken();
+                    readValue(key + "." + field, path + "." + field, depth + 1, rule);
+                }
+            } else {
+                for (int i = 0; parser.nextToken() != JsonToken.END_ARRAY; i++) {
+                    readValue(key + "[" + i + "]", path, depth + 1, rule);
+                }
+            }
+        }
+
+        /**
+         * @return strings as they are, anything else as JSON
+         */
+        private String scalarText(final JsonToken token) throws IOException {
+            if (token.isNumeric()) {
+                return String.valueOf(parser.getNumberValue());
+            }
+            return token == JsonToken.VALUE_NULL ? "null" : parser.getText();
+        }
+
+        /**
+         * Skips the list or object the parser is on, leaving it on its end.
+         * @return whether it is one of the {@link StateParser#BLANK_ITEMS}: {@code []}, <code>{}</code> or <code>[{}]</code>
+         */
+        private boolean skipIsBlank() throws IOException {
+            final JsonToken start = parser.currentToken();
+            JsonToken second = null;
+            int tokens = 1;
+            for (int depth = 1; depth > 0; tokens++) {
+                final JsonToken token = parser.nextToken();
+                if (token == null) {
+                    throw new IOException("Unexpected end of Terraform state");
+                }
+                if (tokens == 1) {
+                    second = token;
+                }
+                if (token.isStructStart()) {
+                    depth++;
+                } else if (token.isStructEnd()) {
+                    depth--;
+                }
+            }
+            return tokens == 2 || (tokens == 4 && start == JsonToken.START_ARRAY && second == JsonToken.START_OBJECT);
+        }
+
+        private void putIfNotBlank(final String key, final String value) {
+            if (!BLANK_ITEMS.contains(value)) {
+                put(StringPool.canonical(key), StringPool.canonical(value));
+            }
+        }
+    }
+}
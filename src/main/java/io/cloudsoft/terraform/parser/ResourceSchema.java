@@ -0,0 +1,93 @@
+package io.cloudsoft.terraform.parser;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * The keys of a {@link CompactResourceMap}, in order: an immutable layout shared by all the resources described with the
+ * same keys, which in practice means one (or a handful) per resource type.
+ *
+ * Layouts are looked up by their keys and held weakly, so a layout goes away with the last resource using it.
+ * The layouts a key is added to, or removed from, are remembered by the layout, so that maps growing the same way share them too.
+ */
+public final class ResourceSchema {
+
+    private static final Cache<List<String>, ResourceSchema> SCHEMAS = CacheBuilder.newBuilder().weakValues().build();
+
+    private final ImmutableList<String> keys;
+    private final ImmutableMap<String, Integer> index;
+    private final Map<String, ResourceSchema> withKey = new ConcurrentHashMap<>();
+    private final Map<String, ResourceSchema> withoutKey = new ConcurrentHashMap<>();
+
+    private ResourceSchema(ImmutableList<String> keys) {
+        this.keys = keys;
+        ImmutableMap.Builder<String, Integer> index = ImmutableMap.builder();
+        for (int i = 0; i < keys.size(); i++) {
+            index.put(keys.get(i), i);
+        }
+        this.index = index.build();
+    }
+
+    /**
+     * @param keys distinct keys, in order
+     * @return the shared layout for these keys
+     */
+    public static ResourceSchema of(List<String> keys) {
+        final ImmutableList<String> copy = ImmutableList.copyOf(keys);
+        try {
+            return SCHEMAS.get(copy, () -> new ResourceSchema(copy));
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Cannot create the layout for " + keys, e.getCause());
+        }
+    }
+
+    public List<String> keys() {
+        return keys;
+    }
+
+    public int size() {
+        return keys.size();
+    }
+
+    String keyAt(int i) {
+        return keys.get(i);
+    }
+
+    /**
+     * @return the position of the key, -1 if it is not part of this layout
+     */
+    int indexOf(Object key) {
+        final Integer i = index.get(key);
+        return i == null ? -1 : i;
+    }
+
+    /**
+     * @return the layout with {@code key} appended
+     */
+    ResourceSchema with(String key) {
+        return withKey.computeIfAbsent(key, k -> of(ImmutableList.<String>builder().addAll(keys).add(k).build()));
+    }
+
+    /**
+     * @return the layout without {@code key}, which must be part of this layout
+     */
+    ResourceSchema without(String key) {
+        return withoutKey.computeIfAbsent(key, k -> {
+            ImmutableList.Builder<String> remaining = ImmutableList.builder();
+            keys.stream().filter(other -> !other.equals(k)).forEach(remaining::add);
+            return of(remaining.build());
+        });
+    }
+
+    @Override
+    public String toString() {
+        return "ResourceSchema" + keys;
+    }
+}
@@ -0,0 +1,110 @@
+package io.cloudsoft.terraform.parser;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.Hashing;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * How the resources of a state differ from those of the previous poll, told apart by their content hashes:
+ * which addresses were added, removed or modified, and which are unchanged.
+ *
+ * Only the hashes of the previous poll are kept, by {@link #getHashes()}, not its resources.
+ */
+public final class StateChanges {
+
+    public static final StateChanges NONE = new StateChanges(ImmutableMap.of(), ImmutableSet.of(), ImmutableSet.of(), ImmutableSet.of(), ImmutableSet.of());
+
+    private final Map<String, Long> hashes;
+    private final Set<String> added;
+    private final Set<String> removed;
+    private final Set<String> modified;
+    private final Set<String> unchanged;
+
+    private StateChanges(Map<String, Long> hashes, Set<String> added, Set<String> removed, Set<String> modified, Set<String> unchanged) {
+        this.hashes = hashes;
+        this.added = added;
+        this.removed = removed;
+        this.modified = modified;
+        this.unchanged = unchanged;
+    }
+
+    /**
+     * @param previousHashes the {@link #getHashes() hashes} of the previous poll, empty if there was none
+     * @param resources the resources now in the state, by address
+     */
+    public static StateChanges between(Map<String, Long> previousHashes, Map<String, Map<String, Object>> resources) {
+        final ImmutableMap.Builder<String, Long> hashes = ImmutableMap.builder();
+        final ImmutableSet.Builder<String> added = ImmutableSet.builder();
+        final ImmutableSet.Builder<String> modified = ImmutableSet.builder();
+        final ImmutableSet.Builder<String> unchanged = ImmutableSet.builder();
+        resources.forEach((address, resource) -> {
+            final long hash = contentHash(resource);
+            hashes.put(address, hash);
+            final Long previous = previousHashes.get(address);
+            if (previous == null) {
+                added.add(address);
+            } else if (previous == hash) {
+                unchanged.add(address);
+            } else {
+                modified.add(address);
+            }
+        });
+        final ImmutableSet.Builder<String> removed = ImmutableSet.builder();
+        previousHashes.keySet().stream().filter(address -> !resources.containsKey(address)).forEach(removed::add);
+        return new StateChanges(hashes.build(), added.build(), removed.build(), modified.build(), unchanged.build());
+    }
+
+    /**
+     * @param hashes the {@link #getHashes() hashes} of the previous poll, whose state has not been written since
+     * @return every resource of that poll unchanged
+     */
+    public static StateChanges unchanged(Map<String, Long> hashes) {
+        return new StateChanges(ImmutableMap.copyOf(hashes), ImmutableSet.of(), ImmutableSet.of(), ImmutableSet.of(), ImmutableSet.copyOf(hashes.keySet()));
+    }
+
+    /**
+     * @return the hash of a parsed resource, or of the text of each entry of any other map
+     */
+    static long contentHash(Map<String, Object> resource) {
+        if (resource instanceof CompactResourceMap) {
+            return ((CompactResourceMap) resource).getContentHash();
+        }
+        return Hashing.murmur3_128().hashString(resource.toString(), StandardCharsets.UTF_8).asLong();
+    }
+
+    /**
+     * @return the content hash of each resource, by address, to compare the next poll with
+     */
+    public Map<String, Long> getHashes() {
+        return hashes;
+    }
+
+    public Set<String> getAdded() {
+        return added;
+    }
+
+    public Set<String> getRemoved() {
+        return removed;
+    }
+
+    public Set<String> getModified() {
+        return modified;
+    }
+
+    public Set<String> getUnchanged() {
+        return unchanged;
+    }
+
+    public boolean isUnchanged(String address) {
+        return unchanged.contains(address);
+    }
+
+    @Override
+    public String toString() {
+        return "StateChanges{added=" + added.size() + ", removed=" + removed.size() + ", modified=" + modified.size() + ", unchanged=" + unchanged.size() + "}";
+    }
+}
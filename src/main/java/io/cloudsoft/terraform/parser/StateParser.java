@@ -1,27 +1,34 @@
 package io.cloudsoft.terraform.parser;
 
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.DeserializationFeature;
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.ArrayNode;
-import com.fasterxml.jackson.databind.node.TextNode;
+import com.fasterxml.jackson.core.JsonToken;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import io.cloudsoft.terraform.TerraformConfiguration;
+import io.cloudsoft.terraform.util.ParallelismController;
 import org.apache.brooklyn.util.collections.MutableMap;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.function.Predicate;
-import java.util.stream.Collectors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 import static io.cloudsoft.terraform.TerraformDriver.*;
 import static io.cloudsoft.terraform.parser.PlanLogEntry.NO_CHANGES;
-import static io.cloudsoft.terraform.parser.PlanLogEntry.Provider.GOOGLE;
 
 /**
  * Naive version. To be improved further.
@@ -35,237 +42,497 @@ public final class StateParser {
      */
     public static final ImmutableList PROBLEMATIC_RESOURCES = ImmutableList.of("aws_emr_cluster.spark_cluster");
 
-    private static  Predicate<? super PlanLogEntry> providerPredicate = (Predicate<PlanLogEntry>) ple -> ple.getProvider() != PlanLogEntry.Provider.NOT_SUPPORTED;
-    private static  Predicate<? super PlanLogEntry> changeSummaryPredicate = (Predicate<PlanLogEntry>) ple -> ple.type == PlanLogEntry.LType.CHANGE_SUMMARY;
-    private static  Predicate<? super PlanLogEntry> outputsPredicate = (Predicate<PlanLogEntry>) ple -> ple.type == PlanLogEntry.LType.OUTPUTS;
-    private static  Predicate<? super PlanLogEntry> plannedChangedPredicate = (Predicate<PlanLogEntry>) ple -> ple.type == PlanLogEntry.LType.PLANNED_CHANGE;
-    private static  Predicate<? super PlanLogEntry> driftPredicate = (Predicate<PlanLogEntry>) ple -> ple.type == PlanLogEntry.LType.RESOURCE_DRIFT;
-    private static  Predicate<? super PlanLogEntry> errorPredicate = (Predicate<PlanLogEntry>) ple -> ple.type == PlanLogEntry.LType.DIAGNOSTIC;
-    private static Predicate<? super JsonNode> isNotBlankPredicate = node -> node != null && !BLANK_ITEMS.contains((node instanceof TextNode) ? node.asText() : node.toString());
+    /**
+     * Child modules of a state are converted in parallel on this pool, of its own so that large states do not take
+     * the common pool from the rest of the server, and of at most a few threads.
+     */
+    private static final ForkJoinPool MODULE_POOL = new ForkJoinPool(Math.min(4, Runtime.getRuntime().availableProcessors()), pool -> {
+        final ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+        thread.setName("brooklyn-terraform-state-parser-" + thread.getPoolIndex());
+        thread.setDaemon(true);
+        return thread;
+    }, null, false);
 
+    private static final BiConsumer<PlanLogSummary, PlanLogEntry> IGNORE = (summary, ple) -> {};
 
-    public static Map<String, Map<String,Object>> parseResources(final String state){
-        Map<String, Map<String,Object>> result  = MutableMap.of();
-        ObjectMapper objectMapper = new ObjectMapper();
-        try {
-            JsonNode root = objectMapper.readTree(state);
+    /**
+     * What to do with each type of plan log entry; types not listed here only count towards provider detection.
+     */
+    private static final Map<PlanLogEntry.LType, BiConsumer<PlanLogSummary, PlanLogEntry>> PLAN_LOG_HANDLERS = new EnumMap<>(PlanLogEntry.LType.class);
+    static {
+        PLAN_LOG_HANDLERS.put(PlanLogEntry.LType.CHANGE_SUMMARY, (summary, ple) -> { if (summary.changeSummary == null) summary.changeSummary = ple; });
+        PLAN_LOG_HANDLERS.put(PlanLogEntry.LType.OUTPUTS, (summary, ple) -> { if (summary.outputs == null) summary.outputs = ple; });
+        PLAN_LOG_HANDLERS.put(PlanLogEntry.LType.PLANNED_CHANGE, (summary, ple) -> summary.plannedChanges.add(ple));
+        PLAN_LOG_HANDLERS.put(PlanLogEntry.LType.RESOURCE_DRIFT, (summary, ple) -> summary.drifts.add(ple));
+        PLAN_LOG_HANDLERS.put(PlanLogEntry.LType.DIAGNOSTIC, (summary, ple) -> { if (!isTargetingWarning(ple)) summary.diagnostics.add(ple); });
+    }
+
+    /**
+     * Reads the {@code lineage} and {@code serial} of the output of {@code terraform state pull}, which together identify
+     * a version of the state: terraform increments the serial whenever it writes a state of the same lineage.
+     * Only the top-level fields are looked at; the resources are skipped without being read.
+     * @return {@code lineage/serial}, or null if the state has neither (e.g. nothing was applied yet)
+     */
+    public static String parseStateVersion(final String statePull){
+        if (StringUtils.isBlank(statePull)) {
+            return null;
+        }
+        try (JsonParser parser = JsonReaders.STATE.createParser(statePull)) {
+            return parseStateVersion(parser);
+        } catch (IOException e) {
+            LOG.debug("Cannot read the version of Terraform state (ignoring): " + e);
+            return null;
+        }
+    }
 
-            if(root.isEmpty() || !root.isContainerNode()) {
-                throw new  IllegalArgumentException ("This is not a valid TF state!");
+    /**
+     * As {@link #parseStateVersion(String)}, reading the state only as far as the lineage and serial.
+     */
+    public static String parseStateVersion(final InputStream statePull){
+        try (JsonParser parser = JsonReaders.STATE.createParser(statePull)) {
+            return parseStateVersion(parser);
+        } catch (IOException e) {
+            LOG.debug("Cannot read the version of Terraform state (ignoring): " + e);
+            return null;
+        }
+    }
+
+    private static String parseStateVersion(final JsonParser parser) throws IOException {
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            return null;
+        }
+        String lineage = null, serial = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME && (lineage == null || serial == null)) {
+            final String field = parser.getCurrentName();
+            parser.nextToken();
+            if ("lineage".equals(field)) {
+                lineage = parser.getValueAsString();
+            } else if ("serial".equals(field)) {
+                serial = parser.getValueAsString();
+            } else {
+                parser.skipChildren();
             }
-            if (root.get("terraform_version") == null) {
+        }
+        return lineage == null || serial == null ? null : lineage + "/" + serial;
+    }
+
+    public static Map<String, Map<String,Object>> parseResources(final String state){
+        return parseResources(state, FlatteningRules.DEFAULT);
+    }
+
+    /**
+     * Nested values which are not flattened are kept as (copied) slices of the UTF-8 bytes of {@code state}, and only turned
+     * into text when they are first read from the resulting maps.
+     * @param flatteningRules which nested attribute values are flattened into keys of their own, per resource type
+     */
+    public static Map<String, Map<String,Object>> parseResources(final String state, final FlatteningRules flatteningRules){
+        Map<String, Map<String,Object>> result  = MutableMap.of();
+        final byte[] source = state.getBytes(StandardCharsets.UTF_8);
+        try (JsonParser parser = JsonReaders.STATE.createParser(source)) {
+            if (!parseResources(parser, source, new ResourceReader(flatteningRules), resourceBody -> result.put(resourceBody.get("resource.address").toString(), resourceBody))) {
                 // probably no data
-                return result;
+                result.clear();
             }
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot parse Terraform state!", e);
+        }
+        return result;
+    }
 
-            if(!root.has("values")) {
-                throw new  IllegalArgumentException ("A valid deployment state should have a values node!");
-            }
-            if(!root.get("values").has("root_module")) {
-                throw new  IllegalArgumentException ("A valid deployment state should have a root_module node!");
-            }
-            if(!root.get("values").get("root_module").has("resources")) {
-                throw new  IllegalArgumentException ("A valid deployment state should have a resources node!");
+    public static Map<String, Map<String,Object>> parsePulledState(final String statePull){
+        return parsePulledState(statePull, FlatteningRules.DEFAULT);
+    }
+
+    /**
+     * Makes the same resources {@link #parseResources(String, FlatteningRules)} makes of {@code terraform show -json}
+     * from the output of {@code terraform state pull}, so that terraform need not be run a second time (see {@link PulledStateReader}).
+     * Values of resources which are sensitive only because their provider's schema says so may not be marked as such in the state,
+     * and are then not reported as sensitive.
+     * @return null if the state is not in format version 4 (written by terraform 0.13 and later), in which case the output of
+     *         {@code terraform show -json} has to be parsed instead; empty if nothing was applied yet
+     */
+    public static Map<String, Map<String,Object>> parsePulledState(final String statePull, final FlatteningRules flatteningRules){
+        Map<String, Map<String,Object>> result  = MutableMap.of();
+        if (StringUtils.isBlank(statePull)) {
+            return result;
+        }
+        try {
+            if (!new PulledStateReader(new ResourceReader(flatteningRules)).read(statePull.getBytes(StandardCharsets.UTF_8),
+                    resourceBody -> result.put(resourceBody.get("resource.address").toString(), resourceBody))) {
+                return null;
             }
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot parse Terraform state!", e);
+        }
+        return result;
+    }
 
-            JsonNode resourceNode = root.at("/values/root_module/resources");
-            resourceNode.forEach(resource ->  {
-                Map<String, Object>  resourceBody = new LinkedHashMap<>();
-
-                //if (resource.has("mode") && "managed".equals(resource.get("mode").asText())) {
-                    result.put(resource.get("address").asText(), resourceBody);
-
-                    resourceBody.put("resource.address", resource.get("address").asText());
-                    resourceBody.put("resource.mode", resource.get("mode").asText());
-                    resourceBody.put("resource.type", resource.get("type").asText());
-                    resourceBody.put("resource.name", resource.get("name").asText());
-                    resourceBody.put("resource.provider", resource.get("provider_name").asText());
-                    if(resource.has("values")) {
-                        Iterator<Map.Entry<String, JsonNode>>  it = resource.get("values").fields();
-                        while(it.hasNext()) {
-                            Map.Entry<String,JsonNode> value =  it.next();
-                            if(isNotBlankPredicate.test(value.getValue())) {
-                                if((resourceBody.get("resource.address").toString().startsWith(GOOGLE.getPrefix()) && value.getKey().equals("cluster_config"))){
-                                    parseClusterData(value.getValue(), "value.cluster_config", resourceBody);
-                                } else {
-                                    resourceBody.put("value." + value.getKey(), value.getValue() instanceof TextNode? value.getValue().asText() : value.getValue().toString());
-                                }
-                            }
-                        }
-                    }
+    /**
+     * Streaming variant of {@link #parseResources(String)}: the output of {@code terraform show -json} is read token by token
+     * and each resource is handed to {@code resourceConsumer} as soon as it has been read, so only one resource is held in
+     * memory at a time. Resources are reported with the same keys as {@link #parseResources(String)} uses.
+     *
+     * A state without a {@code terraform_version} has no data and nothing is reported for it
+     * ({@code terraform show} always writes the version before the values).
+     */
+    public static void parseResources(final InputStream state, final Consumer<Map<String,Object>> resourceConsumer){
+        parseResources(state, FlatteningRules.DEFAULT, resourceConsumer);
+    }
 
-                    if(resource.has("sensitive_values")) {
-                        Iterator<Map.Entry<String, JsonNode>>  it = resource.get("sensitive_values").fields();
-                        while(it.hasNext()) {
-                            Map.Entry<String,JsonNode> value =  it.next();
-                            if(isNotBlankPredicate.test(value.getValue())) {
-                                resourceBody.put("sensitive.value." + value.getKey(),  value.getValue() instanceof TextNode? value.getValue().asText() : value.getValue().toString());
-                            }
-                        }
-                    }
-                //}
+    public static void parseResources(final InputStream state, final FlatteningRules flatteningRules, final Consumer<Map<String,Object>> resourceConsumer){
+        try (JsonParser parser = JsonReaders.STATE.createParser(state)) {
+            parseResources(parser, null, new ResourceReader(flatteningRules), resourceConsumer);
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot parse Terraform state!", e);
+        }
+    }
 
-            });
-        } catch (JsonProcessingException e) {
+    public static void parseResources(final Reader state, final Consumer<Map<String,Object>> resourceConsumer){
+        parseResources(state, FlatteningRules.DEFAULT, resourceConsumer);
+    }
+
+    public static void parseResources(final Reader state, final FlatteningRules flatteningRules, final Consumer<Map<String,Object>> resourceConsumer){
+        try (JsonParser parser = JsonReaders.STATE.createParser(state)) {
+            parseResources(parser, null, new ResourceReader(flatteningRules), resourceConsumer);
+        } catch (IOException e) {
             throw new IllegalStateException("Cannot parse Terraform state!", e);
         }
-        return result;
     }
 
     /**
-     * We need to process this node to extract useful cluster data.
-     * Careful with this one, because it is a tad recursive!
-     * @param value
-     * @return
+     * Walks {@code /values/root_module}, skipping everything else. Resources of the root module are reported as they are read;
+     * each child module is set aside as a range of bytes (of {@code source}, or a compact copy when reading characters or a stream)
+     * and its resources (and those of its own child modules) are converted on a fork-join pool, then reported in document order
+     * once the root module has been read.
+     * @param source the bytes the parser reads, if it reads a byte array, in which case child modules are read from ranges
+     *               of it rather than copies, and nested values are kept as slices of it until they are read; null otherwise
+     * @return false if the state has no {@code terraform_version}, i.e. there is no data
      */
-    private static void parseClusterData(JsonNode value, String prefix, Map<String,Object> result) {
-        if (value instanceof ArrayNode ) {
-            ArrayNode arrayNode = (ArrayNode) value;
-            for (int i = 0; i < arrayNode.size(); i++) {
-                JsonNode node = arrayNode.get(i);
-                if (node instanceof TextNode) {
-                    result.put(prefix +".[" + i + "]", node.asText());
-                } else {
-                    Iterator<Map.Entry<String, JsonNode>> it = node.fields();
-                    while (it.hasNext()) {
-                        Map.Entry<String, JsonNode> pair = it.next();
-                        if (isNotBlankPredicate.test(pair.getValue())) {
-                            switch (pair.getKey()) {
-                                case "master_config":
-                                    parseClusterData(pair.getValue(), prefix + "[" + i + "].master_config", result);
-                                    break;
-                                case "worker_config":
-                                    parseClusterData(pair.getValue(), prefix + "[" + i + "].worker_config", result);
-                                    break;
-                                case "instance_names":
-                                    parseClusterData(pair.getValue(), prefix + "[" + i + "].instance_name", result);
-                                    break;
-                                default:
-                                    if (pair.getValue() instanceof TextNode) {
-                                        result.put(prefix + "[" + i + "]." + pair.getKey(), pair.getValue().asText());
+    private static boolean parseResources(final JsonParser parser, final byte[] source, final ResourceReader resourceReader, final Consumer<Map<String,Object>> resourceConsumer) throws IOException {
+        if (parser.nextToken() != JsonToken.START_OBJECT || parser.nextToken() != JsonToken.FIELD_NAME) {
+            throw new  IllegalArgumentException ("This is not a valid TF state!");
+        }
+        boolean hasVersion = false, hasValues = false, hasRootModule = false, hasResources = false;
+        final List<ForkJoinTask<List<Map<String,Object>>>> childModules = new ArrayList<>();
+        for (; parser.currentToken() == JsonToken.FIELD_NAME; parser.nextToken()) {
+            final String field = parser.getCurrentName();
+            final JsonToken value = parser.nextToken();
+            if ("terraform_version".equals(field)) {
+                hasVersion = true;
+            } else if ("values".equals(field) && value == JsonToken.START_OBJECT) {
+                hasValues = true;
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    final String valuesField = parser.getCurrentName();
+                    if (parser.nextToken() == JsonToken.START_OBJECT && "root_module".equals(valuesField)) {
+                        hasRootModule = true;
+                        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                            final String moduleField = parser.getCurrentName();
+                            final JsonToken moduleValue = parser.nextToken();
+                            if (moduleValue == JsonToken.START_ARRAY && "resources".equals(moduleField)) {
+                                hasResources = true;
+                                while (parser.nextToken() == JsonToken.START_OBJECT) {
+                                    resourceConsumer.accept(resourceReader.read(parser, source, 0, null));
+                                }
+                            } else if (moduleValue == JsonToken.START_ARRAY && "child_modules".equals(moduleField)) {
+                                hasResources = true;
+                                while (parser.nextToken() == JsonToken.START_OBJECT) {
+                                    final ModuleResourcesTask childModule;
+                                    if (source != null) {
+                                        final int start = (int) parser.getTokenLocation().getByteOffset();
+                                        parser.skipChildren();
+                                        childModule = new ModuleResourcesTask(source, start, (int) parser.getCurrentLocation().getByteOffset() - start, resourceReader);
+                                    } else {
+                                        final byte[] module = LazyJson.copyAsBytes(parser);
+                                        childModule = new ModuleResourcesTask(module, 0, module.length, resourceReader);
                                     }
+                                    childModules.add(MODULE_POOL.submit(childModule));
+                                }
+                            } else {
+                                parser.skipChildren();
                             }
                         }
+                    } else {
+                        parser.skipChildren();
                     }
                 }
+            } else {
+                parser.skipChildren();
             }
         }
+        for (ForkJoinTask<List<Map<String,Object>>> childModule : childModules) {
+            childModule.join().forEach(resourceConsumer);
+        }
+
+        if (!hasVersion) {
+            return false;
+        }
+        if(!hasValues) {
+            throw new  IllegalArgumentException ("A valid deployment state should have a values node!");
+        }
+        if(!hasRootModule) {
+            throw new  IllegalArgumentException ("A valid deployment state should have a root_module node!");
+        }
+        if(!hasResources) {
+            throw new  IllegalArgumentException ("A valid deployment state should have a resources node!");
+        }
+        return true;
     }
 
-    public static Map<String, Object> parsePlanLogEntries(final String planLogEntriesAsStr){
-        String[] planLogEntries = planLogEntriesAsStr.split(System.lineSeparator());
-        ObjectMapper objectMapper = new ObjectMapper();
-        objectMapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+    /**
+     * Converts the resources of a child module, forking a task for each of its own child modules.
+     * The module is read from a range of bytes, so that it can be set aside without being converted first,
+     * and the values of its resources can be kept as byte slices (see {@link LazyJson}).
+     * Results are the module's resources followed by those of its child modules, depth first, in document order.
+     */
+    private static final class ModuleResourcesTask extends RecursiveTask<List<Map<String,Object>>> {
+        private final byte[] source;
+        private final int offset;
+        private final int length;
+        private final ResourceReader resourceReader;
 
-        List<PlanLogEntry> planLogs = Arrays.stream(planLogEntries).map(log -> {
+        ModuleResourcesTask(byte[] source, int offset, int length, ResourceReader resourceReader) {
+            this.source = source;
+            this.offset = offset;
+            this.length = length;
+            this.resourceReader = resourceReader;
+        }
+
+        @Override
+        protected List<Map<String, Object>> compute() {
+            // terraform writes the resources of a module before its address, so note where they are and read them afterwards
+            String moduleAddress = null;
+            final List<int[]> resources = new ArrayList<>();
+            final List<ModuleResourcesTask> children = new ArrayList<>();
+            final List<Map<String, Object>> result = new ArrayList<>();
             try {
-                return objectMapper.readValue(log, PlanLogEntry.class);
-            } catch (JsonProcessingException e) {
-                LOG.warn("Unable to parse plan log entry: "+log, e);
+                try (JsonParser parser = JsonReaders.STATE.createParser(source, offset, length)) {
+                    parser.nextToken();
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        final String field = parser.getCurrentName();
+                        final JsonToken value = parser.nextToken();
+                        if ("address".equals(field)) {
+                            moduleAddress = parser.getValueAsString();
+                        } else if (value == JsonToken.START_ARRAY && ("resources".equals(field) || "child_modules".equals(field))) {
+                            while (parser.nextToken() == JsonToken.START_OBJECT) {
+                                final int start = offset + (int) parser.getTokenLocation().getByteOffset();
+                                parser.skipChildren();
+                                final int end = offset + (int) parser.getCurrentLocation().getByteOffset();
+                                if ("resources".equals(field)) {
+                                    resources.add(new int[] {start, end - start});
+                                } else {
+                                    final ModuleResourcesTask child = new ModuleResourcesTask(source, start, end - start, resourceReader);
+                                    child.fork();
+                                    children.add(child);
+                                }
+                            }
+                        } else {
+                            parser.skipChildren();
+                        }
+                    }
+                }
+                for (int[] resource : resources) {
+                    try (JsonParser parser = JsonReaders.STATE.createParser(source, resource[0], resource[1])) {
+                        parser.nextToken();
+                        result.add(resourceReader.read(parser, source, resource[0], moduleAddress));
+                    }
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot parse Terraform state!", e);
             }
+            children.forEach(child -> result.addAll(child.join()));
+            return result;
+        }
+    }
+
+    /**
+     * @param showPlan the output of {@code terraform show -json <planfile>}
+     * @return the model of the plan, null if there is no output
+     */
+    public static PlanModel parsePlan(final String showPlan){
+        if (StringUtils.isBlank(showPlan)) {
             return null;
-        }).filter(Objects::nonNull).collect(Collectors.toList());
+        }
+        try {
+            return JsonReaders.PLAN.readValue(showPlan);
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot parse Terraform plan!", e);
+        }
+    }
 
-        Map<String, Object> result = new HashMap<>();
+    public static Map<String, Object> parsePlanLogEntries(final String planLogEntriesAsStr){
+        return parsePlanLogEntries(new StringReader(planLogEntriesAsStr));
+    }
 
-        planLogs.stream().filter(providerPredicate).findFirst().ifPresent(p -> result.put(PLAN_PROVIDER, p.getProvider()));
+    public static Map<String, Object> parsePlanLogEntries(final InputStream planLogEntries){
+        return parsePlanLogEntries(new InputStreamReader(planLogEntries, StandardCharsets.UTF_8));
+    }
 
-        Optional<PlanLogEntry> changeSummaryLog = planLogs.stream().filter(changeSummaryPredicate).findFirst(); // it is not there when the config is broken
-        final AtomicBoolean noChangesDetected = new AtomicBoolean(false);
-        if(changeSummaryLog.isPresent()) {
-            if (NO_CHANGES.equals(changeSummaryLog.get().message)) {
-                result.put(PLAN_MESSAGE, "No changes. Your infrastructure matches the configuration.");
-                result.put(PLAN_STATUS, TerraformConfiguration.TerraformStatus.SYNC);
-                noChangesDetected.set(true);
-            } else {
-                result.put(PLAN_MESSAGE, "Configuration and infrastructure do not match." + changeSummaryLog.get().message);
-                result.put(PLAN_STATUS, TerraformConfiguration.TerraformStatus.DESYNCHRONIZED);
+    /**
+     * Reads the output of {@code terraform plan -json} once, line by line. Each line is parsed with a {@link JsonParser}
+     * and handed to the handler registered for its {@link PlanLogEntry.LType}; the result map is built from what the
+     * handlers collected, so the log is never held as a list nor scanned more than once.
+     */
+    public static Map<String, Object> parsePlanLogEntries(final Reader planLogEntries){
+        final PlanLogSummary summary = new PlanLogSummary();
+        try (BufferedReader reader = new BufferedReader(planLogEntries)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (StringUtils.isBlank(line)) {
+                    continue;
+                }
+                final PlanLogEntry ple;
+                try (JsonParser parser = JsonReaders.PLAN_LOG_ENTRY.createParser(line)) {
+                    ple = JsonReaders.PLAN_LOG_ENTRY.readValue(parser);
+                } catch (JsonProcessingException e) {
+                    LOG.warn("Unable to parse plan log entry: "+line, e);
+                    continue;
+                }
+                if (ple != null) {
+                    summary.accept(ple);
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot read Terraform plan log!", e);
+        }
+        return summary.toResult();
+    }
+
+    private static boolean isTargetingWarning(PlanLogEntry ple) {
+        return ple.diagnostic != null && "warning".equals(ple.diagnostic.severity)
+                && ple.diagnostic.summary != null && ple.diagnostic.summary.startsWith(PlanLogEntry.TARGETING_IN_EFFECT);
+    }
+
+    /**
+     * Collects what is needed from the plan log entries as they are read; see {@link #PLAN_LOG_HANDLERS}.
+     */
+    private static final class PlanLogSummary {
+        private TerraformProvider provider;
+        private PlanLogEntry changeSummary; // it is not there when the config is broken
+        private PlanLogEntry outputs;
+        private final List<PlanLogEntry> plannedChanges = new ArrayList<>();
+        private final List<PlanLogEntry> drifts = new ArrayList<>();
+        private final List<PlanLogEntry> diagnostics = new ArrayList<>();
+
+        void accept(PlanLogEntry ple) {
+            if (provider == null && ple.message != null) {
+                TerraformProvider p = ple.getTerraformProvider();
+                if (p != PlanLogEntry.Provider.NOT_SUPPORTED) {
+                    provider = p;
+                }
+            }
+            if (ple.type != null) {
+                PLAN_LOG_HANDLERS.getOrDefault(ple.type, IGNORE).accept(this, ple);
             }
         }
 
-        planLogs.stream().filter(outputsPredicate).findFirst().ifPresent(ple -> {
-            List<Map<String,Object>> outputs = new ArrayList<>();
-            ple.outputs.forEach((oK, oV) -> {
-                if (!"noop".equals(oV.get("action"))) {
-                    outputs.add(ImmutableMap.of(
-                            "output.addr", oK,
-                            "output.action", oV.get("action").toString()
-                    ));
+        Map<String, Object> toResult() {
+            Map<String, Object> result = new HashMap<>();
+            if (provider != null) {
+                // the sensor keeps the built in provider; one only the registry knows is told by its name
+                result.put(PLAN_PROVIDER, provider instanceof PlanLogEntry.Provider ? provider : PlanLogEntry.Provider.UNKNOWN);
+                if (!(provider instanceof PlanLogEntry.Provider)) {
+                    result.put(PLAN_PROVIDER_NAME, provider.getName());
+                }
+            }
+
+            boolean noChangesDetected = false;
+            final String changeSummaryMessage = changeSummary == null ? "" : changeSummary.message;
+            if (changeSummary != null) {
+                if (NO_CHANGES.equals(changeSummary.message)) {
+                    result.put(PLAN_MESSAGE, "No changes. Your infrastructure matches the configuration.");
+                    result.put(PLAN_STATUS, TerraformConfiguration.TerraformStatus.SYNC);
+                    noChangesDetected = true;
+                } else {
+                    result.put(PLAN_MESSAGE, "Configuration and infrastructure do not match." + changeSummary.message);
+                    result.put(PLAN_STATUS, TerraformConfiguration.TerraformStatus.DESYNCHRONIZED);
+                }
+            }
+
+            if (outputs != null) {
+                List<Map<String,Object>> outputChanges = new ArrayList<>();
+                outputs.outputs.forEach((oK, oV) -> {
+                    if (!"noop".equals(oV.get("action"))) {
+                        outputChanges.add(ImmutableMap.of(
+                                "output.addr", oK,
+                                "output.action", oV.get("action").toString()
+                        ));
+                    }
+                });
+                if (!outputChanges.isEmpty()) {
+                    result.put("tf.output.changes", outputChanges);
                 }
-            });
-            if(!outputs.isEmpty()) {
-                result.put("tf.output.changes", outputs);
             }
-        });
 
-        if (planLogs.stream().anyMatch(plannedChangedPredicate)) {
             List<Map<String,Object>> resources = new ArrayList<>();
-            planLogs.stream().filter(plannedChangedPredicate).forEach(ple -> {
+            plannedChanges.forEach(ple -> {
                 if (!"noop".equals(ple.change.get("action"))) {
-                    resources.add(ImmutableMap.of(
-                            "resource.addr", ((Map<String, String>) ple.change.get("resource")).get("addr"),
-                            "resource.action", ple.change.get("action").toString()
-                    ));
+                    resources.add(resourceChange(ple));
                 }
             });
-            if(!resources.isEmpty()) {
+            if (!resources.isEmpty()) {
                 result.put(RESOURCE_CHANGES, resources);
             }
-        }
 
-        if (planLogs.stream().anyMatch(driftPredicate)) {
-            List<Map<String,Object>> resources = new ArrayList<>();
-            planLogs.stream().filter(driftPredicate).forEach(ple -> {
+            List<Map<String,Object>> driftedResources = new ArrayList<>();
+            for (PlanLogEntry ple : drifts) {
                 if (!"noop".equals(ple.change.get("action"))) {
-                    boolean isProblematic =   PROBLEMATIC_RESOURCES.contains(((Map<String, String>) ple.change.get("resource")).get("addr"));
-                    if (! (noChangesDetected.get() && isProblematic)) {
-                        resources.add(ImmutableMap.of(
-                                "resource.addr", ((Map<String, String>) ple.change.get("resource")).get("addr"),
-                                "resource.action", ple.change.get("action").toString()
-                        ));
+                    boolean isProblematic = PROBLEMATIC_RESOURCES.contains(((Map<String, String>) ple.change.get("resource")).get("addr"));
+                    if (!(noChangesDetected && isProblematic)) {
+                        driftedResources.add(resourceChange(ple));
                     }
                 }
-            });
-            if(!resources.isEmpty()) {
-                result.put(RESOURCE_CHANGES, resources);
+            }
+            if (!driftedResources.isEmpty()) {
+                result.put(RESOURCE_CHANGES, driftedResources);
                 result.put(PLAN_STATUS, TerraformConfiguration.TerraformStatus.DRIFT);
-                result.put(PLAN_MESSAGE, "Drift Detected. Configuration and infrastructure do not match. Run apply to align infrastructure and configuration. Configurations made outside terraform will be lost if not added to the configuration." +  changeSummaryLog.get().message);
+                result.put(PLAN_MESSAGE, "Drift Detected. Configuration and infrastructure do not match. Run apply to align infrastructure and configuration. Configurations made outside terraform will be lost if not added to the configuration." + changeSummaryMessage);
             }
-        }
 
-        if (planLogs.stream().anyMatch(errorPredicate)) {
-            List<Map<String,Object>> resources = new ArrayList<>();
-            result.put(PLAN_MESSAGE, "Something went wrong. Check your configuration.");
-            StringBuilder sb = new StringBuilder();
-            planLogs.stream().filter(ple -> ple.type == PlanLogEntry.LType.DIAGNOSTIC).forEach(ple -> {
-                if(StringUtils.isNotBlank(ple.diagnostic.address)) {
-                    resources.add(ImmutableMap.of(
-                            "resource.addr", ple.diagnostic.address,
-                            "resource.action", "No action. Unrecoverable state."
-                    ));
+            if (!diagnostics.isEmpty()) {
+                List<Map<String,Object>> unrecoverable = new ArrayList<>();
+                StringBuilder sb = new StringBuilder();
+                final long throttled = diagnostics.stream().filter(ple -> ParallelismController.isThrottling(ple.message)
+                        || (ple.diagnostic != null && (ParallelismController.isThrottling(ple.diagnostic.summary) || ParallelismController.isThrottling(ple.diagnostic.detail)))).count();
+                if (throttled > 0) {
+                    result.put(PLAN_THROTTLED, throttled);
                 }
-                if(ple.diagnostic.detail != null) {
-                    sb.append(ple.message + ple.diagnostic.detail).append("\n");
+                diagnostics.forEach(ple -> {
+                    if (StringUtils.isNotBlank(ple.diagnostic.address)) {
+                        unrecoverable.add(ImmutableMap.of(
+                                "resource.addr", ple.diagnostic.address,
+                                "resource.action", "No action. Unrecoverable state."
+                        ));
+                    }
+                    if (ple.diagnostic.detail != null) {
+                        sb.append(ple.message + ple.diagnostic.detail).append("\n");
+                    }
+                    sb.append(ple.message).append("\n");
+                });
+                result.put("tf.errors", sb);
+                result.put(PLAN_STATUS, TerraformConfiguration.TerraformStatus.ERROR);
+                if (!unrecoverable.isEmpty()) {
+                    result.put(RESOURCE_CHANGES, unrecoverable);
+                    result.put(PLAN_MESSAGE, "Terraform in UNRECOVERABLE error state.");
+                } else {
+                    result.put(PLAN_MESSAGE, "Terraform in RECOVERABLE error state. Check configuration syntax.");
                 }
-                sb.append(ple.message).append("\n");
-            });
-            result.put("tf.errors",  sb);
-            result.put(PLAN_STATUS, TerraformConfiguration.TerraformStatus.ERROR);
-            if(!resources.isEmpty()) {
-                result.put(RESOURCE_CHANGES, resources);
-                result.put(PLAN_MESSAGE, "Terraform in UNRECOVERABLE error state.");
-            } else {
-                result.put(PLAN_MESSAGE, "Terraform in RECOVERABLE error state. Check configuration syntax.");
+                return result;
+            }
+
+            if (result.get(PLAN_STATUS) == TerraformConfiguration.TerraformStatus.SYNC && result.containsKey("tf.output.changes")) {
+                // infrastructure is ok, only the outputs set has changed
+                result.put(PLAN_MESSAGE, "Outputs configuration was changed." + changeSummaryMessage);
+                result.put(PLAN_STATUS, TerraformConfiguration.TerraformStatus.DESYNCHRONIZED);
             }
             return result;
         }
 
-        if(result.get(PLAN_STATUS) == TerraformConfiguration.TerraformStatus.SYNC && result.containsKey("tf.output.changes")) {
-            // infrastructure is ok, only the outputs set has changed
-            result.put(PLAN_MESSAGE, "Outputs configuration was changed." + changeSummaryLog.get().message);
-            result.put(PLAN_STATUS, TerraformConfiguration.TerraformStatus.DESYNCHRONIZED);
+        private static Map<String, Object> resourceChange(PlanLogEntry ple) {
+            return ImmutableMap.of(
+                    "resource.addr", ((Map<String, String>) ple.change.get("resource")).get("addr"),
+                    "resource.action", ple.change.get("action").toString()
+            );
         }
-        return result;
     }
 
 }
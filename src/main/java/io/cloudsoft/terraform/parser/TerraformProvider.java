@@ -0,0 +1,14 @@
+package io.cloudsoft.terraform.parser;
+
+/**
+ * A Terraform provider, recognised by the prefix of the types of its resources (e.g. {@code aws_} for {@code aws_instance}).
+ *
+ * The providers built in are the {@link PlanLogEntry.Provider} constants; others are added to the {@link ProviderRegistry},
+ * e.g. by listing implementations of this interface in {@code META-INF/services/io.cloudsoft.terraform.parser.TerraformProvider}.
+ */
+public interface TerraformProvider {
+
+    String getName();
+
+    String getPrefix();
+}
@@ -0,0 +1,126 @@
+package io.cloudsoft.terraform.util;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Decides what each poll of a deployment refreshes, so that the cloud is not asked about every resource on every poll.
+ *
+ * Resources which drifted, had changes planned or changed in the state are <em>hot</em> for a while after; they are
+ * refreshed with {@code -target} at most every targeted period. The whole deployment is refreshed every full period,
+ * when asked for (e.g. after an apply), and when there are too many hot resources for targeting them to be worth it.
+ * Polls which refresh nothing still plan, without refreshing, so changes to the configuration are seen; unless resources
+ * are hot and waiting for their targeted refresh, in which case the poll is skipped, as a plan which does not refresh
+ * them would not report their drift.
+ */
+public final class IncrementalRefresh {
+
+    public enum Kind { FULL, TARGETED, NONE, SKIP }
+
+    /** what a poll refreshes */
+    public static final class Run {
+        private final Kind kind;
+        private final Set<String> targets;
+
+        Run(Kind kind, Set<String> targets) {
+            this.kind = kind;
+            this.targets = targets;
+        }
+
+        public Kind getKind() {
+            return kind;
+        }
+
+        public boolean isRefresh() {
+            return kind == Kind.FULL || kind == Kind.TARGETED;
+        }
+
+        /** @return the addresses to refresh, empty unless {@link Kind#TARGETED} */
+        public Set<String> getTargets() {
+            return targets;
+        }
+
+        @Override
+        public String toString() {
+            return kind == Kind.TARGETED ? "targeted (" + targets.size() + " resources)" : kind.name().toLowerCase();
+        }
+    }
+
+    private final long targetedPeriodMillis;
+    private final long fullPeriodMillis;
+    private final long hotForMillis;
+    private final int maxTargets;
+
+    /** hot addresses, by when they were last seen changing */
+    private final Map<String, Long> hot = new HashMap<>();
+    private long lastFull = -1;
+    private long lastTargeted = -1;
+    private boolean fullRequested;
+
+    /**
+     * @param maxTargets the number of hot resources above which the deployment is refreshed in full instead
+     */
+    public IncrementalRefresh(long targetedPeriodMillis, long fullPeriodMillis, long hotForMillis, int maxTargets) {
+        this.targetedPeriodMillis = targetedPeriodMillis;
+        this.fullPeriodMillis = fullPeriodMillis;
+        this.hotForMillis = hotForMillis;
+        this.maxTargets = maxTargets;
+    }
+
+    /**
+     * @return what the poll starting at {@code now} should refresh; it is taken as done once {@link #completed(Run, long)} is called
+     */
+    public synchronized Run next(long now) {
+        hot.values().removeIf(seen -> now - seen > hotForMillis);
+        if (fullRequested || lastFull < 0 || now - lastFull >= fullPeriodMillis || hot.size() > maxTargets) {
+            return new Run(Kind.FULL, Collections.emptySet());
+        }
+        if (hot.isEmpty()) {
+            return new Run(Kind.NONE, Collections.emptySet());
+        }
+        if (lastTargeted < 0 || now - lastTargeted >= targetedPeriodMillis) {
+            return new Run(Kind.TARGETED, Collections.unmodifiableSet(new TreeSet<>(hot.keySet())));
+        }
+        return new Run(Kind.SKIP, Collections.emptySet());
+    }
+
+    public synchronized void completed(Run run, long now) {
+        if (run.getKind() == Kind.FULL) {
+            lastFull = now;
+            lastTargeted = now;
+            fullRequested = false;
+        } else if (run.getKind() == Kind.TARGETED) {
+            lastTargeted = now;
+        }
+    }
+
+    /**
+     * Marks resources as hot, from {@code now}.
+     */
+    public synchronized void changed(Collection<String> addresses, long now) {
+        addresses.forEach(address -> hot.put(address, now));
+    }
+
+    /**
+     * Forgets resources no longer in the deployment.
+     */
+    public synchronized void removed(Collection<String> addresses) {
+        hot.keySet().removeAll(addresses);
+    }
+
+    /**
+     * Has the next poll refresh the whole deployment.
+     */
+    public synchronized void requestFull() {
+        fullRequested = true;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "IncrementalRefresh{hot=" + hot.size() + ", lastFull=" + lastFull + (fullRequested ? ", fullRequested" : "") + "}";
+    }
+}
@@ -0,0 +1,117 @@
+package io.cloudsoft.terraform.util;
+
+import java.util.regex.Pattern;
+
+/**
+ * Chooses the {@code -parallelism} of the Terraform runs of a deployment from what its previous runs showed.
+ *
+ * The first value follows the number of resources, from Terraform's default of {@value #TERRAFORM_DEFAULT} up to one
+ * for every ten resources. From then on it grows by a quarter for as long as plans are slow and get faster for it,
+ * goes back to the previous value once a larger one no longer makes plans faster, and halves as soon as a run is throttled
+ * by the provider, after which the next {@value #COOLDOWN_RUNS} runs are not taken into account. Once it has gone back or
+ * halved it no longer grows, until the number of resources changes by a quarter. It is never more than the number of
+ * resources, and stays between the minimum and maximum given.
+ */
+public final class ParallelismController {
+
+    public static final int TERRAFORM_DEFAULT = 10;
+
+    /** runs shorter than this are not worth running with more parallelism */
+    static final long SLOW_RUN_MILLIS = 10_000;
+    /** how much faster a run with more parallelism must be for the parallelism to keep growing */
+    static final double MIN_IMPROVEMENT = 0.1;
+    static final int COOLDOWN_RUNS = 3;
+    /** a change of this much in the number of resources allows the parallelism to grow again */
+    static final double RESOURCE_COUNT_CHANGE = 0.25;
+
+    private static final Pattern THROTTLING = Pattern.compile(
+            "throttl|rate ?exceeded|rate ?limit ?exceeded|request ?limit ?exceeded|too ?many ?requests|slowdown|(status|code|error)\\W{0,20}429\\b",
+            Pattern.CASE_INSENSITIVE);
+
+    private final int min;
+    private final int max;
+
+    private int current = -1;
+    private int previous = -1;
+    private long previousMillis = -1;
+    private int cooldown;
+    private boolean plateau;
+    private int plateauResourceCount;
+
+    public ParallelismController(int min, int max) {
+        this.min = Math.max(1, min);
+        this.max = Math.max(this.min, max);
+    }
+
+    /**
+     * @return whether the message of a diagnostic or error says that the provider throttled Terraform's requests
+     */
+    public static boolean isThrottling(String message) {
+        return message != null && THROTTLING.matcher(message).find();
+    }
+
+    /**
+     * @param resourceCount the number of resources the deployment had when last read, 0 if not known
+     * @return the parallelism of the next run
+     */
+    public synchronized int choose(int resourceCount) {
+        if (current < 0) {
+            current = clamp(Math.max(TERRAFORM_DEFAULT, resourceCount / 10), min, max);
+        }
+        if (plateau && resourceCount > 0
+                && Math.abs(resourceCount - plateauResourceCount) > RESOURCE_COUNT_CHANGE * plateauResourceCount) {
+            plateau = false;
+        }
+        plateauResourceCount = plateau ? plateauResourceCount : resourceCount;
+        final int cap = resourceCount > 0 ? Math.max(min, Math.min(max, resourceCount)) : max;
+        return clamp(current, min, cap);
+    }
+
+    /**
+     * Takes the outcome of a run into account for the runs after it.
+     *
+     * @param parallelism the parallelism of the run
+     * @param millis how long the run took
+     * @param throttled whether the provider throttled the run
+     */
+    public synchronized void record(int parallelism, long millis, boolean throttled) {
+        if (parallelism <= 0) {
+            return;
+        }
+        if (throttled) {
+            current = Math.max(min, parallelism / 2);
+            cooldown = COOLDOWN_RUNS;
+            previous = -1;
+            previousMillis = -1;
+            plateau = true;
+            return;
+        }
+        if (cooldown > 0) {
+            cooldown--;
+            return;
+        }
+        if (previous > 0 && parallelism > previous && millis > previousMillis * (1 - MIN_IMPROVEMENT)) {
+            // more parallelism did not make it faster; the previous value is as good and puts less load on the provider
+            current = previous;
+            plateau = true;
+            return;
+        }
+        previous = parallelism;
+        previousMillis = millis;
+        if (!plateau && millis >= SLOW_RUN_MILLIS && parallelism < max) {
+            current = Math.min(max, parallelism + Math.max(2, parallelism / 4));
+        } else {
+            current = parallelism;
+        }
+    }
+
+    private static int clamp(int value, int min, int max) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ParallelismController{current=" + current + ", min=" + min + ", max=" + max
+                + (plateau ? ", plateau" : "") + (cooldown > 0 ? ", cooldown=" + cooldown : "") + "}";
+    }
+}
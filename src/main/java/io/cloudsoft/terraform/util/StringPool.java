@@ -0,0 +1,54 @@
+package io.cloudsoft.terraform.util;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Canonical instances of the strings resources are described with: attribute keys, sensor names and the short values
+ * that repeat across resources and polls (regions, AMIs, VPC ids, tag keys, ...).
+ *
+ * The pool only holds strings weakly, so a string stays in it only as long as some resource or sensor still uses it,
+ * and it never takes strings longer than {@value #MAX_LENGTH} characters, which are mostly one-off JSON documents.
+ * Prefixed names ({@code "value." + attribute}, {@code "tf." + key}) are remembered per prefix, so building them does not
+ * even allocate once they have been seen; they are likewise kept only while in use, and up to {@value #MAX_PREFIXED_NAMES}
+ * of them per prefix.
+ */
+public final class StringPool {
+
+    public static final int MAX_LENGTH = 256;
+    public static final int MAX_PREFIXED_NAMES = 50_000;
+
+    private static final Interner<String> INTERNER = Interners.newWeakInterner();
+
+    private static final Map<String, LoadingCache<String, String>> PREFIXED = new ConcurrentHashMap<>();
+
+    private StringPool() {
+    }
+
+    /**
+     * @return the canonical instance of the given string, or the string itself if it is too long to be pooled
+     */
+    public static String canonical(String value) {
+        if (value == null || value.length() > MAX_LENGTH) {
+            return value;
+        }
+        return INTERNER.intern(value);
+    }
+
+    /**
+     * @return the canonical instance of {@code prefix + name}
+     */
+    public static String prefixed(String prefix, String name) {
+        return PREFIXED.computeIfAbsent(prefix, p -> CacheBuilder.newBuilder()
+                .weakValues()
+                .maximumSize(MAX_PREFIXED_NAMES)
+                .build(CacheLoader.from(n -> canonical(p + n))))
+                .getUnchecked(name);
+    }
+}
@@ -0,0 +1,94 @@
+package io.cloudsoft.terraform.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Writes files as a ustar archive, as read by {@code tar xf -}, so several files can be sent down a single stream.
+ * Only regular files are written; the directories leading to them are created by {@code tar} as it extracts them.
+ */
+public final class TarStreams {
+
+    private static final int BLOCK = 512;
+    private static final int NAME_LENGTH = 100;
+    private static final int PREFIX_LENGTH = 155;
+
+    private TarStreams() {
+    }
+
+    /**
+     * @param files contents by path; absolute paths are written without their leading {@code /}, as {@code tar} does,
+     *              so extract with {@code -C /} to put them back where they belong
+     */
+    public static void write(OutputStream out, Map<String, byte[]> files) throws IOException {
+        final long modified = System.currentTimeMillis() / 1000;
+        for (Map.Entry<String, byte[]> file : files.entrySet()) {
+            final byte[] contents = file.getValue();
+            out.write(header(file.getKey(), contents.length, modified));
+            out.write(contents);
+            pad(out, contents.length);
+        }
+        // the end of the archive is marked by two empty blocks
+        out.write(new byte[2 * BLOCK]);
+        out.flush();
+    }
+
+    private static byte[] header(String path, long size, long modified) {
+        final byte[] header = new byte[BLOCK];
+        String name = path;
+        while (name.startsWith("/")) name = name.substring(1);
+        String prefix = "";
+        if (name.getBytes(StandardCharsets.UTF_8).length > NAME_LENGTH) {
+            // longer names are split at a slash into a prefix and a name
+            final int split = name.lastIndexOf('/');
+            if (split <= 0 || name.substring(split + 1).getBytes(StandardCharsets.UTF_8).length > NAME_LENGTH
+                    || name.substring(0, split).getBytes(StandardCharsets.UTF_8).length > PREFIX_LENGTH) {
+                throw new IllegalArgumentException("Path too long to be copied: " + path);
+            }
+            prefix = name.substring(0, split);
+            name = name.substring(split + 1);
+        }
+        put(header, 0, NAME_LENGTH, name);
+        put(header, 100, 8, octal(0644, 7));
+        put(header, 108, 8, octal(0, 7));
+        put(header, 116, 8, octal(0, 7));
+        put(header, 124, 12, octal(size, 11));
+        put(header, 136, 12, octal(modified, 11));
+        header[156] = '0';
+        put(header, 257, 6, "ustar");
+        put(header, 263, 2, "00");
+        put(header, 345, PREFIX_LENGTH, prefix);
+
+        // the checksum is computed with its own field as spaces
+        Arrays.fill(header, 148, 156, (byte) ' ');
+        long checksum = 0;
+        for (byte b : header) checksum += b & 0xff;
+        put(header, 148, 8, octal(checksum, 6) + "\0 ");
+        return header;
+    }
+
+    private static void put(byte[] header, int offset, int length, String value) {
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        System.arraycopy(bytes, 0, header, offset, Math.min(bytes.length, length));
+    }
+
+    private static String octal(long value, int digits) {
+        final String octal = Long.toOctalString(value);
+        if (octal.length() > digits) {
+            throw new IllegalArgumentException("Value too large to be written to a tar header: " + value);
+        }
+        final StringBuilder sb = new StringBuilder();
+        for (int i = octal.length(); i < digits; i++) sb.append('0');
+        return sb.append(octal).toString();
+    }
+
+    private static void pad(OutputStream out, long size) throws IOException {
+        final int remainder = (int) (size % BLOCK);
+        if (remainder != 0) {
+            out.write(new byte[BLOCK - remainder]);
+        }
+    }
+}
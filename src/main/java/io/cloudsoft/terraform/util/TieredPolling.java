@@ -0,0 +1,103 @@
+package io.cloudsoft.terraform.util;
+
+/**
+ * Decides which polls of a deployment plan, from a cheap probe taken on every poll, so that the cloud is not asked about
+ * the deployment on every poll while nothing suggests it changed.
+ *
+ * The probe stands for what Terraform would plan from, such as the lineage and serial of the state and a digest of the
+ * configuration; a poll plans when it differs from the one taken after the last plan, when the last plan is older than
+ * the current interval, and when asked for (e.g. once the deployment has been applied). The interval doubles with every
+ * plan finding the deployment in sync, up to the maximum staleness, and goes back to the polling period as soon as one
+ * does not, so that drift made outside Terraform, which no probe sees, is found at worst that long after it was made.
+ */
+public final class TieredPolling {
+
+    public enum Reason {
+        FIRST, CHANGED, STALE, REQUESTED;
+
+        /**
+         * @return whether the plan should refresh the whole deployment, with incremental refresh: all but a changed probe are
+         *         about drift no probe sees, which a plan refreshing only some resources, or none, would not find
+         */
+        public boolean needsFullRefresh() {
+            return this != CHANGED;
+        }
+    }
+
+    private final long periodMillis;
+    private final long maxStalenessMillis;
+
+    private long intervalMillis;
+    private long lastPlan = -1;
+    private String lastProbe;
+    private boolean requested;
+
+    /**
+     * @param periodMillis the polling period, which is also the shortest interval between plans
+     * @param maxStalenessMillis the longest interval between plans
+     */
+    public TieredPolling(long periodMillis, long maxStalenessMillis) {
+        this.periodMillis = periodMillis;
+        this.maxStalenessMillis = Math.max(periodMillis, maxStalenessMillis);
+        this.intervalMillis = periodMillis;
+    }
+
+    /**
+     * @param probe the probe taken by the poll starting at {@code now}, null if it could not be taken
+     * @return why the poll should plan, or null if it need not
+     */
+    public synchronized Reason next(String probe, long now) {
+        if (lastPlan < 0) {
+            return Reason.FIRST;
+        }
+        if (requested) {
+            return Reason.REQUESTED;
+        }
+        if (probe == null || !probe.equals(lastProbe)) {
+            return Reason.CHANGED;
+        }
+        if (now - lastPlan >= intervalMillis) {
+            return Reason.STALE;
+        }
+        return null;
+    }
+
+    /**
+     * @param probe the probe taken once the plan was done, as the plan itself may write the state
+     * @param sync whether the plan found the deployment in sync
+     */
+    public synchronized void completed(String probe, boolean sync, long now) {
+        lastPlan = now;
+        lastProbe = probe;
+        requested = false;
+        intervalMillis = sync ? Math.min(maxStalenessMillis, intervalMillis * 2) : periodMillis;
+    }
+
+    /**
+     * Has the next poll plan again, as the plan of this one failed.
+     */
+    public synchronized void failed() {
+        requested = true;
+        intervalMillis = periodMillis;
+    }
+
+    /**
+     * Has the next poll plan.
+     */
+    public synchronized void request() {
+        requested = true;
+    }
+
+    /**
+     * @return how long after the last plan the next one is made, if the probe does not change before
+     */
+    public synchronized long getIntervalMillis() {
+        return intervalMillis;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "TieredPolling{interval=" + intervalMillis + "ms, lastPlan=" + lastPlan
+                + (lastProbe == null ? "" : ", lastProbe=" + lastProbe) + (requested ? ", requested" : "") + "}";
+    }
+}
@@ -0,0 +1,155 @@
+package io.cloudsoft.terraform;
+
+import io.cloudsoft.terraform.parser.StateParser;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class StreamingCommandTest {
+
+    private static final int OUTPUT_SIZE = 1024 * 1024;
+
+    private static StreamingCommand.Execution writing(int size, String error, int exitCode, AtomicLong written) {
+        return writing(size, error, exitCode, written, 0);
+    }
+
+    /**
+     * Writes {@code size} bytes to stdout, then {@code error} to stderr, and returns the exit code; the output is written
+     * by a thread which has ended before the execution returns, as the threads copying the output of SSH commands do,
+     * {@code lingerMillis} after it.
+     */
+    private static StreamingCommand.Execution writing(int size, String error, int exitCode, AtomicLong written, long lingerMillis) {
+        return (stdout, stderr) -> {
+            final Thread copier = new Thread(() -> {
+                try {
+                    final byte[] chunk = new byte[1000];
+                    Arrays.fill(chunk, (byte) 'x');
+                    for (int left = size; left > 0; left -= chunk.length) {
+                        stdout.write(chunk, 0, Math.min(left, chunk.length));
+                        written.addAndGet(Math.min(left, chunk.length));
+                    }
+                    stdout.flush();
+                    stderr.write(error.getBytes(StandardCharsets.UTF_8));
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            copier.start();
+            copier.join();
+            Thread.sleep(lingerMillis);
+            return exitCode;
+        };
+    }
+
+    private static long count(InputStream in) {
+        try {
+            long n = 0;
+            final byte[] buffer = new byte[4096];
+            for (int read; (read = in.read(buffer)) >= 0; ) n += read;
+            return n;
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Test
+    public void readOutputWrittenByThreadsWhichHaveEnded() {
+        final AtomicLong written = new AtomicLong();
+        assertEquals((long) StreamingCommand.run("test", writing(OUTPUT_SIZE, "", 0, written), StreamingCommandTest::count), OUTPUT_SIZE);
+        assertEquals(written.get(), OUTPUT_SIZE);
+
+        // the reader waits for the end of the output, rather than failing, while the execution outlives the thread which wrote it
+        assertEquals((long) StreamingCommand.run("test", writing(1000, "", 0, written, 2500), StreamingCommandTest::count), 1000);
+    }
+
+    @Test
+    public void failWithTheEndOfStderrOnNonZeroExit() {
+        try {
+            StreamingCommand.run("test", writing(OUTPUT_SIZE, "something went wrong", 3, new AtomicLong()), StreamingCommandTest::count);
+            fail("expected the command to fail");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage().contains("exit code 3"), e.getMessage());
+            assertTrue(e.getMessage().endsWith("something went wrong"), e.getMessage());
+        }
+    }
+
+    @Test
+    public void failAsTheReaderDidOnceTheCommandHasFinished() {
+        final AtomicLong written = new AtomicLong();
+        try {
+            StreamingCommand.run("test", writing(OUTPUT_SIZE, "", 0, written), in -> {
+                throw new IllegalArgumentException("cannot read this");
+            });
+            fail("expected the reader to fail");
+        } catch (IllegalArgumentException e) {
+            assertEquals(e.getMessage(), "cannot read this");
+        }
+        // the output the reader left was drained, so the command could finish
+        assertEquals(written.get(), OUTPUT_SIZE);
+
+        // the failure of the command takes precedence, with that of the reader suppressed
+        try {
+            StreamingCommand.run("test", writing(10, "failed", 1, new AtomicLong()), in -> {
+                throw new IllegalArgumentException("cannot read this");
+            });
+            fail("expected the command to fail");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage().contains("exit code 1"), e.getMessage());
+            assertEquals(e.getSuppressed()[0].getMessage(), "cannot read this");
+        }
+    }
+
+    @Test
+    public void drainOutputLeftByReaderStoppingEarly() {
+        final AtomicLong written = new AtomicLong();
+        final String start = StreamingCommand.run("test", writing(OUTPUT_SIZE, "", 0, written), in -> {
+            try {
+                final byte[] first = new byte[5];
+                assertEquals(in.read(first), 5);
+                return new String(first, StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        assertEquals(start, "xxxxx");
+        assertEquals(written.get(), OUTPUT_SIZE);
+    }
+
+    @Test
+    public void drainOutputLeftByReaderClosingIt() {
+        final StreamingCommand.Execution state = (stdout, stderr) -> {
+            stdout.write("{\"version\":4,\"serial\":7,\"lineage\":\"abc\",\"resources\":[".getBytes(StandardCharsets.UTF_8));
+            for (int i = 0; i < 10_000; i++) {
+                stdout.write(((i == 0 ? "" : ",") + "{\"type\":\"aws_instance\",\"name\":\"r" + i + "\"}").getBytes(StandardCharsets.UTF_8));
+            }
+            stdout.write("]}".getBytes(StandardCharsets.UTF_8));
+            return 0;
+        };
+        // the parser closes the stream once it has read the serial and lineage
+        assertEquals(StreamingCommand.run("test", state, StateParser::parseStateVersion), "abc/7");
+    }
+
+    @Test
+    public void failWritesOnceTheReaderIsClosed() throws IOException {
+        final StreamingCommand.Pipe pipe = new StreamingCommand.Pipe(16);
+        final OutputStream sink = pipe.sink;
+        sink.write(new byte[10]);
+        assertEquals(pipe.source.read(new byte[100]), 10);
+        pipe.source.close();
+        try {
+            sink.write(1);
+            fail("expected the write to fail");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("closed"), e.getMessage());
+        }
+    }
+}
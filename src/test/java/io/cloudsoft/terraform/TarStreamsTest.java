@@ -0,0 +1,83 @@
+package io.cloudsoft.terraform;
+
+import com.google.common.base.Strings;
+import io.cloudsoft.terraform.util.TarStreams;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class TarStreamsTest {
+
+    private static byte[] tar(Map<String, byte[]> files) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TarStreams.write(out, files);
+        return out.toByteArray();
+    }
+
+    private static String field(byte[] archive, int offset, int length) {
+        int end = offset;
+        while (end < offset + length && archive[end] != 0) end++;
+        return new String(archive, offset, end - offset, StandardCharsets.UTF_8);
+    }
+
+    private static void assertHeader(byte[] archive, int at, String prefix, String name, int size) {
+        assertEquals(field(archive, at, 100), name);
+        assertEquals(field(archive, at + 345, 155), prefix);
+        assertEquals(Long.parseLong(field(archive, at + 124, 12), 8), size);
+        assertEquals(field(archive, at + 100, 8), "0000644");
+        assertEquals((char) archive[at + 156], '0', "regular file");
+        assertEquals(field(archive, at + 257, 6), "ustar");
+        assertEquals(field(archive, at + 263, 2), "00");
+
+        // the checksum is the sum of the bytes of the header, with its own field as spaces
+        final byte[] header = Arrays.copyOfRange(archive, at, at + 512);
+        Arrays.fill(header, 148, 156, (byte) ' ');
+        long sum = 0;
+        for (byte b : header) sum += b & 0xff;
+        assertEquals(Long.parseLong(field(archive, at + 148, 8).trim(), 8), sum);
+    }
+
+    @Test
+    public void writeUstarHeadersAndPaddedContents() throws IOException {
+        final Map<String, byte[]> files = new LinkedHashMap<>();
+        files.put("/tf/active/main.tf", "resource \"null_resource\" \"n\" {}\n".getBytes(StandardCharsets.UTF_8));
+        files.put("/tf/active/empty.tfvars", new byte[0]);
+        files.put("relative/block.tf", new byte[512]);
+        final byte[] archive = tar(files);
+
+        assertHeader(archive, 0, "", "tf/active/main.tf", 32);
+        assertEquals(new String(archive, 512, 32, StandardCharsets.UTF_8), "resource \"null_resource\" \"n\" {}\n");
+        assertHeader(archive, 1024, "", "tf/active/empty.tfvars", 0);
+        assertHeader(archive, 1536, "", "relative/block.tf", 512);
+        // two empty blocks end the archive
+        assertEquals(archive.length, 2048 + 512 + 1024);
+        assertTrue(Arrays.equals(Arrays.copyOfRange(archive, 2560, archive.length), new byte[1024]));
+    }
+
+    @Test
+    public void splitLongPathsIntoPrefixAndName() throws IOException {
+        final String dir = "/" + Strings.repeat("d", 60) + "/" + Strings.repeat("e", 60);
+        final String name = Strings.repeat("n", 90) + ".tf";
+        final Map<String, byte[]> files = new LinkedHashMap<>();
+        files.put(dir + "/" + name, new byte[] { 1 });
+        assertHeader(tar(files), 0, dir.substring(1), name, 1);
+
+        files.clear();
+        files.put(dir + "/" + Strings.repeat("n", 101), new byte[0]);
+        try {
+            tar(files);
+            fail("expected a name too long for the header to be refused");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("too long"), e.getMessage());
+        }
+    }
+}
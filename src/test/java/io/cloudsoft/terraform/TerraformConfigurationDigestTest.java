@@ -0,0 +1,80 @@
+package io.cloudsoft.terraform;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.ByteStreams;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotEquals;
+import static org.testng.Assert.assertTrue;
+
+public class TerraformConfigurationDigestTest {
+
+    private static byte[] utf8(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String bash(File dir, String script) throws Exception {
+        final Process process = new ProcessBuilder("bash", "-c", script).directory(dir).redirectErrorStream(true).start();
+        final String output = new String(ByteStreams.toByteArray(process.getInputStream()), StandardCharsets.UTF_8);
+        assertEquals(process.waitFor(), 0, output);
+        return output;
+    }
+
+    @Test
+    public void digestTargetsAndContents() {
+        final String digest = TerraformConfigurationDigest.of(ImmutableMap.of("/tf/active/main.tf", utf8("a"), "/tf/active/x.tfvars", utf8("b")));
+        assertEquals(TerraformConfigurationDigest.of(ImmutableMap.of("/tf/active/main.tf", utf8("a"), "/tf/active/x.tfvars", utf8("b"))), digest);
+        assertNotEquals(TerraformConfigurationDigest.of(ImmutableMap.of("/tf/active/main.tf", utf8("a"), "/tf/active/x.tfvars", utf8("c"))), digest);
+        assertNotEquals(TerraformConfigurationDigest.of(ImmutableMap.of("/tf/active/main.tf", utf8("a"), "/tf/active/y.tfvars", utf8("b"))), digest);
+        // where one file ends and the next starts is part of the digest
+        assertNotEquals(TerraformConfigurationDigest.of(ImmutableMap.of("a", utf8("bc"))),
+                TerraformConfigurationDigest.of(ImmutableMap.of("ab", utf8("c"))));
+    }
+
+    @Test
+    public void digestTheVariablesOnly() {
+        final String digest = TerraformConfigurationDigest.ofVariables(ImmutableMap.of("TF_VAR_region", "eu-west-1", "TF_VAR_size", "2", "HOME", "/root"));
+        assertEquals(TerraformConfigurationDigest.ofVariables(ImmutableMap.of("TF_VAR_size", "2", "TF_VAR_region", "eu-west-1")), digest,
+                "in the order of their names, without other variables");
+        assertNotEquals(TerraformConfigurationDigest.ofVariables(ImmutableMap.of("TF_VAR_region", "eu-west-1", "TF_VAR_size", "3")), digest);
+        assertNotEquals(TerraformConfigurationDigest.ofVariables(ImmutableMap.of("TF_VAR_region", "eu-west-1")), digest);
+        assertEquals(digest.length(), 64, "SHA-256");
+    }
+
+    @Test
+    public void skipOnlyWhatIsInstalledAlready() throws Exception {
+        final File root = Files.createTempDirectory("configuration-digest").toFile();
+        try {
+            final File active = new File(root, "active");
+            assertTrue(active.mkdirs());
+            final String digestFile = new File(root, "configuration.digest").getPath();
+            final String digest = TerraformConfigurationDigest.of(ImmutableMap.of("main.tf", utf8("resource \"null_resource\" \"n\" {}")));
+            final String check = TerraformConfigurationDigest.checkCommand(active.getPath(), digestFile, digest);
+
+            assertEquals(bash(root, check).trim(), "changed", "never installed");
+            // as after terraform init
+            bash(root, "mkdir active/.terraform && echo 'provider \"registry.terraform.io/hashicorp/null\" {}' > active/.terraform.lock.hcl");
+            assertEquals(bash(root, check).trim(), "changed", "installed but not recorded, as where init failed");
+
+            bash(root, TerraformConfigurationDigest.recordCommand(active.getPath(), digestFile, digest));
+            assertEquals(bash(root, check).trim(), TerraformConfigurationDigest.UNCHANGED);
+            assertEquals(bash(root, TerraformConfigurationDigest.checkCommand(active.getPath(), digestFile,
+                    TerraformConfigurationDigest.of(ImmutableMap.of("main.tf", utf8(""))))).trim(), "changed", "other configuration");
+
+            bash(root, "echo '# upgraded' >> active/.terraform.lock.hcl");
+            assertEquals(bash(root, check).trim(), "changed", "lock file changed since it was recorded");
+            bash(root, TerraformConfigurationDigest.recordCommand(active.getPath(), digestFile, digest));
+            assertEquals(bash(root, check).trim(), TerraformConfigurationDigest.UNCHANGED);
+
+            bash(root, "rm -r active/.terraform");
+            assertEquals(bash(root, check).trim(), "changed", "workspace cleaned");
+        } finally {
+            bash(root.getParentFile(), "rm -rf " + root.getPath());
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package io.cloudsoft.terraform;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.TextNode;
+import io.cloudsoft.terraform.parser.JsonReaders;
+import io.cloudsoft.terraform.parser.PlanLogEntry;
+import io.cloudsoft.terraform.parser.StateParser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import static org.testng.Assert.assertEquals;
+
+/**
+ * Compares what a poll costs when every parse builds its own {@link ObjectMapper} (as we used to)
+ * with the shared readers from {@link JsonReaders}, on the state and plan fixtures; and what parsed resources take on the heap.
+ */
+public class TerraformJsonParsingBenchmark {
+    private static final Logger LOG = LoggerFactory.getLogger(TerraformJsonParsingBenchmark.class);
+
+    private static final int WARM_UP = 200;
+    private static final int ITERATIONS = 2000;
+
+    @Test(groups = "Integration")
+    public void benchmarkStateParsing() throws Exception {
+        for (String fixture : new String[] {"state/state.json", "state/aws-instance-state.json", "state/gcp-cluster-state.json", "state/vs-state.json"}) {
+            final String state = loadTestData(fixture);
+            assertEquals(JsonReaders.STATE.readTree(state), new ObjectMapper().readTree(state));
+
+            compare(fixture,
+                    "new mapper per poll", () -> new ObjectMapper().readTree(state),
+                    "shared reader", () -> JsonReaders.STATE.readTree(state));
+        }
+    }
+
+    @Test(groups = "Integration")
+    public void benchmarkPlanLogParsing() throws Exception {
+        for (String fixture : new String[] {"state/plan-create.json", "state/plan-drift-tf125.json", "state/plan-drift-update.json", "state/vs-plan-create.json"}) {
+            final String[] lines = loadTestData(fixture).split("\n");
+
+            compare(fixture,
+                    "new mapper per poll", () -> {
+                        ObjectMapper objectMapper = new ObjectMapper();
+                        objectMapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+                        for (String line : lines) objectMapper.readValue(line, PlanLogEntry.class);
+                        return null;
+                    },
+                    "shared reader", () -> {
+                        for (String line : lines) JsonReaders.PLAN_LOG_ENTRY.readValue(line);
+                        return null;
+                    });
+        }
+    }
+
+    @Test(groups = "Integration")
+    public void benchmarkLazyNestedValues() throws Exception {
+        for (String fixture : new String[] {"state/aws-instance-state.json", "state/gcp-cluster-state.json", "state/vs-state.json"}) {
+            final String state = loadTestData(fixture);
+
+            compare(fixture,
+                    "nested values as tree text", () -> parseResourcesAsTreeText(state),
+                    "nested values as byte slices", () -> StateParser.parseResources(state));
+        }
+    }
+
+    /**
+     * Makes the resources of the root module as we used to: reading the whole state into a tree and writing every value
+     * that is not text back as JSON (leaving out the flattening of {@code cluster_config}).
+     */
+    private static Map<String, Map<String, Object>> parseResourcesAsTreeText(String state) throws IOException {
+        final Map<String, Map<String, Object>> result = new LinkedHashMap<>();
+        for (JsonNode resource : new ObjectMapper().readTree(state).at("/values/root_module/resources")) {
+            final Map<String, Object> resourceBody = new LinkedHashMap<>();
+            result.put(resource.get("address").asText(), resourceBody);
+            for (String section : new String[] {"values", "sensitive_values"}) {
+                final String prefix = "values".equals(section) ? "value." : "sensitive.value.";
+                resource.path(section).fields().forEachRemaining(value -> {
+                    final String text = value.getValue() instanceof TextNode ? value.getValue().asText() : value.getValue().toString();
+                    if (!StateParser.BLANK_ITEMS.contains(text)) {
+                        resourceBody.put(prefix + value.getKey(), text);
+                    }
+                });
+            }
+        }
+        return result;
+    }
+
+    @Test(groups = "Integration")
+    public void benchmarkResourceFootprint() throws Exception {
+        final String state = loadTestData("state/aws-instance-state.json");
+        final int count = 2000;
+
+        final List<Map<String, Object>> linked = new ArrayList<>(count);
+        long linkedBytes = retainedBy(() -> {
+            for (int i = 0; i < count; i++) linked.add(new LinkedHashMap<>(StateParser.parseResources(state).get("aws_instance.example1")));
+        });
+        final List<Map<String, Object>> compact = new ArrayList<>(count);
+        long compactBytes = retainedBy(() -> {
+            for (int i = 0; i < count; i++) compact.add(StateParser.parseResources(state).get("aws_instance.example1"));
+        });
+        assertEquals(compact.get(0), linked.get(0));
+        LOG.info(String.format("%d aws_instances: %d bytes as LinkedHashMaps, %d bytes as CompactResourceMaps (%.1fx)",
+                count, linkedBytes, compactBytes, (double) linkedBytes / compactBytes));
+    }
+
+    /** @return roughly how much more heap is in use after the job has run */
+    private static long retainedBy(Runnable job) {
+        long before = usedHeap();
+        job.run();
+        return usedHeap() - before;
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private void compare(String fixture, String beforeLabel, Callable<?> before, String afterLabel, Callable<?> after) throws Exception {
+        long beforeNanos = time(before);
+        long afterNanos = time(after);
+        LOG.info(String.format("%s: %s %.1fus, %s %.1fus (%.1fx)", fixture,
+                beforeLabel, beforeNanos / 1000.0, afterLabel, afterNanos / 1000.0, (double) beforeNanos / afterNanos));
+    }
+
+    /** @return average nanoseconds per call, after warming up */
+    private long time(Callable<?> job) throws Exception {
+        for (int i = 0; i < WARM_UP; i++) job.call();
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) job.call();
+        return (System.nanoTime() - start) / ITERATIONS;
+    }
+
+    private String loadTestData(final String filePathAsStr) throws IOException {
+        ClassLoader classLoader = getClass().getClassLoader();
+        File file = new File(classLoader.getResource(filePathAsStr).getFile());
+
+        return new String(Files.readAllBytes(file.toPath()));
+    }
+}
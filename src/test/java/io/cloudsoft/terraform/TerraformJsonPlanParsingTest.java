@@ -1,17 +1,47 @@
 package io.cloudsoft.terraform;
 
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableMap;
+import io.cloudsoft.terraform.parser.AttributeDiff;
+import io.cloudsoft.terraform.parser.CompactResourceMap;
+import io.cloudsoft.terraform.parser.FlatteningRules;
+import io.cloudsoft.terraform.parser.FramedOutput;
 import io.cloudsoft.terraform.parser.PlanLogEntry;
+import io.cloudsoft.terraform.parser.PlanModel;
+import io.cloudsoft.terraform.parser.PlanSummary;
+import io.cloudsoft.terraform.parser.ProviderRegistry;
+import io.cloudsoft.terraform.parser.StateChanges;
 import io.cloudsoft.terraform.parser.StateParser;
+import io.cloudsoft.terraform.util.IncrementalRefresh;
+import io.cloudsoft.terraform.util.ParallelismController;
+import io.cloudsoft.terraform.util.TieredPolling;
 import org.testng.annotations.Test;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
 
 import static io.cloudsoft.terraform.TerraformDriver.*;
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
 import static org.testng.Assert.assertTrue;
 
 public class TerraformJsonPlanParsingTest {
@@ -34,6 +64,49 @@ public class TerraformJsonPlanParsingTest {
         assertTrue(resources.containsKey("google_dataproc_cluster.spark_cluster"));
     }
 
+    @Test
+    public void flattenGcpClusterConfig() throws IOException {
+        final String state = loadTestData("state/gcp-cluster-state.json");
+
+        Map<String, Object> cluster = StateParser.parseResources(state).get("google_dataproc_cluster.spark_cluster");
+        assertEquals(cluster.get("value.cluster_config[0].worker_config[0].num_instances"), "2");
+        assertEquals(cluster.get("value.cluster_config[0].worker_config[0].instance_names[1]"), "fri-jj-dataproc-spark-cluster-w-1");
+        assertEquals(cluster.get("value.cluster_config[0].master_config[0].disk_config[0].boot_disk_type"), "pd-ssd");
+        assertEquals(cluster.get("value.cluster_config[0].gce_cluster_config[0].internal_ip_only"), "false");
+        assertFalse(cluster.containsKey("value.cluster_config"));
+        assertFalse(cluster.containsKey("value.cluster_config[0].encryption_config"), "blank values are left out");
+        // only cluster_config is expanded by default
+        assertEquals(cluster.get("value.timeouts"), "{\"create\":\"30m\",\"delete\":\"30m\",\"update\":null}");
+        assertTrue(cluster.containsKey("sensitive.value.cluster_config"));
+    }
+
+    @Test
+    public void flattenWithConfiguredRules() throws IOException {
+        final String state = loadTestData("state/gcp-cluster-state.json");
+        final FlatteningRules rules = FlatteningRules.fromConfig(ImmutableMap.of(
+                "google_dataproc_cluster", ImmutableMap.of(
+                        "maxDepth", 4,
+                        "expand", Arrays.asList("cluster_config", "timeouts"),
+                        "keepAsJson", "cluster_config.software_config"),
+                "google_compute_firewall", ImmutableMap.of("expand", "allow.ports")));
+
+        Map<String, Map<String, Object>> resources = StateParser.parseResources(state, rules);
+        Map<String, Object> cluster = resources.get("google_dataproc_cluster.spark_cluster");
+        assertEquals(cluster.get("value.cluster_config[0].worker_config[0].num_instances"), "2");
+        assertEquals(cluster.get("value.cluster_config[0].worker_config[0].disk_config"), "[{\"boot_disk_size_gb\":30,\"boot_disk_type\":\"pd-standard\",\"num_local_ssds\":1}]");
+        assertTrue(cluster.get("value.cluster_config[0].software_config").toString().startsWith("[{\"image_version\":\"2.0.37-debian10\""));
+        assertEquals(cluster.get("value.timeouts.create"), "30m");
+        assertFalse(cluster.containsKey("value.timeouts.update"));
+
+        Map<String, Object> webRule = resources.get("google_compute_firewall.web-rule");
+        assertEquals(webRule.get("value.allow[0].protocol"), "tcp");
+        assertEquals(webRule.get("value.allow[0].ports[9]"), "50070");
+        assertEquals(webRule.get("value.source_ranges"), "[\"0.0.0.0/0\"]");
+
+        assertEquals(FlatteningRules.DEFAULT.forType("random_id"), FlatteningRules.Rule.NONE);
+        assertEquals(rules.forType("google_compute_network"), FlatteningRules.DEFAULT.forType("google_compute_network"));
+    }
+
 
     @Test
     public void readManagedResources() throws IOException {
@@ -69,6 +142,444 @@ public class TerraformJsonPlanParsingTest {
     }
 
 
+    @Test
+    public void readModuleResources() throws IOException {
+        final String state = loadTestData("state/modules-state.json");
+
+        Map<String, Map<String, Object>> resources = StateParser.parseResources(state);
+        assertEquals(new ArrayList<>(resources.keySet()), Arrays.asList(
+                "aws_security_group.allow_ssh",
+                "module.network.aws_subnet.private[0]",
+                "module.network.aws_vpc.main",
+                "module.network.module.flow_logs.aws_flow_log.this",
+                "module.compute.data.aws_ami.ubuntu",
+                "module.compute.aws_instance.web"));
+        assertEquals(resources.get("module.network.module.flow_logs.aws_flow_log.this").get("resource.module"), "module.network.module.flow_logs");
+        assertEquals(resources.get("module.compute.data.aws_ami.ubuntu").get("resource.mode"), "data");
+        assertFalse(resources.get("aws_security_group.allow_ssh").containsKey("resource.module"));
+    }
+
+    @Test
+    public void readManyModuleResourcesInOrder() throws IOException {
+        StringBuilder state = new StringBuilder("{\"terraform_version\":\"1.2.5\",\"values\":{\"root_module\":{\"child_modules\":[");
+        List<String> expected = new ArrayList<>();
+        for (int m = 0; m < 200; m++) {
+            state.append(m == 0 ? "" : ",").append("{\"address\":\"module.m").append(m).append("\",\"resources\":[");
+            for (int r = 0; r < 10; r++) {
+                String address = "module.m" + m + ".aws_instance.r" + r;
+                expected.add(address);
+                state.append(r == 0 ? "" : ",").append("{\"address\":\"").append(address)
+                        .append("\",\"mode\":\"managed\",\"type\":\"aws_instance\",\"name\":\"r").append(r)
+                        .append("\",\"provider_name\":\"registry.terraform.io/hashicorp/aws\",\"values\":{\"id\":\"i-").append(m * 10 + r).append("\"}}");
+            }
+            state.append("]}");
+        }
+        state.append("]}}}");
+
+        Map<String, Map<String, Object>> resources = StateParser.parseResources(state.toString());
+        assertEquals(new ArrayList<>(resources.keySet()), expected);
+        assertEquals(resources.get("module.m199.aws_instance.r9").get("value.id"), "i-1999");
+    }
+
+    @Test
+    public void streamManagedResources() throws IOException {
+        for (String fixture : new String[] {"state/state.json", "state/aws-instance-state.json", "state/gcp-cluster-state.json", "state/vs-state.json", "state/modules-state.json"}) {
+            final Map<String, Map<String, Object>> resources = StateParser.parseResources(loadTestData(fixture));
+            final List<Map<String, Object>> streamed = new ArrayList<>();
+            StateParser.parseResources(getClass().getClassLoader().getResourceAsStream(fixture), streamed::add);
+
+            assertEquals(streamed.size(), resources.size(), fixture);
+            streamed.forEach(resource -> assertEquals(resource, resources.get(resource.get("resource.address").toString()), fixture));
+        }
+    }
+
+    @Test
+    public void readPulledStateLikeShow() throws IOException {
+        for (String fixture : new String[] {"state/state", "state/aws-instance-state", "state/gcp-cluster-state", "state/vs-state", "state/modules-state"}) {
+            final Map<String, Map<String, Object>> shown = StateParser.parseResources(loadTestData(fixture + ".json"));
+            final Map<String, Map<String, Object>> pulled = StateParser.parsePulledState(loadTestData(fixture + "-pull.json"));
+
+            assertEquals(pulled.keySet(), shown.keySet(), fixture);
+            pulled.forEach((address, resource) -> {
+                assertEquals(resource, shown.get(address), fixture + " " + address);
+                assertEquals(new ArrayList<>(resource.keySet()), new ArrayList<>(shown.get(address).keySet()), fixture + " " + address);
+            });
+        }
+    }
+
+    @Test
+    public void readOnlySensitiveValuesMarkedInThePulledState() throws IOException {
+        final Map<String, Object> shown = StateParser.parseResources(loadTestData("state/db-sensitive-state.json")).get("aws_db_instance.db");
+        final Map<String, Object> pulled = StateParser.parsePulledState(loadTestData("state/db-sensitive-state-pull.json")).get("aws_db_instance.db");
+        assertEquals(pulled.get("value.password"), shown.get("value.password"));
+
+        // marked by terraform in the state, as set from a sensitive variable
+        assertEquals(shown.get("sensitive.value.tags"), "{\"Token\":true}");
+        assertEquals(pulled.get("sensitive.value.tags"), "{\"Token\":true}");
+        // sensitive by the schema of the provider only, which only 'show' knows of: why tf.state.from_show is the default
+        assertEquals(shown.get("sensitive.value.password"), "true");
+        assertFalse(pulled.containsKey("sensitive.value.password"));
+    }
+
+    @Test
+    public void readPulledStateInstances() {
+        final String state = "{\"version\":4,\"terraform_version\":\"1.2.5\",\"serial\":3,\"lineage\":\"8a1c\",\"outputs\":{},\"resources\":["
+                + "{\"mode\":\"managed\",\"type\":\"aws_db_instance\",\"name\":\"db\",\"each\":\"map\","
+                + "\"provider\":\"provider[\\\"registry.terraform.io/hashicorp/aws\\\"].west\",\"instances\":["
+                + "{\"index_key\":\"blue\",\"attributes\":{\"id\":\"db-1\",\"password\":\"s3cret\",\"tags\":{\"Team\":\"a\",\"Token\":\"t\"},\"ports\":[5432,5433]},"
+                + "\"sensitive_attributes\":[[{\"type\":\"get_attr\",\"value\":\"password\"}],"
+                + "[{\"type\":\"get_attr\",\"value\":\"tags\"},{\"type\":\"index\",\"value\":{\"value\":\"Token\",\"type\":\"string\"}}],"
+                + "[{\"type\":\"get_attr\",\"value\":\"ports\"},{\"type\":\"index\",\"value\":{\"value\":1,\"type\":\"number\"}}]]},"
+                + "{\"index_key\":\"blue\",\"deposed\":\"00d2f3a1\",\"attributes\":{\"id\":\"db-0\"},\"sensitive_attributes\":[]}]},"
+                + "{\"module\":\"module.web\",\"mode\":\"data\",\"type\":\"aws_ami\",\"name\":\"ubuntu\","
+                + "\"provider\":\"module.web.provider[\\\"registry.terraform.io/hashicorp/aws\\\"]\",\"instances\":[{\"attributes\":{\"id\":\"ami-1\"}}]},"
+                + "{\"module\":\"module.web\",\"mode\":\"managed\",\"type\":\"aws_instance\",\"name\":\"web\",\"each\":\"list\","
+                + "\"provider\":\"provider.aws\",\"instances\":[{\"index_key\":0,\"attributes\":{\"id\":\"i-0\"}},{\"index_key\":1,\"attributes\":{\"id\":\"i-1\"}}]}]}";
+
+        final Map<String, Map<String, Object>> resources = StateParser.parsePulledState(state);
+        assertEquals(new ArrayList<>(resources.keySet()), Arrays.asList("aws_db_instance.db[\"blue\"]",
+                "module.web.aws_instance.web[0]", "module.web.aws_instance.web[1]", "module.web.data.aws_ami.ubuntu"));
+
+        final Map<String, Object> db = resources.get("aws_db_instance.db[\"blue\"]");
+        assertEquals(db.get("value.id"), "db-1");
+        assertEquals(db.get("resource.provider"), "registry.terraform.io/hashicorp/aws");
+        assertEquals(db.get("sensitive.value.password"), "true");
+        assertEquals(db.get("sensitive.value.tags"), "{\"Token\":true}");
+        assertEquals(db.get("sensitive.value.ports"), "[false,true]");
+        assertFalse(db.containsKey("resource.module"));
+
+        final Map<String, Object> ami = resources.get("module.web.data.aws_ami.ubuntu");
+        assertEquals(ami.get("resource.mode"), "data");
+        assertEquals(ami.get("resource.module"), "module.web");
+        assertEquals(resources.get("module.web.aws_instance.web[1]").get("resource.provider"), "aws");
+
+        assertEquals(StateParser.parsePulledState(""), Collections.emptyMap());
+        assertEquals(StateParser.parsePulledState("{\"version\":3,\"serial\":1,\"modules\":[]}"), null);
+    }
+
+    @Test
+    public void readNestedValuesLazily() {
+        final String state = "{\"terraform_version\":\"1.2.5\",\"values\":{\"root_module\":{\"resources\":[{\"address\":\"aws_instance.a\","
+                + "\"mode\":\"managed\",\"type\":\"aws_instance\",\"name\":\"a\",\"provider_name\":\"registry.terraform.io/hashicorp/aws\",\"values\":{\n"
+                + "  \"tags\": {\n    \"Name\": \"caf\u00e9 \u2615\",\n    \"Size\": 1.50\n  },\n"
+                + "  \"empty\": { },\n  \"none\": [ ],\n  \"blank\": [ { } ],\n  \"not_blank\": [ { }, { } ],\n"
+                + "  \"ebs_block_device\": [ { \"volume_size\": 8, \"tags\": null } ]\n}}]}}}";
+
+        final Map<String, Object> resource = StateParser.parseResources(state).get("aws_instance.a");
+        final List<Map<String, Object>> streamed = new ArrayList<>();
+        StateParser.parseResources(new StringReader(state), streamed::add);
+
+        assertEquals(resource.get("value.tags"), "{\"Name\":\"caf\u00e9 \u2615\",\"Size\":1.5}");
+        assertEquals(resource.get("value.ebs_block_device"), "[{\"volume_size\":8,\"tags\":null}]");
+        assertEquals(resource.get("value.not_blank"), "[{},{}]");
+        assertFalse(resource.containsKey("value.empty"));
+        assertFalse(resource.containsKey("value.none"));
+        assertFalse(resource.containsKey("value.blank"));
+        assertEquals(resource, streamed.get(0));
+    }
+
+    @Test
+    public void poolRepeatedStringsOfManyResources() {
+        Map<String, Map<String, Object>> resources = StateParser.parseResources(instancesState(10_000));
+        assertEquals(resources.size(), 10_000);
+
+        Set<Object> distinct = new HashSet<>();
+        Set<Object> instances = Collections.newSetFromMap(new IdentityHashMap<>());
+        long retainedBytes = 0, unpooledBytes = 0;
+        for (Map<String, Object> resource : resources.values()) {
+            for (Map.Entry<String, Object> attribute : resource.entrySet()) {
+                for (Object string : Arrays.asList(attribute.getKey(), attribute.getValue())) {
+                    distinct.add(string);
+                    unpooledBytes += estimatedSize(string.toString());
+                    if (instances.add(string)) {
+                        retainedBytes += estimatedSize(string.toString());
+                    }
+                }
+            }
+        }
+        assertEquals(instances.size(), distinct.size(), "every key and value should be held once");
+        assertTrue(retainedBytes * 5 < unpooledBytes, "strings retained by the parsed state: " + retainedBytes + " bytes, without pooling: " + unpooledBytes + " bytes");
+    }
+
+    @Test
+    public void shareKeyLayoutAcrossResourcesOfSameType() throws IOException {
+        Map<String, Map<String, Object>> resources = StateParser.parseResources(instancesState(2_000));
+        assertEquals(resources.values().stream().map(r -> ((CompactResourceMap) r).getSchema()).distinct().count(), 1L);
+
+        Map<String, Object> resource = resources.get("aws_instance.r7");
+        Map<String, Object> copy = new LinkedHashMap<>(resource);
+        assertEquals(resource, copy);
+        assertEquals(new ArrayList<>(resource.keySet()), new ArrayList<>(copy.keySet()));
+        assertEquals(resource.get("value.instance_type"), "t3.large");
+
+        // processResources adds keys to the resources it creates entities for
+        resource.put("drift-compliance", true);
+        resources.get("aws_instance.r8").put("drift-compliance", false);
+        assertEquals(((CompactResourceMap) resource).getSchema(), ((CompactResourceMap) resources.get("aws_instance.r8")).getSchema());
+        assertEquals(resource.remove("value.ami"), "ami-01a1b2c3d4e5f6a7b8");
+        resource.entrySet().removeIf(e -> e.getKey().startsWith("value.tags"));
+        copy.put("drift-compliance", true);
+        copy.remove("value.ami");
+        copy.entrySet().removeIf(e -> e.getKey().startsWith("value.tags"));
+        assertEquals(resource, copy);
+        assertEquals(new ArrayList<>(resource.keySet()), new ArrayList<>(copy.keySet()));
+    }
+
+    @Test
+    public void tellChangedResourcesByContentHash() {
+        Map<String, Map<String, Object>> resources = StateParser.parseResources(instancesState(100));
+        StateChanges first = StateChanges.between(Collections.emptyMap(), resources);
+        assertEquals(first.getAdded(), resources.keySet());
+        assertTrue(first.getUnchanged().isEmpty());
+
+        // reading nested values does not change the hash
+        assertEquals(resources.get("aws_instance.r1").get("value.vpc_security_group_ids"), "[\"sg-01f00dfeedbeef\"]");
+        StateChanges same = StateChanges.between(first.getHashes(), StateParser.parseResources(instancesState(100)));
+        assertEquals(same.getUnchanged(), resources.keySet());
+        assertEquals(StateChanges.between(first.getHashes(), resources).getUnchanged(), resources.keySet());
+
+        String r58 = "\"id\":\"i-0100003a\",\"ami\":\"ami-01a1b2c3d4e5f6a7b8\",\"availability_zone\":\"eu-west-2a\",\"instance_type\":\"t3.micro\",\"vpc_security_group_ids\":[\"sg-03";
+        String changedState = instancesState(100)
+                .replace("\"id\":\"i-01000007\",\"ami\":\"ami-01", "\"id\":\"i-01000007\",\"ami\":\"ami-02")
+                .replace(r58, r58.replace("sg-03", "sg-04"));
+        Map<String, Map<String, Object>> changed = StateParser.parseResources(changedState);
+        changed.remove("aws_instance.r9");
+        StateChanges changes = StateChanges.between(first.getHashes(), changed);
+        assertEquals(changes.getModified(), new HashSet<>(Arrays.asList("aws_instance.r7", "aws_instance.r58")));
+        assertEquals(changes.getRemoved(), Collections.singleton("aws_instance.r9"));
+        assertTrue(changes.getAdded().isEmpty());
+        assertEquals(changes.getUnchanged().size(), 97);
+
+        // when the state was not written again, every resource is unchanged
+        StateChanges notWritten = StateChanges.unchanged(changes.getHashes());
+        assertEquals(notWritten.getUnchanged(), changed.keySet());
+        assertTrue(notWritten.isUnchanged("aws_instance.r7"));
+        assertTrue(notWritten.getModified().isEmpty() && notWritten.getRemoved().isEmpty() && notWritten.getAdded().isEmpty());
+
+        // a resource changed after it was parsed is hashed again
+        Map<String, Object> resource = resources.get("aws_instance.r3");
+        long hash = ((CompactResourceMap) resource).getContentHash();
+        resource.put("drift-compliance", true);
+        assertTrue(((CompactResourceMap) resource).getContentHash() != hash);
+        // and hashes as it did once changed back, its nested values being hashed as their compact text, read or not
+        resource.remove("drift-compliance");
+        assertEquals(((CompactResourceMap) resource).getContentHash(), hash);
+
+        // however the state is laid out
+        Map<String, Map<String, Object>> laidOut = StateParser.parseResources(instancesState(100).replace("[\"sg-", "[\n    \"sg-"));
+        assertEquals(StateChanges.between(first.getHashes(), laidOut).getUnchanged(), resources.keySet());
+        assertEquals(laidOut.get("aws_instance.r1").get("value.vpc_security_group_ids"), "[\"sg-01f00dfeedbeef\"]");
+    }
+
+    @Test
+    public void readStateVersionFromStatePull() {
+        String pulled = "{\"version\":4,\"terraform_version\":\"1.2.5\",\"serial\":12,\"lineage\":\"3b7b2c4e-9d1e-4b1f-8c3a-0e5f2d7a6b91\","
+                + "\"outputs\":{\"ip\":{\"value\":\"10.0.0.1\",\"type\":\"string\"}},\"resources\":[{\"mode\":\"managed\",\"type\":\"aws_instance\","
+                + "\"name\":\"r0\",\"instances\":[{\"attributes\":{\"serial\":99,\"lineage\":\"nested\"}}]}]}";
+        assertEquals(StateParser.parseStateVersion(pulled), "3b7b2c4e-9d1e-4b1f-8c3a-0e5f2d7a6b91/12");
+        assertEquals(StateParser.parseStateVersion(pulled.replace("\"serial\":12", "\"serial\":13")), "3b7b2c4e-9d1e-4b1f-8c3a-0e5f2d7a6b91/13");
+        assertEquals(StateParser.parseStateVersion(""), null);
+        assertEquals(StateParser.parseStateVersion("{\"version\":4,\"resources\":[{\"serial\":1,\"lineage\":\"nested\"}]}"), null);
+        assertEquals(StateParser.parseStateVersion("No state."), null);
+        assertEquals(StateParser.parseStateVersion(new ByteArrayInputStream(pulled.getBytes(StandardCharsets.UTF_8))), "3b7b2c4e-9d1e-4b1f-8c3a-0e5f2d7a6b91/12");
+        assertEquals(StateParser.parseStateVersion(new ByteArrayInputStream(new byte[0])), null);
+        // the head of a state file, as probed with the local backend
+        assertEquals(StateParser.parseStateVersion(new ByteArrayInputStream(pulled.substring(0, pulled.indexOf("\"resources\"") + 20).getBytes(StandardCharsets.UTF_8))),
+                "3b7b2c4e-9d1e-4b1f-8c3a-0e5f2d7a6b91/12");
+    }
+
+    @Test
+    public void lookUpProvidersByTypePrefix() {
+        assertEquals(ProviderRegistry.lookup("aws_instance.example1: Plan to create"), PlanLogEntry.Provider.AWS);
+        assertEquals(ProviderRegistry.lookup("hcloud_server.web: Refreshing state... [id=123]"), PlanLogEntry.Provider.HETZNER);
+        assertEquals(ProviderRegistry.lookup("module.net.module.vpc.data.google_compute_network.main: Reading..."), PlanLogEntry.Provider.GOOGLE);
+        assertEquals(ProviderRegistry.lookup("Plan: 1 to add, 0 to change, 0 to destroy."), PlanLogEntry.Provider.NOT_SUPPORTED);
+        assertEquals(ProviderRegistry.lookup("linode_instance.web: Plan to create"), PlanLogEntry.Provider.NOT_SUPPORTED);
+
+        ProviderRegistry.register("LINODE", "linode_");
+        ProviderRegistry.register("AWS_SSO", "aws_ssoadmin_");
+        assertEquals(ProviderRegistry.lookup("linode_instance.web: Plan to create").getName(), "LINODE");
+        assertEquals(ProviderRegistry.lookup("aws_ssoadmin_permission_set.admin: Plan to create").getName(), "AWS_SSO");
+        assertEquals(ProviderRegistry.lookup("aws_ssm_parameter.p: Plan to create"), PlanLogEntry.Provider.AWS);
+        assertTrue(ProviderRegistry.providers().contains(PlanLogEntry.Provider.VSPHERE));
+
+        final PlanLogEntry linode = new PlanLogEntry();
+        linode.message = "linode_instance.web: Plan to create";
+        assertEquals(linode.getProvider(), PlanLogEntry.Provider.UNKNOWN);
+        assertEquals(linode.getTerraformProvider().getName(), "LINODE");
+        linode.message = "aws_instance.example1: Plan to create";
+        assertEquals(linode.getProvider(), PlanLogEntry.Provider.AWS);
+        final Map<String, Object> plan = StateParser.parsePlanLogEntries("{\"@message\":\"linode_instance.web: Plan to create\",\"type\":\"planned_change\","
+                + "\"change\":{\"resource\":{\"addr\":\"linode_instance.web\"},\"action\":\"create\"}}\n");
+        assertEquals(plan.get(PLAN_PROVIDER), PlanLogEntry.Provider.UNKNOWN);
+        assertEquals(plan.get(PLAN_PROVIDER_NAME), "LINODE");
+    }
+
+    @Test
+    public void readRenderedPlan() throws IOException {
+        final PlanModel plan = StateParser.parsePlan(loadTestData("state/plan-drift-update-show.json"));
+        assertEquals(plan.getTerraformVersion(), "1.2.5");
+        assertEquals(new ArrayList<>(plan.getResourceDrift().keySet()), Arrays.asList("aws_security_group.allow_all", "aws_security_group.allow_all2"));
+        assertEquals(plan.getResourceChanges().size(), 4);
+        assertEquals(plan.getPendingChanges().size(), 3);
+
+        final PlanModel.ResourceChange drift = plan.getResourceDrift("aws_security_group.allow_all");
+        assertEquals(drift.getActions(), Collections.singletonList("update"));
+        assertEquals(drift.change.before.get("tags"), ImmutableMap.of("Name", "allow_all"));
+        assertEquals(drift.change.after.get("tags"), ImmutableMap.of("Name", "allow_all", "Owner", "someone-else"));
+
+        final PlanModel.ResourceChange replacement = plan.getResourceChange("aws_instance.web");
+        assertTrue(replacement.isReplace());
+        assertEquals(replacement.actionReason, "replace_because_cannot_update");
+        assertEquals(replacement.change.replacePaths, Collections.singletonList(Collections.singletonList("ami")));
+        assertEquals(replacement.change.afterUnknown.get("id"), true);
+        assertTrue(plan.getResourceChange("aws_key_pair.deployer").isNoOp());
+
+        assertEquals(StateParser.parsePlan(""), null);
+    }
+
+    @Test
+    public void diffDriftedAttributes() throws IOException {
+        final PlanModel plan = StateParser.parsePlan(loadTestData("state/plan-drift-update-show.json"));
+        final List<AttributeDiff.Difference> drift = AttributeDiff.between(plan.getResourceDrift("aws_security_group.allow_all").change);
+        assertEquals(drift.stream().map(AttributeDiff.Difference::getPath).collect(Collectors.toList()), Arrays.asList("tags.Owner", "tags_all.Owner"));
+        assertEquals(drift.get(0).getBefore(), null);
+        assertEquals(drift.get(0).getAfter(), "someone-else");
+        assertEquals(AttributeDiff.toSensorValue(drift).get("tags.Owner").get("after"), "someone-else");
+
+        final Map<String, Object> before = ImmutableMap.of("password", "old", "ingress", Arrays.asList(
+                ImmutableMap.of("from_port", 22, "cidr_blocks", Arrays.asList("10.0.0.0/8", "0.0.0.0/0"))), "name", "web");
+        final Map<String, Object> after = ImmutableMap.of("password", "new", "ingress", Arrays.asList(
+                ImmutableMap.of("from_port", 22, "cidr_blocks", Collections.singletonList("10.0.0.0/8")),
+                ImmutableMap.of("from_port", 443, "cidr_blocks", Collections.emptyList())), "name", "web");
+        final Map<String, Object> sensitive = ImmutableMap.of("password", true);
+        assertEquals(AttributeDiff.between(before, after, sensitive, sensitive).toString(),
+                "[password: (sensitive value) -> (sensitive value), ingress[0].cidr_blocks[1]: 0.0.0.0/0 -> null, "
+                        + "ingress[1]: null -> {from_port=443, cidr_blocks=[]}]");
+        assertTrue(AttributeDiff.between(before, before, null, null).isEmpty());
+    }
+
+    @Test
+    public void diffOnlyTheSubTreesThatDiffer() throws IOException {
+        final StringBuilder rules = new StringBuilder(), reordered = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            rules.append(i == 0 ? "" : ",").append("{\"port\":").append(i).append(",\"cidr_blocks\":[\"10.0.0.0/8\"],\"description\":\"rule ").append(i).append("\"}");
+            reordered.append(i == 0 ? "" : ",").append("{\"description\":\"rule ").append(i).append("\",\"cidr_blocks\":[\"10.0.0.0/8\"],\"port\":").append(i).append("}");
+        }
+        final String before = "{\"ingress\":[" + rules + "],\"tags\":{\"Owner\":\"me\",\"Team\":\"web\"},\"id\":\"sg-1\"}";
+        final String after = "{\"ingress\":[" + reordered + "],\"tags\":{\"Team\":\"web\",\"Owner\":\"someone-else\"},\"id\":\"sg-1\"}";
+        final PlanModel plan = StateParser.parsePlan("{\"format_version\":\"1.1\",\"resource_drift\":[{\"address\":\"aws_security_group.web\","
+                + "\"change\":{\"actions\":[\"update\"],\"before\":" + before + ",\"after\":" + after + ",\"after_unknown\":{}}}]}");
+        final PlanModel.Change change = plan.getResourceDrift("aws_security_group.web").change;
+        assertEquals(AttributeDiff.between(change).toString(), "[tags.Owner: me -> someone-else]");
+        assertEquals(change.before.get("tags"), ImmutableMap.of("Owner", "me", "Team", "web"));
+
+        // equal values, but for what is only known once applied
+        change.afterUnknown = ImmutableMap.of("ingress", Collections.singletonList(ImmutableMap.of("description", true)));
+        assertEquals(AttributeDiff.between(change).get(0).toString(), "ingress[0].description: rule 0 -> " + AttributeDiff.KNOWN_AFTER_APPLY);
+    }
+
+    @Test
+    public void renderPlanSummaryWithoutPlanningAgain() throws IOException {
+        final Map<String, Object> planStatus = StateParser.parsePlanLogEntries(loadTestData("state/plan-drift-update.json"));
+        final String summary = PlanSummary.render(StateParser.parsePlan(loadTestData("state/plan-drift-update-show.json")), planStatus);
+        assertTrue(summary.contains("# aws_security_group.allow_all has changed\n      + tags.Owner: null -> \"someone-else\"\n"), summary);
+        assertTrue(summary.contains("# aws_instance.web must be replaced (replace_because_cannot_update)\n"), summary);
+        assertTrue(summary.matches("(?s).*~ ami: \"[^\"]+\" -> \"[^\"]+\" # forces replacement\n.*"), summary);
+        assertTrue(summary.contains("~ id: \"" ) && summary.contains("-> (known after apply)\n"), summary);
+        assertFalse(summary.contains("aws_key_pair.deployer"), summary);
+        assertTrue(summary.endsWith("Plan: 1 to add, 2 to change, 1 to destroy.\n"), summary);
+
+        // without the saved plan, from the plan log
+        final String fromLog = PlanSummary.render(null, planStatus);
+        assertTrue(fromLog.contains("# aws_security_group.allow_all: "), fromLog);
+        assertTrue(fromLog.endsWith(planStatus.get(PLAN_MESSAGE) + "\n"), fromLog);
+    }
+
+    @Test
+    public void splitFramedPollOutput() {
+        final FramedOutput framing = FramedOutput.withRandomBoundary();
+        final String b = framing.getBoundary();
+        final String output = "\n" + b + " begin plan\n{\"type\":\"version\"}\n{\"type\":\"change_summary\"}\n\n" + b + " end plan 0\n"
+                + "\n" + b + " begin state\n\n" + b + " end state 0\n"
+                + "\n" + b + " begin output\nError: no outputs\n\n" + b + " end output 1\n"
+                + "\n" + b + " begin show\n{\"format_version\"";
+        final Map<String, FramedOutput.Section<String>> sections = framing.split(output);
+        assertEquals(new ArrayList<>(sections.keySet()), Arrays.asList("plan", "state", "output", "show"));
+        assertEquals(sections.get("plan").getOutput(), "{\"type\":\"version\"}\n{\"type\":\"change_summary\"}\n");
+        assertTrue(sections.get("plan").isSuccess());
+        assertEquals(sections.get("state").getOutput(), "");
+        assertEquals(sections.get("output").getExitCode(), Integer.valueOf(1));
+        assertEquals(sections.get("show").getOutput(), "{\"format_version\"");
+        assertEquals(sections.get("show").getExitCode(), null, "interrupted");
+        assertTrue(framing.section("plan", "terraform plan").contains(b + " end plan"));
+        assertFalse(FramedOutput.withRandomBoundary().getBoundary().equals(b));
+    }
+
+    @Test
+    public void splitFramedPollOutputAsItIsRead() throws IOException {
+        final FramedOutput framing = FramedOutput.withRandomBoundary();
+        final String b = framing.getBoundary();
+        final String planLog = "{\"@level\":\"info\",\"@message\":\"Plan: 0 to add, 0 to change, 0 to destroy.\",\"type\":\"change_summary\","
+                + "\"changes\":{\"add\":0,\"change\":0,\"remove\":0,\"operation\":\"plan\"}}\n";
+        final StringBuilder state = new StringBuilder("{\"serial\":3,\"lineage\":\"abc\",\"resources\":[");
+        for (int i = 0; i < 5000; i++) state.append(i == 0 ? "" : ",\n").append("{\"name\":\"r").append(i).append("\"}");
+        state.append("]}\n");
+        final String output = "\n" + b + " begin plan\n" + planLog + "\n" + b + " end plan 0\n"
+                + "\n" + b + " begin state\n" + state + "\n" + b + " end state 0\n"
+                + "\n" + b + " begin output\n{}\n\n" + b + " end output 2\n";
+        // as the output of a command arrives, a few bytes at a time
+        final InputStream trickle = new FilterInputStream(new ByteArrayInputStream(output.getBytes(StandardCharsets.UTF_8))) {
+            private int n;
+            @Override
+            public int read(byte[] buffer, int off, int len) throws IOException {
+                return super.read(buffer, off, Math.min(len, 1 + (n++ % 7)));
+            }
+        };
+        final Map<String, FramedOutput.Section<Object>> sections = framing.<Object>split(trickle, name ->
+                "plan".equals(name) ? StateParser::parsePlanLogEntries : "state".equals(name) ? StateParser::parseStateVersion : in -> {
+                    try {
+                        return (char) in.read();
+                    } catch (IOException e) {
+                        throw new IllegalStateException(e);
+                    }
+                });
+        assertEquals(new ArrayList<>(sections.keySet()), Arrays.asList("plan", "state", "output"));
+        assertEquals(((Map<?, ?>) sections.get("plan").getOutput()).get(PLAN_STATUS), TerraformConfiguration.TerraformStatus.SYNC);
+        // the readers stop early, and what they leave of each section is skipped
+        assertEquals(sections.get("state").getOutput(), "abc/3");
+        assertTrue(sections.get("state").isSuccess());
+        assertEquals(sections.get("output").getOutput(), '{');
+        assertEquals(sections.get("output").getExitCode(), Integer.valueOf(2));
+
+        assertEquals(framing.split(output).get("state").getOutput(), state.toString());
+    }
+
+    /** a state with this many {@code aws_instance}s, sharing AMIs, zones, subnets and tags */
+    private static String instancesState(int count) {
+        StringBuilder state = new StringBuilder("{\"terraform_version\":\"1.2.5\",\"values\":{\"root_module\":{\"resources\":[");
+        for (int r = 0; r < count; r++) {
+            state.append(r == 0 ? "" : ",").append("{\"address\":\"aws_instance.r").append(r)
+                    .append("\",\"mode\":\"managed\",\"type\":\"aws_instance\",\"name\":\"r").append(r)
+                    .append("\",\"provider_name\":\"registry.terraform.io/hashicorp/aws\",\"values\":{")
+                    .append("\"id\":\"i-0").append(Integer.toHexString(0x1000000 + r)).append("\",")
+                    .append("\"ami\":\"ami-0").append(r % 3).append("a1b2c3d4e5f6a7b8\",")
+                    .append("\"availability_zone\":\"eu-west-").append(r % 3 + 1).append("a\",")
+                    .append("\"instance_type\":\"t3.").append(r % 2 == 0 ? "micro" : "large").append("\",")
+                    .append("\"vpc_security_group_ids\":[\"sg-0").append(r % 5).append("f00dfeedbeef\"],")
+                    .append("\"subnet_id\":\"subnet-0").append(r % 10).append("abcdef12345678\",")
+                    .append("\"monitoring\":false,\"ebs_optimized\":false,\"tenancy\":\"default\",")
+                    .append("\"tags\":{\"Owner\":\"platform-team\",\"Environment\":\"production\"}}}");
+        }
+        state.append("]}}}");
+        return state.toString();
+    }
+
+    /** shallow size of a latin-1 string on a 64-bit JVM with compressed oops: header and fields, plus its byte array */
+    private static long estimatedSize(String string) {
+        return 24 + ((16 + string.length() + 7) / 8) * 8;
+    }
+
     /**
      * 0. Deploy Terraform config -> TF plan status = SYNC, Resources are created, AMP all green - pass
      * @throws IOException
@@ -288,6 +799,161 @@ public class TerraformJsonPlanParsingTest {
         assertTrue(result.containsKey("tf.errors"));
     }
 
+    @Test
+    public void parsePlanLogFromStream() throws IOException {
+        // what the parser reading the whole log as a string, before it streamed, made of each plan, as text
+        final Map<String, Map<String, String>> expected = new ObjectMapper().readValue(loadTestData("state/plan-summaries.json"),
+                new TypeReference<Map<String, Map<String, String>>>() {});
+        assertEquals(expected.size(), 10);
+        expected.forEach((fixture, summary) -> {
+            try {
+                final Map<String, Object> fromString = StateParser.parsePlanLogEntries(loadTestData(fixture));
+                final Map<String, Object> fromStream = StateParser.parsePlanLogEntries(getClass().getClassLoader().getResourceAsStream(fixture));
+                for (Map<String, Object> result : Arrays.asList(fromString, fromStream)) {
+                    assertEquals(result.keySet(), summary.keySet(), fixture);
+                    summary.forEach((k, v) -> assertEquals(String.valueOf(result.get(k)), v, fixture + " " + k));
+                }
+            } catch (IOException e) {
+                throw new AssertionError(fixture, e);
+            }
+        });
+        assertEquals(expected.get("state/plan-drift-update.json").get(PLAN_STATUS), TerraformConfiguration.TerraformStatus.DRIFT.name());
+        assertEquals(expected.get("state/plan-nothing.json").get(PLAN_MESSAGE), "No changes. Your infrastructure matches the configuration.");
+    }
+
+    @Test
+    public void countThrottledDiagnostics() throws IOException {
+        final String throttled = "{\"@level\":\"error\",\"@message\":\"Error: reading EC2 Instance (i-0a1b2c): operation error EC2: DescribeInstances\","
+                + "\"diagnostic\":{\"severity\":\"error\",\"summary\":\"reading EC2 Instance (i-0a1b2c)\","
+                + "\"detail\":\"api error RequestLimitExceeded: Request limit exceeded.\",\"address\":\"aws_instance.web[3]\"},\"type\":\"diagnostic\"}\n";
+        Map<String, Object> result = StateParser.parsePlanLogEntries(loadTestData("state/plan-bad-config.json") + throttled);
+        assertEquals(result.get(PLAN_THROTTLED), 1L);
+        assertEquals(result.get(PLAN_STATUS), TerraformConfiguration.TerraformStatus.ERROR);
+
+        assertFalse(StateParser.parsePlanLogEntries(loadTestData("state/plan-bad-config.json")).containsKey(PLAN_THROTTLED));
+        assertTrue(ParallelismController.isThrottling("ThrottlingException: Rate exceeded"));
+        assertTrue(ParallelismController.isThrottling("googleapi: Error 429: Quota exceeded, rateLimitExceeded"));
+        assertFalse(ParallelismController.isThrottling("creating security group sg-0429ab: InvalidGroup.Duplicate"));
+    }
+
+    @Test
+    public void chooseParallelism() {
+        ParallelismController controller = new ParallelismController(2, 50);
+        // starts from the resource count, never more than it
+        assertEquals(controller.choose(300), 30);
+        assertEquals(new ParallelismController(2, 50).choose(4), 4);
+        assertEquals(new ParallelismController(2, 50).choose(0), ParallelismController.TERRAFORM_DEFAULT);
+
+        // grows while plans are slow and get faster
+        controller.record(30, 60_000, false);
+        assertEquals(controller.choose(300), 37);
+        controller.record(37, 45_000, false);
+        assertEquals(controller.choose(300), 46);
+        // then goes back when they no longer do, and stays there
+        controller.record(46, 44_000, false);
+        assertEquals(controller.choose(300), 37);
+        controller.record(37, 45_000, false);
+        assertEquals(controller.choose(300), 37);
+
+        // halves when throttled, and is held
+        controller.record(37, 120_000, true);
+        assertEquals(controller.choose(300), 18);
+        for (int i = 0; i < 5; i++) {
+            controller.record(18, 60_000, false);
+            assertEquals(controller.choose(300), 18);
+        }
+        // until the estate changes
+        controller.record(18, 60_000, false);
+        assertEquals(controller.choose(500), 18);
+        controller.record(18, 60_000, false);
+        assertEquals(controller.choose(500), 22);
+
+        // fast plans are left as they are
+        ParallelismController fast = new ParallelismController(2, 50);
+        assertEquals(fast.choose(40), 10);
+        fast.record(10, 2_000, false);
+        assertEquals(fast.choose(40), 10);
+    }
+
+    @Test
+    public void ignoreTargetingWarning() throws IOException {
+        final String targeting = "{\"@level\":\"warn\",\"@message\":\"Warning: Resource targeting is in effect\","
+                + "\"diagnostic\":{\"severity\":\"warning\",\"summary\":\"Resource targeting is in effect\","
+                + "\"detail\":\"You are creating a plan with the -target option, which means that the result of this plan may not represent all of the changes requested by the current configuration.\"},\"type\":\"diagnostic\"}\n";
+        Map<String, Object> result = StateParser.parsePlanLogEntries(targeting + loadTestData("state/plan-nothing.json"));
+        assertEquals(result.get(PLAN_STATUS), TerraformConfiguration.TerraformStatus.SYNC);
+        assertFalse(result.containsKey(PLAN_ERRORS));
+    }
+
+    @Test
+    public void scheduleIncrementalRefresh() {
+        final long minute = 60_000;
+        IncrementalRefresh refresh = new IncrementalRefresh(minute, 10 * minute, 5 * minute, 3);
+        IncrementalRefresh.Run run = refresh.next(0);
+        assertEquals(run.getKind(), IncrementalRefresh.Kind.FULL);
+        refresh.completed(run, 0);
+        refresh.changed(Arrays.asList("aws_instance.web[1]", "aws_instance.web[0]"), 0);
+
+        // nothing to refresh until the targeted period has passed, then only what changed
+        assertEquals(refresh.next(30_000).getKind(), IncrementalRefresh.Kind.SKIP);
+        run = refresh.next(minute);
+        assertEquals(run.getKind(), IncrementalRefresh.Kind.TARGETED);
+        assertEquals(run.getTargets(), new LinkedHashSet<>(Arrays.asList("aws_instance.web[0]", "aws_instance.web[1]")));
+        refresh.completed(run, minute);
+
+        // resources cool down, and then polls plan without refreshing
+        refresh.removed(Collections.singleton("aws_instance.web[1]"));
+        assertEquals(refresh.next(3 * minute).getTargets(), Collections.singleton("aws_instance.web[0]"));
+        assertEquals(refresh.next(6 * minute).getKind(), IncrementalRefresh.Kind.NONE);
+        assertFalse(refresh.next(6 * minute).isRefresh());
+
+        // the whole deployment is refreshed on its own period, when asked for, and when too much changed
+        assertEquals(refresh.next(10 * minute).getKind(), IncrementalRefresh.Kind.FULL);
+        refresh.completed(refresh.next(10 * minute), 10 * minute);
+        refresh.requestFull();
+        assertEquals(refresh.next(11 * minute).getKind(), IncrementalRefresh.Kind.FULL);
+        refresh.completed(refresh.next(11 * minute), 11 * minute);
+        refresh.changed(Arrays.asList("a.a", "a.b", "a.c", "a.d"), 11 * minute);
+        assertEquals(refresh.next(12 * minute).getKind(), IncrementalRefresh.Kind.FULL);
+    }
+
+    @Test
+    public void scheduleTieredPolling() {
+        final long minute = 60_000;
+        TieredPolling polling = new TieredPolling(minute, 5 * minute);
+        assertEquals(polling.next("a 1", 0), TieredPolling.Reason.FIRST);
+        polling.completed("a 2", true, 0);
+        assertEquals(polling.getIntervalMillis(), 2 * minute);
+
+        // the probe taken after the plan is what later ones are compared with
+        assertNull(polling.next("a 2", minute));
+        assertEquals(polling.next("b 2", minute), TieredPolling.Reason.CHANGED);
+        assertEquals(polling.next(null, minute), TieredPolling.Reason.CHANGED);
+        assertEquals(polling.next("a 2", 2 * minute), TieredPolling.Reason.STALE);
+
+        // the interval stretches while in sync, up to the maximum staleness
+        polling.completed("a 2", true, 2 * minute);
+        polling.completed("a 2", true, 6 * minute);
+        assertEquals(polling.getIntervalMillis(), 5 * minute);
+        assertNull(polling.next("a 2", 10 * minute));
+        polling.request();
+        assertEquals(polling.next("a 2", 10 * minute), TieredPolling.Reason.REQUESTED);
+
+        // and is back to the polling period once the deployment drifted, or a plan failed
+        polling.completed("a 3", false, 10 * minute);
+        assertEquals(polling.getIntervalMillis(), minute);
+        assertEquals(polling.next("a 3", 11 * minute), TieredPolling.Reason.STALE);
+        polling.completed("a 3", true, 11 * minute);
+        polling.failed();
+        assertEquals(polling.getIntervalMillis(), minute);
+        assertEquals(polling.next("a 3", 11 * minute), TieredPolling.Reason.REQUESTED);
+
+        // only a changed probe may be answered by a plan refreshing some resources, or none
+        assertFalse(TieredPolling.Reason.CHANGED.needsFullRefresh());
+        assertTrue(TieredPolling.Reason.STALE.needsFullRefresh());
+        assertTrue(TieredPolling.Reason.REQUESTED.needsFullRefresh());
+    }
+
     private String loadTestData(final String filePathAsStr) throws IOException {
         ClassLoader classLoader = getClass().getClassLoader();
         File file = new File(classLoader.getResource(filePathAsStr).getFile());
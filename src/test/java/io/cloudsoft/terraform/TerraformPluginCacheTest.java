@@ -0,0 +1,81 @@
+package io.cloudsoft.terraform;
+
+import com.google.common.io.ByteStreams;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class TerraformPluginCacheTest {
+
+    private static final String MARKER = TerraformPluginCache.MARKER;
+
+    @Test
+    public void countHitsMissesAndBytesSaved() {
+        final TerraformPluginCache.Use use = TerraformPluginCache.Use.parse(String.join("\n",
+                "Initializing provider plugins...",
+                "- Using hashicorp/aws v5.1.0 from the shared cache directory",
+                MARKER + " hit ./registry.terraform.io/hashicorp/aws/5.1.0/linux_amd64 386172",
+                MARKER + " hit ./registry.terraform.io/hashicorp/null/3.2.1/linux_amd64",
+                MARKER + " hit ./registry.terraform.io/hashicorp/random/3.5.1/linux_amd64 unknown",
+                MARKER + " miss ./registry.terraform.io/hashicorp/local/2.4.0/linux_amd64",
+                MARKER + " evicted ./registry.terraform.io/hashicorp/aws/4.0.0/linux_amd64 350000",
+                "Terraform has been successfully initialized! " + MARKER + " hit ./not/at/the/start/of/a/line 1"));
+        assertEquals(use.hits, 3);
+        assertEquals(use.misses, 1);
+        assertEquals(use.bytesSaved, 386172L * 1024);
+
+        final TerraformPluginCache.Use none = TerraformPluginCache.Use.parse("Terraform initialized in an empty directory!");
+        assertEquals(none.hits + none.misses + none.bytesSaved, 0);
+    }
+
+    private static String bash(File dir, String script) throws Exception {
+        final Process process = new ProcessBuilder("bash", "-c", script).directory(dir).redirectErrorStream(true).start();
+        final String output = new String(ByteStreams.toByteArray(process.getInputStream()), StandardCharsets.UTF_8);
+        assertEquals(process.waitFor(), 0, output);
+        return output;
+    }
+
+    @Test
+    public void reportAndEvictProvidersAroundInit() throws Exception {
+        final File root = Files.createTempDirectory("plugin-cache").toFile();
+        try {
+            final File cache = new File(root, "cache");
+            final File workspace = new File(root, "workspaces/app1/active");
+            assertTrue(workspace.mkdirs());
+            // in the cache already: a provider this workspace uses, and one nothing uses, used long ago
+            bash(root, "mkdir -p cache/h/ns/used/1.0/os_arch cache/h/ns/unused/1.0/os_arch"
+                    + " && head -c 40000 /dev/zero > cache/h/ns/used/1.0/os_arch/provider"
+                    + " && head -c 40000 /dev/zero > cache/h/ns/unused/1.0/os_arch/provider"
+                    + " && touch -d '2 days ago' cache/h/ns/unused/1.0/os_arch");
+            // as terraform init does: adds the providers it downloads to the cache, and links the workspace to them
+            final File init = new File(root, "init.sh");
+            Files.write(init.toPath(), ("for p in h/ns/used/1.0/os_arch h/ns/added/2.0/os_arch ; do"
+                    + " mkdir -p \"$TF_PLUGIN_CACHE_DIR/$p\" .terraform/providers/$(dirname $p)"
+                    + " && ln -s \"$TF_PLUGIN_CACHE_DIR/$p\" .terraform/providers/$p ; done").getBytes(StandardCharsets.UTF_8));
+
+            final String output = bash(workspace, TerraformPluginCache.initCommand("bash " + init.getPath(), cache.getPath(),
+                    new File(root, "workspaces").getPath(), 60));
+            final List<String> reported = Arrays.stream(output.split("\n")).filter(line -> line.startsWith(MARKER)).collect(Collectors.toList());
+            assertEquals(reported.size(), 3, output);
+            assertTrue(reported.get(0).matches(MARKER + " miss ./h/ns/added/2.0/os_arch"), output);
+            assertTrue(reported.get(1).matches(MARKER + " hit ./h/ns/used/1.0/os_arch [0-9]+"), output);
+            assertTrue(reported.get(2).matches(MARKER + " evicted h/ns/unused/1.0/os_arch [0-9]+"), output);
+            assertEquals(TerraformPluginCache.Use.parse(output).hits, 1);
+
+            assertFalse(new File(cache, "h/ns/unused/1.0/os_arch").exists());
+            assertTrue(new File(cache, "h/ns/used/1.0/os_arch/provider").exists());
+            assertTrue(new File(cache, "h/ns/added/2.0/os_arch").exists());
+        } finally {
+            bash(root.getParentFile(), "rm -rf " + root.getPath());
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package io.cloudsoft.terraform;
+
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class TerraformSshSessionsTest {
+
+    private static int maxConcurrent(TerraformSshSessions sessions, int commands) throws Exception {
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger max = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(commands);
+        final ExecutorService executor = Executors.newFixedThreadPool(commands);
+        try {
+            final List<Future<Integer>> results = new ArrayList<>();
+            for (int i = 0; i < commands; i++) {
+                final int command = i;
+                results.add(executor.submit(() -> {
+                    started.countDown();
+                    started.await();
+                    return sessions.withSession("10.0.0.1", () -> {
+                        max.accumulateAndGet(running.incrementAndGet(), Math::max);
+                        Thread.sleep(50);
+                        running.decrementAndGet();
+                        return command;
+                    });
+                }));
+            }
+            for (int i = 0; i < commands; i++) {
+                assertEquals(results.get(i).get(10, TimeUnit.SECONDS).intValue(), i);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return max.get();
+    }
+
+    @Test
+    public void runAtMostMaxSessionsAtOnce() throws Exception {
+        assertEquals(maxConcurrent(new TerraformSshSessions(2), 8), 2);
+        assertEquals(maxConcurrent(new TerraformSshSessions(0), 4), 1, "at least one session");
+    }
+
+    @Test
+    public void releaseTheSessionOfAFailedCommand() throws Exception {
+        final TerraformSshSessions sessions = new TerraformSshSessions(1);
+        try {
+            sessions.withSession("10.0.0.1", () -> {
+                throw new IllegalStateException("connection refused");
+            });
+            fail("expected the failure of the command");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage().contains("connection refused"), e.getMessage());
+        }
+        assertEquals(maxConcurrent(sessions, 3), 1);
+    }
+}
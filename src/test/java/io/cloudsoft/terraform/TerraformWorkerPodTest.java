@@ -0,0 +1,66 @@
+package io.cloudsoft.terraform;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.ByteStreams;
+import org.testng.annotations.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class TerraformWorkerPodTest {
+
+    private static String bash(String script) throws Exception {
+        final Process process = new ProcessBuilder("bash", "-c", script).redirectErrorStream(true).start();
+        final String output = new String(ByteStreams.toByteArray(process.getInputStream()), StandardCharsets.UTF_8);
+        assertEquals(process.waitFor(), 0, output);
+        return output;
+    }
+
+    @Test
+    public void writeEnvironmentToBeSourcedRatherThanOnTheCommandLine() throws Exception {
+        final Map<String, String> env = ImmutableMap.of(
+                "AWS_SECRET_ACCESS_KEY", "s3cr3t/with$dollars`and`\"quotes\" and 'single quotes' \\ and\na new line",
+                "TF_VAR_empty", "");
+        final File envFile = File.createTempFile("worker", ".env");
+        try {
+            Files.write(envFile.toPath(), TerraformWorkerPod.envFile(env).getBytes(StandardCharsets.UTF_8));
+            assertEquals(bash(". " + envFile + " && printf '%s|%s' \"$AWS_SECRET_ACCESS_KEY\" \"${TF_VAR_empty-unset}\""),
+                    env.get("AWS_SECRET_ACCESS_KEY") + "|");
+        } finally {
+            envFile.delete();
+        }
+
+        final String script = TerraformWorkerPod.script("/tf/active", true, "terraform plan");
+        assertTrue(script.contains(". " + TerraformWorkerPod.ENV_FILE + " && "), script);
+        assertTrue(script.endsWith("cd /tf/active && terraform plan"), script);
+        assertFalse(TerraformWorkerPod.script("/tf/active", false, "terraform plan").contains(TerraformWorkerPod.ENV_FILE));
+    }
+
+    @Test
+    public void countOnlyCommandsStillRunning() throws Exception {
+        final File running = Files.createTempDirectory("running").toFile();
+        final Process live = new ProcessBuilder("bash", "-c", "echo $$ ; exec sleep 60").start();
+        try {
+            final String livePid = new BufferedReader(new InputStreamReader(live.getInputStream(), StandardCharsets.UTF_8)).readLine().trim();
+            // a command killed without running its exit trap leaves its marker behind
+            final String deadPid = bash("echo $$").trim();
+            assertEquals(bash(TerraformWorkerPod.countRunningScript(running.getPath())).trim(), "0");
+            new File(running, livePid).createNewFile();
+            new File(running, deadPid).createNewFile();
+            assertEquals(bash(TerraformWorkerPod.countRunningScript(running.getPath())).trim(), "1");
+        } finally {
+            live.destroy();
+            for (File marker : running.listFiles()) marker.delete();
+            running.delete();
+        }
+        assertEquals(bash(TerraformWorkerPod.countRunningScript(running.getPath())).trim(), "0");
+    }
+}